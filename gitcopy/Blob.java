@@ -1,33 +1,72 @@
 package gitcopy;
 
-import java.io.Serializable;
-import java.time.LocalDateTime;
-import java.util.Arrays;
 import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * Lightweight descriptor of a tracked file: its path, the SHA1 of its content,
+ * its size and its mode. The content itself lives in the object store and is
+ * only read back when it's asked for, so a Blob costs the same to keep around
+ * and to persist no matter how big the file is. Blobs never change once built,
+ * which lets branches share the same instances.
+ */
+public class Blob implements Serializable {
+  private static final long serialVersionUID = -2615864858997309196L;
+
+  public static final int REGULAR_MODE = 0100644;
+  public static final int EXECUTABLE_MODE = 0100755;
+  private static final long UNKNOWN_SIZE = -1;
 
-public class Blob implements Serializable, Cloneable {
-  private String fileName;
-  private byte[] fileContent;
-  private String blobSHA1;
-  private String time;
+  private final String fileName;
+  private final String blobSHA1;
+  private final int mode;
+  private long size;
 
-  public Blob(String filename) {
+  /**
+   * Hashes the file and streams it into the object store in one pass, so adding
+   * a file never needs the whole file in memory.
+   *
+   * @param filename - Name of the file in the current working directory
+   */
+  public Blob(String filename) throws IOException {
     this.fileName = filename;
     File file = FileUtils.createFileInCurrentDirectory(".", filename);
-    this.fileContent = FileUtils.convertFileToBytes(file);
-    this.time = LocalDateTime.now().toString();
-    this.blobSHA1 = FileUtils.sha1(this.fileContent);
+    if (!file.isFile()) {
+      throw new IllegalArgumentException("This is not a file.");
+    }
+    this.size = file.length();
+    this.mode = modeOf(file);
+    this.blobSHA1 = ObjectStore.writeFile(ObjectStore.BLOB_TYPE, file);
   }
 
-  @Override
-  public Blob clone() {
-    try {
-      Blob clone = (Blob) super.clone();
-      clone.fileContent = Arrays.copyOf(this.fileContent, this.fileContent.length);
-      return clone;
-    } catch (CloneNotSupportedException excp) {
-      throw new AssertionError();
-    }
+  /**
+   * Builds a blob for a file from an object that is already in the object
+   * store, e.g. when merging in a file from another branch. The size is looked
+   * up the first time it's needed.
+   *
+   * @param filename - Name of the file the blob belongs to
+   * @param blobSHA1 - SHA1 of the stored object
+   */
+  public Blob(String filename, String blobSHA1) {
+    this.fileName = filename;
+    this.blobSHA1 = blobSHA1;
+    this.mode = REGULAR_MODE;
+    this.size = UNKNOWN_SIZE;
+  }
+
+  /** Rebuilds a descriptor exactly as it was saved. Used by RepoJournal. */
+  Blob(String filename, String blobSHA1, long size, int mode) {
+    this.fileName = filename;
+    this.blobSHA1 = blobSHA1;
+    this.size = size;
+    this.mode = mode;
+  }
+
+  /** Mode a file in the working directory would be stored with. */
+  static int modeOf(File file) {
+    return file.canExecute() ? EXECUTABLE_MODE : REGULAR_MODE;
   }
 
   public String getBlobSHA1() {
@@ -38,8 +77,51 @@ public class Blob implements Serializable, Cloneable {
     return this.fileName;
   }
 
-  public byte[] getFileContent() {
-    return this.fileContent;
+  public int getMode() {
+    return this.mode;
+  }
+
+  public boolean isExecutable() {
+    return this.mode == EXECUTABLE_MODE;
+  }
+
+  /** Size of the content in bytes, read from the object header if not known. */
+  public long getSize() throws IOException {
+    if (this.size == UNKNOWN_SIZE) {
+      this.size = ObjectStore.getContentSize(this.blobSHA1);
+    }
+    return this.size;
+  }
+
+  /** Size as it's currently known, without looking it up. Used by RepoJournal. */
+  long getKnownSize() {
+    return this.size;
+  }
+
+  /** Reads the content of the blob back from the object store. */
+  public byte[] getFileContent() throws IOException {
+    return ObjectStore.readObject(this.blobSHA1);
+  }
+
+  /**
+   * Blobs are equal when they describe the same file with the same content and
+   * mode. The size follows from the content, so it isn't compared.
+   */
+  @Override
+  public boolean equals(Object other) {
+    if (this == other) {
+      return true;
+    }
+    if (!(other instanceof Blob)) {
+      return false;
+    }
+    Blob blob = (Blob) other;
+    return this.fileName.equals(blob.fileName) && this.blobSHA1.equals(blob.blobSHA1) && this.mode == blob.mode;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(this.fileName, this.blobSHA1, this.mode);
   }
 
 }
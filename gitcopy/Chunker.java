@@ -0,0 +1,57 @@
+package gitcopy;
+
+import java.util.Random;
+
+/**
+ * Content-defined chunking with a gear rolling hash. A chunk ends wherever the
+ * hash of the last 64 bytes hits a fixed bit pattern, so boundaries move with
+ * the content instead of sitting at fixed offsets. Inserting or changing a few
+ * bytes only changes the chunks around the edit, and every other chunk keeps
+ * its SHA1 and is stored once.
+ */
+public class Chunker {
+
+  public static final int MIN_CHUNK_SIZE = 16 * 1024;
+  public static final int MAX_CHUNK_SIZE = 256 * 1024;
+  // 16 bits must be zero to cut, which gives chunks of about 64 KB past the
+  // minimum. High bits are used since they depend on the full 64 byte window.
+  private static final long BOUNDARY_MASK = 0xFFFFL << 48;
+  private static final long GEAR_SEED = 0x6769746370L;
+  private static final long[] GEAR = createGearTable();
+
+  /**
+   * Finds where the chunk starting at offset ends.
+   *
+   * @param buffer - Bytes to split
+   * @param offset - Start of the chunk in buffer
+   * @param length - Number of bytes available from offset. Unless the input is
+   *               finished, at least MAX_CHUNK_SIZE bytes should be available
+   *               so the cut doesn't depend on how the input was read.
+   * @return length of the chunk
+   */
+  public static int nextChunkLength(byte[] buffer, int offset, int length) {
+    if (length <= MIN_CHUNK_SIZE) {
+      return length;
+    }
+    int limit = Math.min(length, MAX_CHUNK_SIZE);
+    long hash = 0;
+    for (int i = MIN_CHUNK_SIZE; i < limit; i++) {
+      hash = (hash << 1) + GEAR[buffer[offset + i] & 0xFF];
+      if ((hash & BOUNDARY_MASK) == 0) {
+        return i + 1;
+      }
+    }
+    return limit;
+  }
+
+  /** The gear table must never change, or existing chunks stop lining up. */
+  private static long[] createGearTable() {
+    Random random = new Random(GEAR_SEED);
+    long[] gear = new long[256];
+    for (int i = 0; i < gear.length; i++) {
+      gear[i] = random.nextLong();
+    }
+    return gear;
+  }
+
+}
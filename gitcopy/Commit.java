@@ -4,17 +4,23 @@ import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.time.LocalDateTime;
 
 public class Commit implements Serializable {
+  // Pinned so stored commits stay readable when the class changes
+  private static final long serialVersionUID = -2080341953694173170L;
 
   private String commitSHA1;
   private String time;
   private String commitMessage;
   private ArrayList<String> commitParents = new ArrayList<>();
-  private Map<String, String> snapshot;
+  private String treeSHA1;
+  // Commits read during this process. Walks over history keep coming back to
+  // the same few commits, e.g. the heads and the merge base.
+  private static final ObjectCache<Commit> CACHE = new ObjectCache<>("commits",
+      ObjectCache.configuredSize("commits", 4 * 1024 * 1024), Commit::estimateSize);
   private final String COMMIT_DIRECTORY = System.getProperty("user.dir") + File.separator + ".gitcopy" + File.separator
       + ".commits";
 
@@ -26,7 +32,7 @@ public class Commit implements Serializable {
    */
   public Commit(String message, String initialSHA1) {
     this.commitMessage = message;
-    this.snapshot = new HashMap<>();
+    this.treeSHA1 = Tree.EMPTY_TREE_SHA1;
     this.time = LocalDateTime.now().toString();
     this.commitSHA1 = initialSHA1;
     this.commitParents.add(Repo.COMMIT_INIT_SHA1);
@@ -36,14 +42,12 @@ public class Commit implements Serializable {
    * This constructor is for anything EXCEPT for initializations.
    * 
    */
-  public Commit(String message, Map<String, String> snapMap, String... parents) {
+  public Commit(String message, String treeSHA1, List<String> parents) {
     this.commitMessage = message;
-    this.snapshot = snapMap;
+    this.treeSHA1 = treeSHA1;
     this.time = LocalDateTime.now().toString();
-    this.commitSHA1 = FileUtils.sha1(snapMap + message);
-    for (String parent : parents) {
-      this.commitParents.add(parent);
-    }
+    this.commitParents.addAll(parents);
+    this.commitSHA1 = FileUtils.sha1(treeSHA1, String.join(" ", parents), this.time, message);
   }
 
   /** Return sha1 of the commit instance. */
@@ -55,8 +59,22 @@ public class Commit implements Serializable {
     return this.commitParents;
   }
 
+  /**
+   * Every file in the commit mapped to the SHA1 of its blob. The map isn't kept
+   * on the commit, where the commit cache couldn't weigh it. Flattening again
+   * reads the trees from their own cache.
+   */
   public Map<String, String> getSnapshot() {
-    return this.snapshot;
+    try {
+      return Tree.flatten(this.treeSHA1);
+    } catch (IOException exception) {
+      throw new IllegalArgumentException(exception.getMessage());
+    }
+  }
+
+  /** SHA1 of the root tree. */
+  public String getTreeSHA1() {
+    return this.treeSHA1;
   }
 
   public String getMessage() {
@@ -75,6 +93,55 @@ public class Commit implements Serializable {
 
   public void saveCommit() throws IOException {
     FileUtils.saveObjectToFileDisk(this.getSHA1(), COMMIT_DIRECTORY, this);
+    CACHE.put(this.getSHA1(), this);
+  }
+
+  /**
+   * LOAD METHODS: Commits are read through the ObjectStore so they're found
+   * whether they are loose in .commits or packed by gc.
+   */
+
+  public static Commit loadCommit(String commitSHA1) {
+    try {
+      return CACHE.get(commitSHA1,
+          sha1 -> FileUtils.deserialize(ObjectStore.openObject(sha1), Commit.class));
+    } catch (IOException exception) {
+      throw new IllegalArgumentException(exception.getMessage());
+    }
+  }
+
+  /**
+   * Turns a commit hash, or the start of one, into the full SHA1. Looked up in
+   * the object store's indexes, so any stored commit is found, whether or not
+   * it's reachable from HEAD.
+   *
+   * @param hashOrPrefix - Full SHA1, or at least 7 characters of one
+   * @return the full SHA1
+   * @throws IllegalArgumentException if no commit or more than one matches
+   */
+  public static String resolveSHA1(String hashOrPrefix) {
+    if (hashOrPrefix.length() < 7) {
+      throw new IllegalArgumentException("A commit hash needs at least 7 characters.");
+    }
+    List<String> commits;
+    try {
+      commits = ObjectStore.findObjectsByPrefix(hashOrPrefix, ObjectStore.COMMIT_TYPE, 16);
+    } catch (IOException exception) {
+      throw new IllegalArgumentException(exception.getMessage());
+    }
+    if (commits.isEmpty()) {
+      throw new IllegalArgumentException("Couldn't find the commit hash");
+    }
+    if (commits.size() > 1) {
+      throw new IllegalArgumentException("The commit hash " + hashOrPrefix + " is ambiguous. It could be "
+          + String.join(", ", commits) + ".");
+    }
+    return commits.get(0);
+  }
+
+  /** Rough number of bytes a commit takes up in memory. */
+  private static long estimateSize(Commit commit) {
+    return 256 + commit.commitMessage.length() * 2L + commit.commitParents.size() * 96L;
   }
 
 }
@@ -0,0 +1,338 @@
+package gitcopy;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The parents, generation and time of every commit, kept in
+ * .gitcopy/commit-graph so history can be walked without loading commits:
+ *
+ * <pre>
+ * "GCCG" [version] [count]
+ * [sorted 20-byte commit ids]
+ * per commit, in the same order: [first parent] [second parent] [generation] [time in ms]
+ * [extra edges] the third and later parents of octopus merges
+ * </pre>
+ *
+ * Parents are positions in the id table. A commit without a second parent has
+ * NO_PARENT there. A commit with more than two has EXTRA_EDGES plus the start
+ * of its list in the extra edges, and the last parent of the list is marked
+ * with LAST_EDGE. A commit's generation is one more than the highest
+ * generation of its parents, and 1 for the initial commit, so a commit can
+ * never be the ancestor of one with a lower or equal generation.
+ *
+ * gc writes the file. Commits made since then aren't in it and are read from
+ * their objects instead, once per walk. Working out their generations would
+ * mean reading every one of them down to the graph, so until the next gc they
+ * count as GENERATION_INFINITY, and walks fall back on their dates to order
+ * them.
+ */
+public class CommitGraph {
+
+  private static final int GRAPH_MAGIC = 0x47434347; // "GCCG"
+  private static final int GRAPH_VERSION = 1;
+  private static final int HEADER_LENGTH = 12;
+  private static final int ID_LENGTH = 20;
+  private static final int RECORD_LENGTH = 20;
+  private static final int NO_PARENT = 0x70000000;
+  private static final int EXTRA_EDGES = 0x80000000;
+  private static final int LAST_EDGE = 0x80000000;
+  // Generation of every commit that isn't in the file. Nothing in the file can
+  // have one of those as an ancestor.
+  public static final int GENERATION_INFINITY = Integer.MAX_VALUE;
+
+  private final MappedByteBuffer data;
+  private final int count;
+  // Commits that aren't in the file, read from the object store
+  private final Map<String, Node> loadedCommits = new HashMap<>();
+
+  /** What the graph knows about a commit that isn't in the file. */
+  private static class Node {
+    private final List<String> parents;
+    private final long time;
+    private int generation;
+
+    Node(List<String> parents, long time) {
+      this.parents = parents;
+      this.time = time;
+    }
+  }
+
+  private CommitGraph(MappedByteBuffer data) {
+    this.data = data;
+    this.count = data == null ? 0 : data.getInt(8);
+  }
+
+  /** Opens the commit-graph, or an empty graph if gc hasn't written one yet. */
+  public static CommitGraph open() {
+    File graphFile = new File(Repo.COMMIT_GRAPH_FILE);
+    if (!graphFile.isFile()) {
+      return new CommitGraph(null);
+    }
+    try (FileChannel channel = FileChannel.open(graphFile.toPath(), StandardOpenOption.READ)) {
+      MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (data.getInt(0) != GRAPH_MAGIC || data.getInt(4) != GRAPH_VERSION) {
+        throw new IllegalArgumentException("The commit-graph is corrupt.");
+      }
+      return new CommitGraph(data);
+    } catch (IOException excp) {
+      throw new IllegalArgumentException(excp.getMessage());
+    }
+  }
+
+  /**
+   * Writes a new commit-graph holding every commit reachable from a branch or
+   * HEAD. Commits already in the old graph aren't loaded again.
+   *
+   * @return number of commits in the graph
+   * @throws IOException
+   */
+  public static int write() throws IOException {
+    CommitGraph oldGraph = open();
+    List<String> tips = new ArrayList<>();
+    for (String branchName : Head.getBranchNames()) {
+      tips.add(Head.getBranchHeadCommitSHA1(branchName));
+    }
+    tips.add(Head.getGlobalHeadCommitSHA1());
+
+    // Sorted ids, each mapped to its position once they're all known
+    TreeMap<String, Integer> positions = new TreeMap<>();
+    Deque<String> pending = new ArrayDeque<>(tips);
+    while (!pending.isEmpty()) {
+      String commitSHA1 = pending.pop();
+      if (positions.put(commitSHA1, 0) == null) {
+        pending.addAll(oldGraph.getParents(commitSHA1));
+      }
+    }
+    int position = 0;
+    for (Map.Entry<String, Integer> entry : positions.entrySet()) {
+      entry.setValue(position++);
+    }
+
+    Path tempFile = Files.createTempFile(new File(Repo.COMMIT_GRAPH_FILE).getParentFile().toPath(), "tmp_",
+        ".graph");
+    try {
+      try (DataOutputStream outputStream = new DataOutputStream(
+          new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+        outputStream.writeInt(GRAPH_MAGIC);
+        outputStream.writeInt(GRAPH_VERSION);
+        outputStream.writeInt(positions.size());
+        for (String commitSHA1 : positions.keySet()) {
+          outputStream.write(FileUtils.fromHex(commitSHA1));
+        }
+        List<Integer> extraEdges = new ArrayList<>();
+        for (String commitSHA1 : positions.keySet()) {
+          List<String> parents = oldGraph.getParents(commitSHA1);
+          outputStream.writeInt(parents.isEmpty() ? NO_PARENT : positions.get(parents.get(0)));
+          if (parents.size() <= 2) {
+            outputStream.writeInt(parents.size() < 2 ? NO_PARENT : positions.get(parents.get(1)));
+          } else {
+            outputStream.writeInt(EXTRA_EDGES | extraEdges.size());
+            for (int i = 1; i < parents.size(); i++) {
+              int edge = positions.get(parents.get(i));
+              extraEdges.add(i == parents.size() - 1 ? edge | LAST_EDGE : edge);
+            }
+          }
+          outputStream.writeInt(oldGraph.computeGeneration(commitSHA1));
+          outputStream.writeLong(oldGraph.getTime(commitSHA1));
+        }
+        for (int edge : extraEdges) {
+          outputStream.writeInt(edge);
+        }
+      }
+      Files.move(tempFile, new File(Repo.COMMIT_GRAPH_FILE).toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tempFile);
+    }
+    return positions.size();
+  }
+
+  /**
+   * Looks up the parents of a commit. The initial commit has none.
+   *
+   * @param commitSHA1 - SHA1 of the commit
+   * @return SHA1s of the parents, first parent first
+   */
+  public List<String> getParents(String commitSHA1) {
+    int position = findPosition(commitSHA1);
+    if (position < 0) {
+      return loadCommit(commitSHA1).parents;
+    }
+    List<String> parents = new ArrayList<>(2);
+    int record = recordOffset(position);
+    int firstParent = this.data.getInt(record);
+    if (firstParent == NO_PARENT) {
+      return parents;
+    }
+    parents.add(idAt(firstParent));
+    int secondParent = this.data.getInt(record + 4);
+    if (secondParent == NO_PARENT) {
+      return parents;
+    }
+    if ((secondParent & EXTRA_EDGES) == 0) {
+      parents.add(idAt(secondParent));
+      return parents;
+    }
+    int edgeOffset = recordOffset(this.count) + (secondParent & ~EXTRA_EDGES) * 4;
+    int edge;
+    do {
+      edge = this.data.getInt(edgeOffset);
+      parents.add(idAt(edge & ~LAST_EDGE));
+      edgeOffset += 4;
+    } while ((edge & LAST_EDGE) == 0);
+    return parents;
+  }
+
+  /**
+   * Looks up the generation of a commit.
+   *
+   * @param commitSHA1 - SHA1 of the commit
+   * @return 1 for the initial commit, otherwise one more than its highest
+   *         parent, or GENERATION_INFINITY if the commit isn't in the file
+   */
+  public int getGeneration(String commitSHA1) {
+    int position = findPosition(commitSHA1);
+    return position >= 0 ? this.data.getInt(recordOffset(position) + 8) : GENERATION_INFINITY;
+  }
+
+  /**
+   * Works out the real generation of a commit, for writing the file. For a
+   * commit that isn't in it yet, that reads every commit below it down to the
+   * ones that are.
+   */
+  private int computeGeneration(String commitSHA1) {
+    int position = findPosition(commitSHA1);
+    if (position >= 0) {
+      return this.data.getInt(recordOffset(position) + 8);
+    }
+    Node node = loadCommit(commitSHA1);
+    if (node.generation > 0) {
+      return node.generation;
+    }
+    // Works out the generations of every commit missing from the file below
+    // this one, parents first, without recursing through long histories
+    Deque<String> stack = new ArrayDeque<>();
+    stack.push(commitSHA1);
+    while (!stack.isEmpty()) {
+      String current = stack.peek();
+      Node currentNode = loadCommit(current);
+      int generation = 1;
+      boolean parentsKnown = true;
+      for (String parent : currentNode.parents) {
+        int parentGeneration = knownGeneration(parent);
+        if (parentGeneration == 0) {
+          stack.push(parent);
+          parentsKnown = false;
+        } else {
+          generation = Math.max(generation, parentGeneration + 1);
+        }
+      }
+      if (parentsKnown) {
+        currentNode.generation = generation;
+        stack.pop();
+      }
+    }
+    return node.generation;
+  }
+
+  /** Time of a commit in milliseconds since the epoch. */
+  public long getTime(String commitSHA1) {
+    int position = findPosition(commitSHA1);
+    if (position >= 0) {
+      return this.data.getLong(recordOffset(position) + 12);
+    }
+    return loadCommit(commitSHA1).time;
+  }
+
+  /** Generation of a commit if it's already known, otherwise 0. */
+  private int knownGeneration(String commitSHA1) {
+    int position = findPosition(commitSHA1);
+    if (position >= 0) {
+      return this.data.getInt(recordOffset(position) + 8);
+    }
+    return loadCommit(commitSHA1).generation;
+  }
+
+  private Node loadCommit(String commitSHA1) {
+    Node node = this.loadedCommits.get(commitSHA1);
+    if (node == null) {
+      Commit commit = Commit.loadCommit(commitSHA1);
+      List<String> parents = new ArrayList<>();
+      for (String parent : commit.getParents()) {
+        // The initial commit names itself as its parent
+        if (!parent.equals(commitSHA1)) {
+          parents.add(parent);
+        }
+      }
+      node = new Node(parents, toEpochMillis(commit.getTime()));
+      this.loadedCommits.put(commitSHA1, node);
+    }
+    return node;
+  }
+
+  private static long toEpochMillis(String time) {
+    return LocalDateTime.parse(time).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+  }
+
+  /** Binary search over the sorted ids. */
+  private int findPosition(String commitSHA1) {
+    if (this.count == 0 || commitSHA1.length() != ID_LENGTH * 2) {
+      return -1;
+    }
+    byte[] target = FileUtils.fromHex(commitSHA1);
+    int low = 0;
+    int high = this.count - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      int comparison = compareIdAt(middle, target);
+      if (comparison < 0) {
+        low = middle + 1;
+      } else if (comparison > 0) {
+        high = middle - 1;
+      } else {
+        return middle;
+      }
+    }
+    return -1;
+  }
+
+  private int compareIdAt(int position, byte[] target) {
+    int start = HEADER_LENGTH + position * ID_LENGTH;
+    for (int i = 0; i < ID_LENGTH; i++) {
+      int comparison = Integer.compare(this.data.get(start + i) & 0xFF, target[i] & 0xFF);
+      if (comparison != 0) {
+        return comparison;
+      }
+    }
+    return 0;
+  }
+
+  private String idAt(int position) {
+    byte[] id = new byte[ID_LENGTH];
+    this.data.get(HEADER_LENGTH + position * ID_LENGTH, id);
+    return FileUtils.toHex(id);
+  }
+
+  private int recordOffset(int position) {
+    return HEADER_LENGTH + this.count * ID_LENGTH + position * RECORD_LENGTH;
+  }
+
+}
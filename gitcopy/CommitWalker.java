@@ -0,0 +1,103 @@
+package gitcopy;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Walks history from one or more commits, newest first, handing out each
+ * commit once. Only the commits handed out so far and their parents have been
+ * looked at, so reading the first few commits of a long history costs as much
+ * as those few. Parents and times come from the commit-graph.
+ *
+ * Commits are ordered by time, so once the newest commit left is older than
+ * the since limit, nothing left can be newer and the walk stops.
+ */
+public class CommitWalker implements Iterator<String> {
+
+  private final CommitGraph graph;
+  // Commits whose parents haven't been queued yet, newest first
+  private final PriorityQueue<Pending> queue = new PriorityQueue<>();
+  private final Set<String> seen = new HashSet<>();
+  private long since = Long.MIN_VALUE;
+  private long until = Long.MAX_VALUE;
+  private String next;
+
+  private static class Pending implements Comparable<Pending> {
+    private final String commitSHA1;
+    private final long time;
+
+    Pending(String commitSHA1, long time) {
+      this.commitSHA1 = commitSHA1;
+      this.time = time;
+    }
+
+    @Override
+    public int compareTo(Pending other) {
+      int comparison = Long.compare(other.time, this.time);
+      return comparison != 0 ? comparison : this.commitSHA1.compareTo(other.commitSHA1);
+    }
+  }
+
+  /**
+   * @param graph  - Commit-graph to read parents and times from
+   * @param starts - SHA1s of the commits to start from
+   */
+  public CommitWalker(CommitGraph graph, Collection<String> starts) {
+    this.graph = graph;
+    for (String start : starts) {
+      enqueue(start);
+    }
+  }
+
+  /** Skips commits made before a time in milliseconds since the epoch. */
+  public CommitWalker setSince(long since) {
+    this.since = since;
+    return this;
+  }
+
+  /** Skips commits made after a time in milliseconds since the epoch. */
+  public CommitWalker setUntil(long until) {
+    this.until = until;
+    return this;
+  }
+
+  @Override
+  public boolean hasNext() {
+    while (this.next == null && !this.queue.isEmpty()) {
+      Pending pending = this.queue.poll();
+      if (pending.time < this.since) {
+        this.queue.clear();
+        break;
+      }
+      for (String parent : this.graph.getParents(pending.commitSHA1)) {
+        enqueue(parent);
+      }
+      if (pending.time <= this.until) {
+        this.next = pending.commitSHA1;
+      }
+    }
+    return this.next != null;
+  }
+
+  /** SHA1 of the next commit. */
+  @Override
+  public String next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    String commitSHA1 = this.next;
+    this.next = null;
+    return commitSHA1;
+  }
+
+  private void enqueue(String commitSHA1) {
+    if (this.seen.add(commitSHA1)) {
+      this.queue.add(new Pending(commitSHA1, this.graph.getTime(commitSHA1)));
+    }
+  }
+
+}
@@ -0,0 +1,203 @@
+package gitcopy;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Merges the content of a file both sides changed, line by line. Ours and
+ * theirs are each diffed against the base, and the edits are walked together
+ * in base order:
+ *
+ * <pre>
+ * only one side changed a region    that side's lines are taken
+ * both made the same change         it's taken once
+ * both changed it differently       both versions go in between markers
+ * </pre>
+ *
+ * Edits that overlap or touch count as the same region, so changes to lines
+ * next to each other conflict rather than being guessed at. Binary files
+ * aren't merged at all.
+ *
+ * The three versions are held as line ids from one LineTable, so a line they
+ * share is in memory once, and the result is streamed to a temp file and
+ * stored from there rather than built up in memory.
+ */
+public class ContentMerge {
+
+  private static final String OURS_MARKER = "<<<<<<< ";
+  private static final String SEPARATOR_MARKER = "=======";
+  private static final String THEIRS_MARKER = ">>>>>>> ";
+
+  /** The merged blob and how many regions in it conflict. */
+  public static class Result {
+    private final String blobSHA1;
+    private final int conflicts;
+
+    Result(String blobSHA1, int conflicts) {
+      this.blobSHA1 = blobSHA1;
+      this.conflicts = conflicts;
+    }
+
+    /** SHA1 of the merged blob, with markers around any conflicts. */
+    public String getBlobSHA1() {
+      return this.blobSHA1;
+    }
+
+    public int getConflicts() {
+      return this.conflicts;
+    }
+
+    public boolean isClean() {
+      return this.conflicts == 0;
+    }
+  }
+
+  private final LineTable table = new LineTable();
+  private final String oursLabel;
+  private final String theirsLabel;
+  private OutputStream output;
+  private int conflicts;
+
+  private ContentMerge(String oursLabel, String theirsLabel) {
+    this.oursLabel = oursLabel;
+    this.theirsLabel = theirsLabel;
+  }
+
+  /**
+   * Merges two versions of a file and stores the result as a blob.
+   *
+   * @param baseSHA1    - Blob of the merge base, or null if the file was added
+   *                    on both sides
+   * @param oursSHA1    - Blob being merged into
+   * @param theirsSHA1  - Blob being merged in
+   * @param oursLabel   - Name put after the ours marker, e.g. HEAD
+   * @param theirsLabel - Name put after the theirs marker, e.g. the branch
+   * @return the merged blob, or null if any of the versions is binary
+   * @throws IOException
+   */
+  public static Result merge(String baseSHA1, String oursSHA1, String theirsSHA1, String oursLabel,
+      String theirsLabel) throws IOException {
+    ContentMerge merge = new ContentMerge(oursLabel, theirsLabel);
+    int[] base = merge.table.read(baseSHA1);
+    int[] ours = merge.table.read(oursSHA1);
+    int[] theirs = merge.table.read(theirsSHA1);
+    if (base == null || ours == null || theirs == null) {
+      return null;
+    }
+    Path tempFile = Files.createTempFile(new File(Repo.INDEX_FILE).getParentFile().toPath(), "tmp_", ".merge");
+    try {
+      try (OutputStream outputStream = new BufferedOutputStream(Files.newOutputStream(tempFile))) {
+        merge.output = outputStream;
+        merge.mergeLines(base, ours, theirs);
+      }
+      String blobSHA1 = ObjectStore.writeFile(ObjectStore.BLOB_TYPE, tempFile.toFile());
+      return new Result(blobSHA1, merge.conflicts);
+    } finally {
+      Files.deleteIfExists(tempFile);
+    }
+  }
+
+  private void mergeLines(int[] base, int[] ours, int[] theirs) throws IOException {
+    List<LineDiff.Edit> oursEdits = LineDiff.diff(base, ours);
+    List<LineDiff.Edit> theirsEdits = LineDiff.diff(base, theirs);
+    int oursIndex = 0;
+    int theirsIndex = 0;
+    // How far each side's lines have moved from the base's so far
+    int oursShift = 0;
+    int theirsShift = 0;
+    int basePosition = 0;
+    while (oursIndex < oursEdits.size() || theirsIndex < theirsEdits.size()) {
+      boolean oursFirst = theirsIndex == theirsEdits.size() || (oursIndex < oursEdits.size()
+          && oursEdits.get(oursIndex).getBeginA() <= theirsEdits.get(theirsIndex).getBeginA());
+      int regionBegin = oursFirst ? oursEdits.get(oursIndex).getBeginA() : theirsEdits.get(theirsIndex).getBeginA();
+      int regionEnd = regionBegin;
+      int oursShiftAfter = oursShift;
+      int theirsShiftAfter = theirsShift;
+      boolean oursChanged = false;
+      boolean theirsChanged = false;
+      // Grows the region until no edit on either side overlaps or touches it
+      boolean grew = true;
+      while (grew) {
+        grew = false;
+        if (oursIndex < oursEdits.size() && oursEdits.get(oursIndex).getBeginA() <= regionEnd) {
+          LineDiff.Edit edit = oursEdits.get(oursIndex++);
+          regionEnd = Math.max(regionEnd, edit.getEndA());
+          oursShiftAfter += lengthB(edit) - lengthA(edit);
+          oursChanged = true;
+          grew = true;
+        }
+        if (theirsIndex < theirsEdits.size() && theirsEdits.get(theirsIndex).getBeginA() <= regionEnd) {
+          LineDiff.Edit edit = theirsEdits.get(theirsIndex++);
+          regionEnd = Math.max(regionEnd, edit.getEndA());
+          theirsShiftAfter += lengthB(edit) - lengthA(edit);
+          theirsChanged = true;
+          grew = true;
+        }
+      }
+
+      writeLines(base, basePosition, regionBegin);
+      int oursBegin = regionBegin + oursShift;
+      int oursEnd = regionEnd + oursShiftAfter;
+      int theirsBegin = regionBegin + theirsShift;
+      int theirsEnd = regionEnd + theirsShiftAfter;
+      if (!theirsChanged) {
+        writeLines(ours, oursBegin, oursEnd);
+      } else if (!oursChanged) {
+        writeLines(theirs, theirsBegin, theirsEnd);
+      } else if (Arrays.equals(ours, oursBegin, oursEnd, theirs, theirsBegin, theirsEnd)) {
+        writeLines(ours, oursBegin, oursEnd);
+      } else {
+        writeConflict(ours, oursBegin, oursEnd, theirs, theirsBegin, theirsEnd);
+      }
+      basePosition = regionEnd;
+      oursShift = oursShiftAfter;
+      theirsShift = theirsShiftAfter;
+    }
+    writeLines(base, basePosition, base.length);
+  }
+
+  private void writeConflict(int[] ours, int oursBegin, int oursEnd, int[] theirs, int theirsBegin, int theirsEnd)
+      throws IOException {
+    this.conflicts++;
+    writeMarker(OURS_MARKER + this.oursLabel);
+    writeLines(ours, oursBegin, oursEnd);
+    endLastLine(ours, oursBegin, oursEnd);
+    writeMarker(SEPARATOR_MARKER);
+    writeLines(theirs, theirsBegin, theirsEnd);
+    endLastLine(theirs, theirsBegin, theirsEnd);
+    writeMarker(THEIRS_MARKER + this.theirsLabel);
+  }
+
+  /** Keeps a marker off the end of a side's last line if it had no newline. */
+  private void endLastLine(int[] lines, int begin, int end) throws IOException {
+    if (end > begin && !this.table.endsWithNewline(lines[end - 1])) {
+      this.output.write('\n');
+    }
+  }
+
+  private void writeMarker(String marker) throws IOException {
+    this.output.write((marker + "\n").getBytes(StandardCharsets.UTF_8));
+  }
+
+  private void writeLines(int[] lines, int begin, int end) throws IOException {
+    for (int i = begin; i < end; i++) {
+      this.table.write(this.output, lines[i]);
+    }
+  }
+
+  private static int lengthA(LineDiff.Edit edit) {
+    return edit.getEndA() - edit.getBeginA();
+  }
+
+  private static int lengthB(LineDiff.Edit edit) {
+    return edit.getEndB() - edit.getBeginB();
+  }
+
+}
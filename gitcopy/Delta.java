@@ -0,0 +1,179 @@
+package gitcopy;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * Builds and applies binary deltas between two versions of an object. A delta
+ * is a list of instructions that rebuild the target from the base:
+ *
+ * <pre>
+ * [base size][target size] then any mix of
+ *   COPY   [offset][length]  - copy a range out of the base
+ *   INSERT [length][bytes]   - insert new bytes
+ * </pre>
+ *
+ * All numbers are written as variable-length integers.
+ */
+public class Delta {
+
+  private static final int COPY = 1;
+  private static final int INSERT = 2;
+  // Smallest run of matching bytes worth turning into a copy instruction
+  private static final int BLOCK_SIZE = 16;
+  private static final int HASH_MULTIPLIER = 31;
+
+  /**
+   * Computes a delta that turns base into target.
+   *
+   * @param base   - Content the delta is computed against
+   * @param target - Content the delta rebuilds
+   * @return the delta, or null if it would not be smaller than the target
+   */
+  public static byte[] create(byte[] base, byte[] target) {
+    ByteArrayOutputStream delta = new ByteArrayOutputStream();
+    writeVarLong(delta, base.length);
+    writeVarLong(delta, target.length);
+    int[] blockIndex = indexBlocks(base);
+    ByteArrayOutputStream pendingInsert = new ByteArrayOutputStream();
+    int position = 0;
+    while (position < target.length) {
+      int matchOffset = -1;
+      int matchLength = 0;
+      if (blockIndex.length > 0 && position + BLOCK_SIZE <= target.length) {
+        int candidate = blockIndex[slot(hashBlock(target, position), blockIndex.length)];
+        if (candidate >= 0) {
+          matchLength = matchLength(base, candidate, target, position);
+          matchOffset = candidate;
+        }
+      }
+      if (matchLength >= BLOCK_SIZE) {
+        flushInsert(delta, pendingInsert);
+        writeCopy(delta, matchOffset, matchLength);
+        position += matchLength;
+      } else {
+        pendingInsert.write(target[position]);
+        position++;
+      }
+      if (delta.size() + pendingInsert.size() >= target.length) {
+        return null;
+      }
+    }
+    flushInsert(delta, pendingInsert);
+    return delta.size() < target.length ? delta.toByteArray() : null;
+  }
+
+  /**
+   * Rebuilds the target content from the base and a delta made by create.
+   *
+   * @param base  - Content the delta was computed against
+   * @param delta - Delta instructions
+   * @return the rebuilt target content
+   */
+  public static byte[] apply(byte[] base, byte[] delta) {
+    int[] position = { 0 };
+    long baseSize = readVarLong(delta, position);
+    if (baseSize != base.length) {
+      throw new IllegalArgumentException("Delta does not match its base object.");
+    }
+    long targetSize = readVarLong(delta, position);
+    byte[] target = new byte[Math.toIntExact(targetSize)];
+    int written = 0;
+    while (position[0] < delta.length) {
+      int instruction = delta[position[0]++];
+      if (instruction == COPY) {
+        int offset = (int) readVarLong(delta, position);
+        int length = (int) readVarLong(delta, position);
+        System.arraycopy(base, offset, target, written, length);
+        written += length;
+      } else if (instruction == INSERT) {
+        int length = (int) readVarLong(delta, position);
+        System.arraycopy(delta, position[0], target, written, length);
+        position[0] += length;
+        written += length;
+      } else {
+        throw new IllegalArgumentException("Delta is corrupt.");
+      }
+    }
+    if (written != target.length) {
+      throw new IllegalArgumentException("Delta is corrupt.");
+    }
+    return target;
+  }
+
+  /**
+   * Indexes every block-aligned run of the base by its hash. Later blocks
+   * overwrite earlier ones with the same slot, which is fine for a heuristic.
+   */
+  private static int[] indexBlocks(byte[] base) {
+    int blocks = base.length / BLOCK_SIZE;
+    if (blocks == 0) {
+      return new int[0];
+    }
+    int[] index = new int[Integer.highestOneBit(blocks) * 4];
+    Arrays.fill(index, -1);
+    for (int offset = 0; offset + BLOCK_SIZE <= base.length; offset += BLOCK_SIZE) {
+      index[slot(hashBlock(base, offset), index.length)] = offset;
+    }
+    return index;
+  }
+
+  private static int hashBlock(byte[] content, int offset) {
+    int hash = 0;
+    for (int i = offset; i < offset + BLOCK_SIZE; i++) {
+      hash = hash * HASH_MULTIPLIER + content[i];
+    }
+    return hash;
+  }
+
+  private static int slot(int hash, int tableSize) {
+    return (hash ^ (hash >>> 16)) & (tableSize - 1);
+  }
+
+  private static int matchLength(byte[] base, int baseOffset, byte[] target, int targetOffset) {
+    int length = 0;
+    while (baseOffset + length < base.length && targetOffset + length < target.length
+        && base[baseOffset + length] == target[targetOffset + length]) {
+      length++;
+    }
+    return length;
+  }
+
+  private static void writeCopy(ByteArrayOutputStream delta, int offset, int length) {
+    delta.write(COPY);
+    writeVarLong(delta, offset);
+    writeVarLong(delta, length);
+  }
+
+  private static void flushInsert(ByteArrayOutputStream delta, ByteArrayOutputStream pendingInsert) {
+    if (pendingInsert.size() == 0) {
+      return;
+    }
+    delta.write(INSERT);
+    writeVarLong(delta, pendingInsert.size());
+    delta.writeBytes(pendingInsert.toByteArray());
+    pendingInsert.reset();
+  }
+
+  private static void writeVarLong(ByteArrayOutputStream outputStream, long value) {
+    while ((value & ~0x7FL) != 0) {
+      outputStream.write((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    outputStream.write((int) value);
+  }
+
+  private static long readVarLong(byte[] content, int[] position) {
+    long value = 0;
+    int shift = 0;
+    while (true) {
+      int next = content[position[0]++] & 0xFF;
+      value |= (long) (next & 0x7F) << shift;
+      if ((next & 0x80) == 0) {
+        return value;
+      }
+      shift += 7;
+    }
+  }
+
+}
@@ -0,0 +1,419 @@
+package gitcopy;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Prints what changed between two snapshots, path to blob SHA1. The snapshots
+ * are compared by SHA1 first, and only paths whose blobs differ are read.
+ * Changed files are read and diffed on DIFF_THREADS workers, a batch at a time,
+ * and printed in path order, so a diff touching thousands of files never
+ * holds more than a batch of them in memory.
+ *
+ * <pre>
+ * PATCH        unified diff with CONTEXT_LINES lines of context
+ * STAT         one line per file with a bar of + and -, then the totals
+ * NAME_ONLY    the changed paths
+ * NAME_STATUS  the changed paths, each after a letter saying how it changed
+ * </pre>
+ *
+ * Deleted and added files are paired up by RenameDetector, so a moved file
+ * shows as a rename with what changed in it rather than as a whole file
+ * removed and another added.
+ */
+public class Diff {
+
+  public enum Format {
+    PATCH,
+    STAT,
+    NAME_ONLY,
+    NAME_STATUS,
+  }
+
+  /** Opens the content one side has for a path. */
+  public interface ContentSource {
+    InputStream open(String path, String blobSHA1) throws IOException;
+  }
+
+  /** Content of committed and staged blobs. */
+  public static final ContentSource OBJECT_STORE = (path, blobSHA1) -> ObjectStore.openObject(blobSHA1);
+  /** Content of the files in the working directory. */
+  public static final ContentSource WORKING_TREE = (path, blobSHA1) -> Files.newInputStream(Paths.get(path));
+
+  private static final int CONTEXT_LINES = 3;
+  // Shares add's setting, -Dgitcopy.threads=[n]
+  private static final int DIFF_THREADS = Math.max(1,
+      Integer.getInteger("gitcopy.threads", Runtime.getRuntime().availableProcessors()));
+  // Files handed to the workers at once
+  private static final int BATCH_SIZE = 256;
+  // Widest bar --stat draws
+  private static final int STAT_BAR_WIDTH = 50;
+  private static final String NO_NEWLINE = "\\ No newline at end of file\n";
+
+  private final Map<String, String> before;
+  private final Map<String, String> after;
+  private final ContentSource afterSource;
+
+  /** A changed file, and what happened to it. */
+  private static class FileChange {
+    // 'A'dded, 'D'eleted, 'M'odified, 'R'enamed or 'C'opied
+    private final char status;
+    // Null for added files
+    private final String oldPath;
+    // Null for deleted files
+    private final String newPath;
+    private final int score;
+
+    FileChange(char status, String oldPath, String newPath, int score) {
+      this.status = status;
+      this.oldPath = oldPath;
+      this.newPath = newPath;
+      this.score = score;
+    }
+
+    private String getPath() {
+      return this.newPath != null ? this.newPath : this.oldPath;
+    }
+
+    private boolean isMove() {
+      return this.status == 'R' || this.status == 'C';
+    }
+
+    /** The path for --stat and the patch header, "old => new" for a move. */
+    private String getDisplayPath() {
+      return isMove() ? this.oldPath + " => " + this.newPath : getPath();
+    }
+  }
+
+  /** Lines added and removed in one file, or -1 for binary files. */
+  private static class FileStat {
+    private final String path;
+    private final int insertions;
+    private final int deletions;
+
+    FileStat(String path, int insertions, int deletions) {
+      this.path = path;
+      this.insertions = insertions;
+      this.deletions = deletions;
+    }
+
+    private boolean isBinary() {
+      return this.insertions < 0;
+    }
+  }
+
+  /** Work done for one file on a worker. */
+  private interface ChangeTask<T> {
+    T run(FileChange change) throws IOException;
+  }
+
+  /** Receives the result of a file's task. */
+  private interface ResultHandler<T> {
+    void accept(T result) throws IOException;
+  }
+
+  private Diff(Map<String, String> before, Map<String, String> after, ContentSource afterSource) {
+    this.before = before;
+    this.after = after;
+    this.afterSource = afterSource;
+  }
+
+  /**
+   * Prints the differences between two snapshots.
+   *
+   * @param before      - Older snapshot, read from the object store
+   * @param after       - Newer snapshot
+   * @param afterSource - Where the newer side's content is read from
+   * @param format      - What to print
+   * @param findCopies  - Whether added files may be copies of modified ones,
+   *                    not just renames of deleted ones
+   * @throws IOException
+   */
+  public static void print(Map<String, String> before, Map<String, String> after, ContentSource afterSource,
+      Format format, boolean findCopies) throws IOException {
+    OutputStream output = new BufferedOutputStream(System.out, 64 * 1024);
+    Diff diff = new Diff(before, after, afterSource);
+    List<FileChange> changes = diff.findChanges(findCopies);
+    switch (format) {
+      case NAME_ONLY:
+        for (FileChange change : changes) {
+          write(output, change.getPath() + "\n");
+        }
+        break;
+      case NAME_STATUS:
+        for (FileChange change : changes) {
+          write(output, change.isMove()
+              ? change.status + String.format("%03d", change.score) + "\t" + change.oldPath + "\t" + change.newPath
+                  + "\n"
+              : change.status + "\t" + change.getPath() + "\n");
+        }
+        break;
+      case STAT:
+        List<FileStat> stats = new ArrayList<>();
+        runInOrder(changes, diff::countChanges, stats::add);
+        printStat(output, stats);
+        break;
+      default:
+        runInOrder(changes, diff::renderPatch, output::write);
+    }
+    output.flush();
+  }
+
+  /**
+   * Runs a task for every file on DIFF_THREADS workers and hands the results
+   * over in the order of the files. Only BATCH_SIZE tasks are in flight at a
+   * time.
+   */
+  private static <T> void runInOrder(List<FileChange> changes, ChangeTask<T> task, ResultHandler<T> handler)
+      throws IOException {
+    if (changes.size() <= 1 || DIFF_THREADS == 1) {
+      for (FileChange change : changes) {
+        handler.accept(task.run(change));
+      }
+      return;
+    }
+    ExecutorService workers = Executors.newFixedThreadPool(Math.min(DIFF_THREADS, changes.size()));
+    try {
+      for (int start = 0; start < changes.size(); start += BATCH_SIZE) {
+        List<Future<T>> pending = new ArrayList<>();
+        for (FileChange change : changes.subList(start, Math.min(changes.size(), start + BATCH_SIZE))) {
+          pending.add(workers.submit(() -> task.run(change)));
+        }
+        for (Future<T> result : pending) {
+          handler.accept(result.get());
+        }
+      }
+    } catch (ExecutionException excp) {
+      Throwable cause = excp.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IllegalArgumentException(cause);
+    } catch (InterruptedException excp) {
+      Thread.currentThread().interrupt();
+      throw new IllegalArgumentException("Interrupted while diffing files.");
+    } finally {
+      workers.shutdownNow();
+    }
+  }
+
+  /**
+   * Every file whose blob differs or that only one side has, with deleted and
+   * added files paired up where they're renames or copies.
+   *
+   * @return the changes, sorted by path
+   */
+  private List<FileChange> findChanges(boolean findCopies) throws IOException {
+    Map<String, String> deleted = new HashMap<>();
+    Map<String, String> added = new HashMap<>();
+    Map<String, String> modified = new HashMap<>();
+    for (Map.Entry<String, String> entry : this.before.entrySet()) {
+      String afterSHA1 = this.after.get(entry.getKey());
+      if (afterSHA1 == null) {
+        deleted.put(entry.getKey(), entry.getValue());
+      } else if (!afterSHA1.equals(entry.getValue())) {
+        modified.put(entry.getKey(), entry.getValue());
+      }
+    }
+    for (Map.Entry<String, String> entry : this.after.entrySet()) {
+      if (!this.before.containsKey(entry.getKey())) {
+        added.put(entry.getKey(), entry.getValue());
+      }
+    }
+    TreeMap<String, FileChange> changes = new TreeMap<>();
+    for (RenameDetector.Rename rename : RenameDetector.detect(deleted, added, findCopies ? modified : null,
+        OBJECT_STORE, this.afterSource)) {
+      added.remove(rename.getNewPath());
+      if (!rename.isCopy()) {
+        deleted.remove(rename.getOldPath());
+      }
+      changes.put(rename.getNewPath(), new FileChange(rename.isCopy() ? 'C' : 'R', rename.getOldPath(),
+          rename.getNewPath(), rename.getScore()));
+    }
+    for (String path : modified.keySet()) {
+      changes.put(path, new FileChange('M', path, path, 0));
+    }
+    for (String path : added.keySet()) {
+      changes.put(path, new FileChange('A', null, path, 0));
+    }
+    for (String path : deleted.keySet()) {
+      // A path can be deleted and another file renamed onto it
+      changes.putIfAbsent(path, new FileChange('D', path, null, 0));
+    }
+    return new ArrayList<>(changes.values());
+  }
+
+  private int[] readBefore(LineTable table, FileChange change) throws IOException {
+    return change.oldPath == null ? new int[0]
+        : table.read(OBJECT_STORE.open(change.oldPath, this.before.get(change.oldPath)));
+  }
+
+  private int[] readAfter(LineTable table, FileChange change) throws IOException {
+    return change.newPath == null ? new int[0]
+        : table.read(this.afterSource.open(change.newPath, this.after.get(change.newPath)));
+  }
+
+  /** The patch of one file, ready to be printed. */
+  private byte[] renderPatch(FileChange change) throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    String oldName = change.oldPath == null ? "/dev/null" : "a/" + change.oldPath;
+    String newName = change.newPath == null ? "/dev/null" : "b/" + change.newPath;
+    write(output, "diff --gitcopy a/" + (change.oldPath != null ? change.oldPath : change.newPath) + " b/"
+        + change.getPath() + "\n");
+    if (change.status == 'A') {
+      write(output, "new file\n");
+    } else if (change.status == 'D') {
+      write(output, "deleted file\n");
+    } else if (change.isMove()) {
+      String kind = change.status == 'R' ? "rename" : "copy";
+      write(output, "similarity index " + change.score + "%\n" + kind + " from " + change.oldPath + "\n" + kind
+          + " to " + change.newPath + "\n");
+    }
+    LineTable table = new LineTable();
+    int[] a = readBefore(table, change);
+    int[] b = readAfter(table, change);
+    if (a == null || b == null) {
+      write(output, "Binary files " + oldName + " and " + newName + " differ\n");
+      return output.toByteArray();
+    }
+    List<LineDiff.Edit> edits = LineDiff.diff(a, b);
+    if (edits.isEmpty()) {
+      return output.toByteArray();
+    }
+    write(output, "--- " + oldName + "\n");
+    write(output, "+++ " + newName + "\n");
+    // Edits closer together than twice the context share a hunk
+    int first = 0;
+    while (first < edits.size()) {
+      int last = first;
+      while (last + 1 < edits.size()
+          && edits.get(last + 1).getBeginA() - edits.get(last).getEndA() <= 2 * CONTEXT_LINES) {
+        last++;
+      }
+      writeHunk(output, table, a, b, edits.subList(first, last + 1));
+      first = last + 1;
+    }
+    return output.toByteArray();
+  }
+
+  private static void writeHunk(OutputStream output, LineTable table, int[] a, int[] b, List<LineDiff.Edit> edits)
+      throws IOException {
+    LineDiff.Edit firstEdit = edits.get(0);
+    LineDiff.Edit lastEdit = edits.get(edits.size() - 1);
+    int beginA = Math.max(0, firstEdit.getBeginA() - CONTEXT_LINES);
+    int beginB = firstEdit.getBeginB() - (firstEdit.getBeginA() - beginA);
+    int endA = Math.min(a.length, lastEdit.getEndA() + CONTEXT_LINES);
+    int endB = lastEdit.getEndB() + (endA - lastEdit.getEndA());
+    write(output, "@@ -" + hunkRange(beginA, endA - beginA) + " +" + hunkRange(beginB, endB - beginB) + " @@\n");
+    int positionA = beginA;
+    for (LineDiff.Edit edit : edits) {
+      writeLines(output, table, ' ', a, positionA, edit.getBeginA());
+      writeLines(output, table, '-', a, edit.getBeginA(), edit.getEndA());
+      writeLines(output, table, '+', b, edit.getBeginB(), edit.getEndB());
+      positionA = edit.getEndA();
+    }
+    writeLines(output, table, ' ', a, positionA, endA);
+  }
+
+  /** Start and length as unified diffs show them. An empty range names the line before it. */
+  private static String hunkRange(int begin, int length) {
+    if (length == 1) {
+      return String.valueOf(begin + 1);
+    }
+    return (length == 0 ? begin : begin + 1) + "," + length;
+  }
+
+  private static void writeLines(OutputStream output, LineTable table, char prefix, int[] lines, int begin,
+      int end) throws IOException {
+    for (int i = begin; i < end; i++) {
+      output.write(prefix);
+      table.write(output, lines[i]);
+      if (!table.endsWithNewline(lines[i])) {
+        write(output, "\n" + NO_NEWLINE);
+      }
+    }
+  }
+
+  /** Lines added and removed in one file. */
+  private FileStat countChanges(FileChange change) throws IOException {
+    LineTable table = new LineTable();
+    String path = change.getDisplayPath();
+    int[] a = readBefore(table, change);
+    int[] b = readAfter(table, change);
+    if (a == null || b == null) {
+      return new FileStat(path, -1, -1);
+    }
+    int added = 0;
+    int removed = 0;
+    for (LineDiff.Edit edit : LineDiff.diff(a, b)) {
+      added += edit.getEndB() - edit.getBeginB();
+      removed += edit.getEndA() - edit.getBeginA();
+    }
+    return new FileStat(path, added, removed);
+  }
+
+  private static void printStat(OutputStream output, List<FileStat> stats) throws IOException {
+    int nameWidth = 0;
+    int maxChanges = 0;
+    long insertions = 0;
+    long deletions = 0;
+    for (FileStat stat : stats) {
+      nameWidth = Math.max(nameWidth, stat.path.length());
+      if (!stat.isBinary()) {
+        maxChanges = Math.max(maxChanges, stat.insertions + stat.deletions);
+        insertions += stat.insertions;
+        deletions += stat.deletions;
+      }
+    }
+    int countWidth = Math.max(3, String.valueOf(maxChanges).length());
+    for (FileStat stat : stats) {
+      StringBuilder line = new StringBuilder(" ").append(stat.path);
+      line.append(" ".repeat(nameWidth - stat.path.length())).append(" | ");
+      if (stat.isBinary()) {
+        line.append("Bin");
+      } else {
+        int changes = stat.insertions + stat.deletions;
+        line.append(" ".repeat(countWidth - String.valueOf(changes).length())).append(changes);
+        // Bars are scaled down when the biggest change wouldn't fit
+        if (changes > 0) {
+          line.append(' ').append("+".repeat(scale(stat.insertions, maxChanges)))
+              .append("-".repeat(scale(stat.deletions, maxChanges)));
+        }
+      }
+      write(output, line.append('\n').toString());
+    }
+    write(output, " " + stats.size() + (stats.size() == 1 ? " file" : " files") + " changed, " + insertions
+        + (insertions == 1 ? " insertion(+), " : " insertions(+), ") + deletions
+        + (deletions == 1 ? " deletion(-)\n" : " deletions(-)\n"));
+  }
+
+  private static int scale(int count, int maxChanges) {
+    if (maxChanges <= STAT_BAR_WIDTH || count == 0) {
+      return count;
+    }
+    return Math.max(1, (int) ((long) count * STAT_BAR_WIDTH / maxChanges));
+  }
+
+  private static void write(OutputStream output, String text) throws IOException {
+    output.write(text.getBytes(StandardCharsets.UTF_8));
+  }
+
+}
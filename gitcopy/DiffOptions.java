@@ -0,0 +1,88 @@
+package gitcopy;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Arguments of 'java gitcopy.Main diff':
+ *
+ * <pre>
+ * diff                       working directory against the staging area
+ * diff --staged              staging area against HEAD
+ * diff [commit]              working directory against a commit
+ * diff --staged [commit]     staging area against a commit
+ * diff [commit] [commit]     one commit against another
+ * </pre>
+ *
+ * A commit is a branch name or a commit hash of at least 7 characters. --cached
+ * is the same as --staged. --stat, --name-only or --name-status change what is
+ * printed. Renamed files are always found, and -C or --find-copies also finds
+ * files copied from ones that were changed.
+ */
+public class DiffOptions {
+
+  private final List<String> commits = new ArrayList<>();
+  private boolean staged;
+  private Diff.Format format = Diff.Format.PATCH;
+  private boolean findCopies;
+
+  /**
+   * Reads the options of a diff command.
+   *
+   * @param args - The whole command, starting with "diff"
+   * @return the options
+   * @throws IllegalArgumentException if an option is unknown or there are too
+   *                                  many commits
+   */
+  public static DiffOptions parse(String[] args) {
+    DiffOptions options = new DiffOptions();
+    for (int i = 1; i < args.length; i++) {
+      switch (args[i]) {
+        case "--staged":
+        case "--cached":
+          options.staged = true;
+          break;
+        case "--stat":
+          options.format = Diff.Format.STAT;
+          break;
+        case "--name-only":
+          options.format = Diff.Format.NAME_ONLY;
+          break;
+        case "--name-status":
+          options.format = Diff.Format.NAME_STATUS;
+          break;
+        case "-C":
+        case "--find-copies":
+          options.findCopies = true;
+          break;
+        default:
+          if (args[i].startsWith("-")) {
+            throw new IllegalArgumentException("Unknown diff option " + args[i] + ".");
+          }
+          options.commits.add(args[i]);
+      }
+    }
+    if (options.commits.size() > 2 || (options.staged && options.commits.size() > 1)) {
+      throw new IllegalArgumentException("diff compares at most two commits, or one with --staged.");
+    }
+    return options;
+  }
+
+  /** Branches or hashes given, none, one or two of them. */
+  public List<String> getCommits() {
+    return this.commits;
+  }
+
+  public boolean isStaged() {
+    return this.staged;
+  }
+
+  public Diff.Format getFormat() {
+    return this.format;
+  }
+
+  public boolean isFindCopies() {
+    return this.findCopies;
+  }
+
+}
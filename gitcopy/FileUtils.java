@@ -1,21 +1,35 @@
 package gitcopy;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Formatter;
 import java.util.List;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 /**
  * This class provides some functions considered as utilities for
@@ -23,6 +37,21 @@ import java.util.List;
  */
 public class FileUtils {
 
+  /**
+   * Deflate level used for stored objects, from 0 (none) to 9 (smallest). Set it
+   * with -Dgitcopy.compression=[level]; the default is zlib's own default.
+   */
+  public static final int COMPRESSION_LEVEL = readCompressionLevel();
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private static int readCompressionLevel() {
+    int level = Integer.getInteger("gitcopy.compression", Deflater.DEFAULT_COMPRESSION);
+    if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+      throw new IllegalArgumentException("gitcopy.compression must be between 0 and 9.");
+    }
+    return level;
+  }
+
   /**
    * Converts the file into an array of bytes.
    * 
@@ -130,6 +159,94 @@ public class FileUtils {
     return currDirectory;
   }
 
+  /**
+   * Expands the paths given to a command into the files they name. A directory
+   * stands for every file below it, and a path with *, ?, [ or { in it is a
+   * glob matched against paths relative to the current directory. Anything
+   * else is kept as it is. The .gitcopy directory is never walked into.
+   *
+   * @param pathspecs - Files, directories or globs
+   * @return the matching files, relative to the current directory with "/"
+   *         between directories, in sorted order
+   */
+  public static List<String> collectFiles(String... pathspecs) {
+    Path currentDirectory = Paths.get(System.getProperty("user.dir"));
+    TreeSet<String> files = new TreeSet<>();
+    for (String pathspec : pathspecs) {
+      try {
+        if (isGlob(pathspec)) {
+          PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + toRepoPath(Paths.get(pathspec)));
+          Path walkRoot = currentDirectory.resolve(globBase(pathspec));
+          walkFiles(walkRoot, file -> {
+            String path = toRepoPath(currentDirectory.relativize(file));
+            if (matcher.matches(Paths.get(path))) {
+              files.add(path);
+            }
+          });
+        } else if (Files.isDirectory(currentDirectory.resolve(pathspec))) {
+          walkFiles(currentDirectory.resolve(pathspec),
+              file -> files.add(toRepoPath(currentDirectory.relativize(file))));
+        } else {
+          files.add(toRepoPath(Paths.get(pathspec)));
+        }
+      } catch (IOException excp) {
+        throw new IllegalArgumentException(excp.getMessage());
+      }
+    }
+    return List.copyOf(files);
+  }
+
+  private static void walkFiles(Path root, Consumer<Path> visitor) throws IOException {
+    if (!Files.isDirectory(root)) {
+      return;
+    }
+    Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes) {
+        if (directory.getFileName() != null && directory.getFileName().toString().equals(".gitcopy")) {
+          return FileVisitResult.SKIP_SUBTREE;
+        }
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+        if (attributes.isRegularFile()) {
+          visitor.accept(file);
+        }
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  private static boolean isGlob(String pathspec) {
+    return pathspec.chars().anyMatch(c -> c == '*' || c == '?' || c == '[' || c == '{');
+  }
+
+  /** The directories at the front of a glob that hold no wildcards. */
+  private static String globBase(String pathspec) {
+    Path base = Paths.get("");
+    for (Path segment : Paths.get(pathspec)) {
+      if (isGlob(segment.toString())) {
+        break;
+      }
+      base = base.resolve(segment);
+    }
+    return base.toString();
+  }
+
+  /** Normalizes a relative path and joins its parts with "/" on every system. */
+  public static String toRepoPath(Path path) {
+    StringBuilder repoPath = new StringBuilder();
+    for (Path segment : path.normalize()) {
+      if (repoPath.length() > 0) {
+        repoPath.append('/');
+      }
+      repoPath.append(segment);
+    }
+    return repoPath.toString();
+  }
+
   public static boolean validateGitCopyExists() {
     File gitCopy = findGitCopyRootDirectory();
     return isGitCopyDirectory(gitCopy);
@@ -144,27 +261,49 @@ public class FileUtils {
    * @return
    */
   public static String sha1(Object... vals) {
-    try {
-      MessageDigest md = MessageDigest.getInstance("SHA-1");
-      for (Object val : vals) {
-        if (val instanceof byte[]) {
-          md.update((byte[]) val);
-        } else if (val instanceof String) {
-          md.update(((String) val).getBytes(StandardCharsets.UTF_8));
-        } else {
-          throw new IllegalArgumentException("Improper type to sha1");
-        }
+    MessageDigest md = newSHA1Digest();
+    for (Object val : vals) {
+      if (val instanceof byte[]) {
+        md.update((byte[]) val);
+      } else if (val instanceof String) {
+        md.update(((String) val).getBytes(StandardCharsets.UTF_8));
+      } else {
+        throw new IllegalArgumentException("Improper type to sha1");
       }
-      Formatter result = new Formatter();
-      for (byte b : md.digest()) {
-        result.format("%02x", b);
-      }
-      return result.toString();
+    }
+    return toHex(md.digest());
+  }
+
+  /**
+   * Creates a fresh SHA-1 digest. Used when content is hashed piece by piece as
+   * it streams by instead of all at once.
+   */
+  public static MessageDigest newSHA1Digest() {
+    try {
+      return MessageDigest.getInstance("SHA-1");
     } catch (NoSuchAlgorithmException excp) {
       throw new IllegalArgumentException("System doesn't support SHA-1");
     }
   }
 
+  /** Formats a digest as a lowercase hexadecimal string. */
+  public static String toHex(byte[] digest) {
+    Formatter result = new Formatter();
+    for (byte b : digest) {
+      result.format("%02x", b);
+    }
+    return result.toString();
+  }
+
+  /** Parses a hexadecimal string such as a SHA1 back into bytes. */
+  public static byte[] fromHex(String hex) {
+    byte[] bytes = new byte[hex.length() / 2];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+    }
+    return bytes;
+  }
+
   /**
    * Converts a List<Object> to an array and then calculates
    * the SHA-1 hash of the concatenation of the elements in the list.
@@ -174,8 +313,19 @@ public class FileUtils {
     return sha1(vals.toArray(new Object[vals.size()]));
   }
 
+  /**
+   * Serializes the object straight into a compressed file, without building the
+   * serialized bytes in memory first.
+   */
   public static void writeSerializedObjectToFile(File file, Serializable object) {
-    writeContentsToFile(file, serialize(object));
+    validateFile(file);
+    try (ObjectOutputStream objectStream = new ObjectOutputStream(
+        newCompressingStream(new BufferedOutputStream(Files.newOutputStream(file.toPath()))))) {
+      objectStream.writeObject(object);
+    } catch (IOException exception) {
+      throw new IllegalArgumentException(
+          "There was an error in writing the contents to file: " + exception.getMessage());
+    }
   }
 
   public static byte[] serialize(Serializable object) {
@@ -200,16 +350,116 @@ public class FileUtils {
   public static <T extends Serializable> T deserialize(File file,
       Class<T> expectedClass) {
     try {
-      ObjectInputStream in = new ObjectInputStream(new FileInputStream(file));
-      T result = expectedClass.cast(in.readObject());
-      in.close();
-      return result;
+      return deserialize(new FileInputStream(file), expectedClass);
+    } catch (IOException excp) {
+      throw new IllegalArgumentException(excp.getMessage());
+    }
+  }
+
+  /**
+   * Deserializes an object from a stream, e.g. one opened on a packed object.
+   * The stream is closed afterwards.
+   * 
+   * @param inputStream - Stream holding the serialized object
+   * @return Deserialized object
+   */
+  public static <T extends Serializable> T deserialize(InputStream inputStream,
+      Class<T> expectedClass) {
+    try (ObjectInputStream in = new ObjectInputStream(newDecompressingStream(inputStream))) {
+      return expectedClass.cast(in.readObject());
     } catch (IOException | ClassCastException
         | ClassNotFoundException excp) {
       throw new IllegalArgumentException(excp.getMessage());
     }
   }
 
+  /**
+   * Wraps a stream so everything written to it is deflated at
+   * COMPRESSION_LEVEL. Closing the returned stream closes the wrapped one.
+   * 
+   * @param outputStream - Stream the compressed bytes go to
+   * @return OutputStream that compresses on the way through
+   */
+  public static OutputStream newCompressingStream(OutputStream outputStream) {
+    Deflater deflater = new Deflater(COMPRESSION_LEVEL);
+    return new DeflaterOutputStream(outputStream, deflater, BUFFER_SIZE) {
+      @Override
+      public void close() throws IOException {
+        try {
+          super.close();
+        } finally {
+          deflater.end();
+        }
+      }
+    };
+  }
+
+  /**
+   * Checks if deflating the bytes saves enough space to be worth it. Content
+   * that doesn't shrink by at least an eighth, like media or archives, is
+   * better stored as is, where checkout can copy it without decoding.
+   * 
+   * @param sample - Content, or the first part of it
+   * @param length - Number of bytes of sample to look at
+   * @return true if the content should be stored compressed
+   */
+  public static boolean isWorthCompressing(byte[] sample, int length) {
+    if (COMPRESSION_LEVEL == Deflater.NO_COMPRESSION || length == 0) {
+      return false;
+    }
+    Deflater deflater = new Deflater(COMPRESSION_LEVEL);
+    try {
+      deflater.setInput(sample, 0, length);
+      deflater.finish();
+      byte[] output = new byte[BUFFER_SIZE];
+      long compressedLength = 0;
+      while (!deflater.finished()) {
+        compressedLength += deflater.deflate(output);
+      }
+      return compressedLength <= length - length / 8;
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /**
+   * Wraps a stream of stored bytes so it reads back uncompressed. Objects that
+   * didn't compress well are stored as they are, which their first bytes tell
+   * apart, and are read straight through.
+   * 
+   * @param inputStream - Stream over stored bytes, compressed or not
+   * @return InputStream over the uncompressed bytes
+   */
+  public static InputStream newDecompressingStream(InputStream inputStream) throws IOException {
+    BufferedInputStream bufferedStream = new BufferedInputStream(inputStream, BUFFER_SIZE);
+    bufferedStream.mark(2);
+    int first = bufferedStream.read();
+    int second = bufferedStream.read();
+    bufferedStream.reset();
+    if (isZlibHeader(first, second)) {
+      return new InflaterInputStream(bufferedStream, new Inflater(), BUFFER_SIZE) {
+        @Override
+        public void close() throws IOException {
+          try {
+            super.close();
+          } finally {
+            inf.end();
+          }
+        }
+      };
+    }
+    return bufferedStream;
+  }
+
+  /**
+   * A zlib stream starts with a deflate method byte and a check byte that makes
+   * the pair a multiple of 31. An uncompressed object header ("blob ...") can't
+   * look like that.
+   */
+  static boolean isZlibHeader(int first, int second) {
+    return first != -1 && second != -1 && (first & 0x0F) == 8 && ((first << 8) | second) % 31 == 0;
+  }
+
   public static void writeContentsToFile(File file, Object... content) {
     try {
       validateFile(file);
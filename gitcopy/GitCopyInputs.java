@@ -0,0 +1,9 @@
+package gitcopy;
+
+/** Commands that move a file or the repo from one state to another. */
+public enum GitCopyInputs {
+  INIT,
+  ADD,
+  COMMIT,
+  REMOVE,
+}
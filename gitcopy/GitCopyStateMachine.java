@@ -1,9 +1,16 @@
 package gitcopy;
 
-import java.io.IOException;
 import java.io.Serializable;
 
 public class GitCopyStateMachine extends StateMachine implements Serializable {
+  private static final long serialVersionUID = 6765098598389409728L;
+
+  // Adding a file that is already staged keeps it staged
+  private static final Transitions TRANSITIONS = new Transitions()
+      .on(GitCopyInputs.ADD, GitCopyStates.UNSTAGED, GitCopyStates.STAGED)
+      .on(GitCopyInputs.ADD, GitCopyStates.STAGED, GitCopyStates.STAGED)
+      .on(GitCopyInputs.COMMIT, GitCopyStates.STAGED, GitCopyStates.UNSTAGED)
+      .removeOn(GitCopyInputs.REMOVE, GitCopyStates.STAGED, GitCopyStates.UNSTAGED);
 
   /**
    * Initialize the state machine. Data contained in hashmap
@@ -15,31 +22,13 @@ public class GitCopyStateMachine extends StateMachine implements Serializable {
     super();
   }
 
-  /**
-   * Transitions state depending on the input given and the current state.
-   * 
-   * @param input
-   * @param filename
-   * @throws IOException
-   */
-  public void transitionState(String input, String filename) throws IOException {
-    GitCopyStates currState = this.getCurrentStateOfFile(filename);
-    switch (input) {
-      case "add":
-        if (currState == GitCopyStates.UNSTAGED) {
-          this.updateFileAndStateToMachine(filename, GitCopyStates.STAGED, false);
-          break;
-        }
-      case "commit":
-        if (currState == GitCopyStates.STAGED) {
-          this.updateFileAndStateToMachine(filename, GitCopyStates.UNSTAGED, false);
-          break;
-        }
-      case "remove":
-        if (currState == GitCopyStates.STAGED || currState == GitCopyStates.UNSTAGED) {
-          this.updateFileAndStateToMachine(filename, GitCopyStates.UNSTAGED, true);
-          break;
-        }
-    }
+  /** Rebuilds the state machine of a branch from its saved states. */
+  GitCopyStateMachine(PersistentMap<String, GitCopyStates> states) {
+    super(states);
+  }
+
+  @Override
+  protected Transitions transitions() {
+    return TRANSITIONS;
   }
 }
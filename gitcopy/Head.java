@@ -1,50 +1,263 @@
 package gitcopy;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
+/**
+ * Reads and writes refs. Refs are small text files:
+ *
+ * <pre>
+ * HEAD              "ref: [branch]" while on a branch, or "[sha1]" when detached
+ * .branches/[name]  "[sha1]" of the branch's head commit
+ * packed-refs       "[sha1] [name]" per line, sorted by name
+ * MERGE_HEAD        "[sha1]" per line of each branch a conflicted merge is
+ *                   bringing in, until the merge is committed
+ * </pre>
+ *
+ * A loose file in .branches always wins over the same branch in packed-refs.
+ * gc moves loose branches into packed-refs so repos with thousands of branches
+ * don't need thousands of files.
+ */
 public class Head {
 
   private static String GITCOPY_FOLDER = FileUtils.findGitCopyRootDirectory().getAbsolutePath() + File.separator
       + ".gitcopy";
   private static String BRANCHES_FOLDER = GITCOPY_FOLDER + File.separator + ".branches";
+  private static final String PACKED_REFS_FILE = "packed-refs";
+  private static final String SYMBOLIC_REF_PREFIX = "ref: ";
+  private static final String MERGE_HEAD_FILE = "MERGE_HEAD";
 
-  /** USED FOR BRANCHES REFERENCE POINTERS ONLY */
-  public static void setGlobalHead(String branchName, Commit commit) throws IOException {
-    Branch branch = new Branch(branchName, commit);
-    FileUtils.saveObjectToFileDisk("HEAD", GITCOPY_FOLDER, branch);
+  /** Points HEAD at a branch. USED FOR BRANCHES REFERENCE POINTERS ONLY */
+  public static void setGlobalHead(String branchName) throws IOException {
+    writeRef(new File(GITCOPY_FOLDER, "HEAD"), SYMBOLIC_REF_PREFIX + branchName);
   }
 
-  /** USED FOR BRANCHES REFERENCE POINTERS ONLY */
-  public static void setBranchHead(String branchName, Commit commit) throws IOException {
-    Branch branch = new Branch(branchName, commit);
-    FileUtils.saveObjectToFileDisk(branchName, BRANCHES_FOLDER, branch);
+  /** Points a branch at a commit. USED FOR BRANCHES REFERENCE POINTERS ONLY */
+  public static void setBranchHead(String branchName, String commitSHA1) throws IOException {
+    writeRef(new File(BRANCHES_FOLDER, branchName), commitSHA1);
   }
 
   /**
-   * USED ONLY FOR CHECKOUT COMMIT
+   * Detaches HEAD at a commit. USED ONLY FOR CHECKOUT COMMIT
    */
   public static void setGlobalHead(Commit commit) throws IOException {
-    FileUtils.saveObjectToFileDisk("HEAD", GITCOPY_FOLDER, commit);
+    writeRef(new File(GITCOPY_FOLDER, "HEAD"), commit.getSHA1());
+  }
+
+  /**
+   * Points the branch HEAD is on at a commit, or moves a detached HEAD to it.
+   *
+   * @param commitSHA1 - SHA1 of the new head commit
+   */
+  public static void advanceGlobalHead(String commitSHA1) throws IOException {
+    String branchName = getGlobalHeadBranchName();
+    if (branchName == null) {
+      writeRef(new File(GITCOPY_FOLDER, "HEAD"), commitSHA1);
+    } else {
+      setBranchHead(branchName, commitSHA1);
+    }
+  }
+
+  /** Name of the branch HEAD is on, or null when HEAD is detached. */
+  public static String getGlobalHeadBranchName() {
+    String head = readRef(new File(GITCOPY_FOLDER, "HEAD"));
+    if (head.startsWith(SYMBOLIC_REF_PREFIX)) {
+      return head.substring(SYMBOLIC_REF_PREFIX.length());
+    }
+    return null;
   }
 
   public static String getGlobalHeadCommitSHA1() {
-    Branch branch = FileUtils.loadObject(Branch.class, "HEAD", GITCOPY_FOLDER);
-    return branch.getCommitHeadSHA1();
+    String head = readRef(new File(GITCOPY_FOLDER, "HEAD"));
+    if (head.startsWith(SYMBOLIC_REF_PREFIX)) {
+      return getBranchHeadCommitSHA1(head.substring(SYMBOLIC_REF_PREFIX.length()));
+    }
+    return head;
   }
 
   public static Commit getGlobalHeadCommit() {
-    Branch branch = FileUtils.loadObject(Branch.class, "HEAD", GITCOPY_FOLDER);
-    return branch.getHead();
+    return Commit.loadCommit(getGlobalHeadCommitSHA1());
+  }
+
+  /**
+   * Looks up the head commit of a branch, in its loose file first and then in
+   * packed-refs.
+   *
+   * @param branchName - Name of the branch
+   * @return SHA1 of the head commit, or null if there is no such branch
+   */
+  public static String getBranchHeadCommitSHA1(String branchName) {
+    File looseRef = new File(BRANCHES_FOLDER, branchName);
+    if (looseRef.isFile()) {
+      return readRef(looseRef);
+    }
+    return readPackedRefs().get(branchName);
   }
 
   public static Commit getBranchHeadCommit(String branchName) {
-    Branch branch = getBranch(branchName);
-    return branch.getHead();
+    String commitSHA1 = getBranchHeadCommitSHA1(branchName);
+    if (commitSHA1 == null) {
+      throw new IllegalArgumentException("No branch named " + branchName + " exists.");
+    }
+    return Commit.loadCommit(commitSHA1);
+  }
+
+  /**
+   * Records the commits a merge that stopped on conflicts was bringing in, so
+   * the commit that finishes it gets them as parents.
+   *
+   * @param commitSHA1s - SHA1s of the merged branch heads
+   */
+  public static void setMergeHeads(List<String> commitSHA1s) throws IOException {
+    writeAtomically(new File(GITCOPY_FOLDER, MERGE_HEAD_FILE), String.join("\n", commitSHA1s) + "\n");
+  }
+
+  /** Commits of the merge in progress, or an empty list if there is none. */
+  public static List<String> getMergeHeads() {
+    File mergeHeadFile = new File(GITCOPY_FOLDER, MERGE_HEAD_FILE);
+    List<String> commitSHA1s = new ArrayList<>();
+    if (!mergeHeadFile.isFile()) {
+      return commitSHA1s;
+    }
+    try {
+      for (String line : Files.readAllLines(mergeHeadFile.toPath(), StandardCharsets.UTF_8)) {
+        if (isSHA1(line.trim())) {
+          commitSHA1s.add(line.trim());
+        }
+      }
+    } catch (IOException excp) {
+      throw new IllegalArgumentException(excp.getMessage());
+    }
+    return commitSHA1s;
+  }
+
+  /** Forgets the merge in progress once it's committed. */
+  public static void clearMergeHeads() throws IOException {
+    Files.deleteIfExists(new File(GITCOPY_FOLDER, MERGE_HEAD_FILE).toPath());
+  }
+
+  public static boolean branchExists(String branchName) {
+    return getBranchHeadCommitSHA1(branchName) != null;
+  }
+
+  /** Names of every branch, loose or packed, in sorted order. */
+  public static List<String> getBranchNames() {
+    Map<String, String> refs = readPackedRefs();
+    File[] looseRefs = new File(BRANCHES_FOLDER).listFiles();
+    if (looseRefs != null) {
+      for (File looseRef : looseRefs) {
+        refs.put(looseRef.getName(), null);
+      }
+    }
+    return new ArrayList<>(refs.keySet());
+  }
+
+  /** Removes a branch from both its loose file and packed-refs. */
+  public static void deleteBranch(String branchName) throws IOException {
+    Files.deleteIfExists(new File(BRANCHES_FOLDER, branchName).toPath());
+    Map<String, String> packedRefs = readPackedRefs();
+    if (packedRefs.remove(branchName) != null) {
+      writePackedRefs(packedRefs);
+    }
+  }
+
+  /**
+   * Moves every loose branch into packed-refs. The table is written before any
+   * loose file is removed, so a branch is readable at every point.
+   *
+   * @return number of branches that were packed
+   */
+  public static int packRefs() throws IOException {
+    File[] looseRefs = new File(BRANCHES_FOLDER).listFiles();
+    if (looseRefs == null || looseRefs.length == 0) {
+      return 0;
+    }
+    Map<String, String> packedRefs = readPackedRefs();
+    for (File looseRef : looseRefs) {
+      packedRefs.put(looseRef.getName(), readRef(looseRef));
+    }
+    writePackedRefs(packedRefs);
+    for (File looseRef : looseRefs) {
+      Files.delete(looseRef.toPath());
+    }
+    return looseRefs.length;
+  }
+
+  private static TreeMap<String, String> readPackedRefs() {
+    TreeMap<String, String> refs = new TreeMap<>();
+    File packedRefs = new File(GITCOPY_FOLDER, PACKED_REFS_FILE);
+    if (!packedRefs.isFile()) {
+      return refs;
+    }
+    try (BufferedReader reader = Files.newBufferedReader(packedRefs.toPath(), StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        int separator = line.indexOf(' ');
+        if (separator > 0) {
+          refs.put(line.substring(separator + 1), line.substring(0, separator));
+        }
+      }
+    } catch (IOException excp) {
+      throw new IllegalArgumentException(excp.getMessage());
+    }
+    return refs;
+  }
+
+  private static void writePackedRefs(Map<String, String> refs) throws IOException {
+    StringBuilder table = new StringBuilder();
+    for (Map.Entry<String, String> ref : refs.entrySet()) {
+      table.append(ref.getValue()).append(' ').append(ref.getKey()).append('\n');
+    }
+    writeAtomically(new File(GITCOPY_FOLDER, PACKED_REFS_FILE), table.toString());
+  }
+
+  /** Reads the single line of a ref file. */
+  private static String readRef(File refFile) {
+    try {
+      String ref = new String(Files.readAllBytes(refFile.toPath()), StandardCharsets.UTF_8).trim();
+      if (!ref.startsWith(SYMBOLIC_REF_PREFIX) && !isSHA1(ref)) {
+        throw new IllegalArgumentException("The ref " + refFile.getName() + " is corrupt.");
+      }
+      return ref;
+    } catch (IOException excp) {
+      throw new IllegalArgumentException(excp.getMessage());
+    }
+  }
+
+  private static void writeRef(File refFile, String ref) throws IOException {
+    writeAtomically(refFile, ref + "\n");
+  }
+
+  /** Writes to a temp file first, so readers never see a half written ref. */
+  private static void writeAtomically(File file, String contents) throws IOException {
+    Path tempFile = Files.createTempFile(new File(GITCOPY_FOLDER).toPath(), "tmp_", ".ref");
+    try {
+      Files.write(tempFile, contents.getBytes(StandardCharsets.UTF_8));
+      Files.move(tempFile, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tempFile);
+    }
   }
 
-  public static Branch getBranch(String branchName) {
-    return FileUtils.loadObject(Branch.class, branchName, BRANCHES_FOLDER);
+  private static boolean isSHA1(String ref) {
+    if (ref.length() != 40) {
+      return false;
+    }
+    for (int i = 0; i < ref.length(); i++) {
+      if (Character.digit(ref.charAt(i), 16) < 0) {
+        return false;
+      }
+    }
+    return true;
   }
 
 }
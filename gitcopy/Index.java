@@ -0,0 +1,244 @@
+package gitcopy;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The staging area, and what each added file looked like on disk when it was
+ * hashed: its size, modification time and inode, along with its blob. Kept in
+ * .gitcopy/index:
+ *
+ * <pre>
+ * "GCIN" [version] [count] then per file, sorted by path:
+ *   [path] [blob sha1] [size] [mtime in ns] [file key] [mode]
+ * [staged count] then per staged path, sorted:
+ *   [path] [blob sha1, or "" if the file is staged for removal]
+ * </pre>
+ *
+ * Staged entries only point at objects already in the store. Committing clears
+ * them, so a commit costs a single rewrite of this file.
+ *
+ * There is one staging area for the whole repository, not one per branch, so
+ * the head can't move while anything is staged.
+ *
+ * If a file's stat still matches its entry, its content hasn't changed and add
+ * can reuse the blob without opening the file.
+ *
+ * A file changed twice within one tick of the file system's clock keeps the
+ * same mtime, so an entry can only be trusted if the file had already stopped
+ * changing when it was hashed. Files whose mtime was within RACY_WINDOW of the
+ * time they were hashed are recorded without a usable stat, and are hashed
+ * again the next time they're added.
+ */
+public class Index {
+
+  private static final int INDEX_MAGIC = 0x4743494E; // "GCIN"
+  private static final int INDEX_VERSION = 2;
+  // Covers the coarsest common timestamp granularity, FAT's 2 seconds
+  private static final long RACY_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(2);
+  // Size recorded for racy entries, which never matches a real file
+  private static final long SMUDGED_SIZE = -1;
+  private static final String REMOVED = "";
+
+  private final File indexFile;
+  private final TreeMap<String, Entry> entries;
+  // Staged paths mapped to their blob SHA1, or to REMOVED
+  private final TreeMap<String, String> staged;
+  private boolean changed;
+
+  /** What a file looked like when its blob was made. */
+  public static class Entry {
+    private final String blobSHA1;
+    private final long size;
+    private final long modifiedNanos;
+    private final String fileKey;
+    private final int mode;
+
+    Entry(String blobSHA1, long size, long modifiedNanos, String fileKey, int mode) {
+      this.blobSHA1 = blobSHA1;
+      this.size = size;
+      this.modifiedNanos = modifiedNanos;
+      this.fileKey = fileKey;
+      this.mode = mode;
+    }
+
+    public String getBlobSHA1() {
+      return this.blobSHA1;
+    }
+
+    /** Rebuilds the blob of the file without reading it. */
+    public Blob toBlob(String path) {
+      return new Blob(path, this.blobSHA1, this.size, this.mode);
+    }
+
+    private boolean matches(BasicFileAttributes attributes) {
+      return this.size == attributes.size()
+          && this.modifiedNanos == attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS)
+          && this.fileKey.equals(fileKeyOf(attributes));
+    }
+  }
+
+  private Index(File indexFile, TreeMap<String, Entry> entries, TreeMap<String, String> staged) {
+    this.indexFile = indexFile;
+    this.entries = entries;
+    this.staged = staged;
+  }
+
+  /** Reads the index, or starts an empty one if there is none yet. */
+  public static Index load() throws IOException {
+    File indexFile = new File(Repo.INDEX_FILE);
+    TreeMap<String, Entry> entries = new TreeMap<>();
+    TreeMap<String, String> staged = new TreeMap<>();
+    if (!indexFile.exists()) {
+      return new Index(indexFile, entries, staged);
+    }
+    try (DataInputStream inputStream = new DataInputStream(
+        new BufferedInputStream(Files.newInputStream(indexFile.toPath())))) {
+      if (inputStream.readInt() != INDEX_MAGIC || inputStream.readInt() != INDEX_VERSION) {
+        throw new IllegalArgumentException("The index is corrupt.");
+      }
+      int count = inputStream.readInt();
+      for (int i = 0; i < count; i++) {
+        String path = inputStream.readUTF();
+        String blobSHA1 = inputStream.readUTF();
+        long size = inputStream.readLong();
+        long modifiedNanos = inputStream.readLong();
+        String fileKey = inputStream.readUTF();
+        int mode = inputStream.readInt();
+        entries.put(path, new Entry(blobSHA1, size, modifiedNanos, fileKey, mode));
+      }
+      int stagedCount = inputStream.readInt();
+      for (int i = 0; i < stagedCount; i++) {
+        String path = inputStream.readUTF();
+        staged.put(path, inputStream.readUTF());
+      }
+    }
+    return new Index(indexFile, entries, staged);
+  }
+
+  /**
+   * Looks up the entry of a file if its stat still matches it.
+   *
+   * @param path       - Path of the file
+   * @param attributes - Current stat of the file
+   * @param mode       - Current mode of the file, e.g. Blob.EXECUTABLE_MODE
+   * @return the entry, or null if the file has to be hashed
+   */
+  public Entry getUnchanged(String path, BasicFileAttributes attributes, int mode) {
+    Entry entry = this.entries.get(path);
+    if (entry == null || entry.mode != mode || !entry.matches(attributes)) {
+      return null;
+    }
+    return entry;
+  }
+
+  /**
+   * Records the blob made from a file. The blob has to be in the store, since
+   * add reuses the blob of a matching entry without writing it.
+   *
+   * @param path       - Path of the file
+   * @param attributes - Stat of the file taken before it was hashed
+   * @param hashedAt   - Time in ns since the epoch from before the stat was taken
+   * @param blob       - Blob made from the file
+   */
+  public void record(String path, BasicFileAttributes attributes, long hashedAt, Blob blob) {
+    long modifiedNanos = attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+    long size = modifiedNanos < hashedAt - RACY_WINDOW_NANOS ? attributes.size() : SMUDGED_SIZE;
+    this.entries.put(path, new Entry(blob.getBlobSHA1(), size, modifiedNanos, fileKeyOf(attributes),
+        blob.getMode()));
+    this.changed = true;
+  }
+
+  /** Stages a file with the blob it should be committed with. */
+  public void stage(String path, String blobSHA1) {
+    this.staged.put(path, blobSHA1);
+    this.changed = true;
+  }
+
+  /** Stages the removal of a file. */
+  public void stageRemoval(String path) {
+    this.staged.put(path, REMOVED);
+    this.entries.remove(path);
+    this.changed = true;
+  }
+
+  /** Whether anything is staged. */
+  public boolean hasStaged() {
+    return !this.staged.isEmpty();
+  }
+
+  /**
+   * Everything staged for the next commit.
+   *
+   * @return staged paths mapped to the SHA1 of their blob, or to null if the
+   *         file is staged for removal
+   */
+  public Map<String, String> getStaged() {
+    Map<String, String> changes = new TreeMap<>();
+    for (Map.Entry<String, String> entry : this.staged.entrySet()) {
+      changes.put(entry.getKey(), entry.getValue().equals(REMOVED) ? null : entry.getValue());
+    }
+    return changes;
+  }
+
+  /** Empties the staging area once it's been committed. */
+  public void clearStaged() {
+    if (!this.staged.isEmpty()) {
+      this.staged.clear();
+      this.changed = true;
+    }
+  }
+
+  /** Writes the index back if anything was recorded. */
+  public void save() throws IOException {
+    if (!this.changed) {
+      return;
+    }
+    Path tempFile = Files.createTempFile(this.indexFile.getParentFile().toPath(), "tmp_", ".index");
+    try {
+      try (DataOutputStream outputStream = new DataOutputStream(
+          new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+        outputStream.writeInt(INDEX_MAGIC);
+        outputStream.writeInt(INDEX_VERSION);
+        outputStream.writeInt(this.entries.size());
+        for (Map.Entry<String, Entry> entry : this.entries.entrySet()) {
+          Entry value = entry.getValue();
+          outputStream.writeUTF(entry.getKey());
+          outputStream.writeUTF(value.blobSHA1);
+          outputStream.writeLong(value.size);
+          outputStream.writeLong(value.modifiedNanos);
+          outputStream.writeUTF(value.fileKey);
+          outputStream.writeInt(value.mode);
+        }
+        outputStream.writeInt(this.staged.size());
+        for (Map.Entry<String, String> entry : this.staged.entrySet()) {
+          outputStream.writeUTF(entry.getKey());
+          outputStream.writeUTF(entry.getValue());
+        }
+      }
+      Files.move(tempFile, this.indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tempFile);
+    }
+    this.changed = false;
+  }
+
+  /** The inode of a file where the file system has one, e.g. "(dev=802,ino=1234)". */
+  private static String fileKeyOf(BasicFileAttributes attributes) {
+    Object fileKey = attributes.fileKey();
+    return fileKey == null ? "" : fileKey.toString();
+  }
+
+}
@@ -0,0 +1,287 @@
+package gitcopy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shortest edit script between two sequences of lines, found with Myers'
+ * O(ND) algorithm in its linear space form. Lines are compared as ints, so the
+ * caller maps equal lines to equal numbers first (see ContentMerge).
+ *
+ * Instead of keeping every furthest reaching path, the search runs from both
+ * ends at once until the two meet, splits the problem at that point and
+ * recurses on each half. Memory stays proportional to the number of lines,
+ * whatever the number of differences. Common leading and trailing lines are
+ * skipped before each search, which is where most of the time goes for files
+ * that only changed in a few places.
+ *
+ * Myers takes time in the product of the length and the number of
+ * differences, which hurts on big files with many changes. Ranges larger than
+ * HISTOGRAM_THRESHOLD are first split the way histogram diff does: on the line
+ * that occurs least often in a, taking the longest run of matching lines
+ * around it. Ranges with nothing in common become one edit straight away, and
+ * ranges where every shared line is too common fall back to Myers.
+ */
+public class LineDiff {
+
+  // Product of the two range lengths above which a rare line is looked for
+  private static final long HISTOGRAM_THRESHOLD = 1 << 16;
+  // Lines occurring more often than this in a aren't used to split on
+  private static final int MAX_OCCURRENCES = 64;
+  private static final int[] NO_COMMON_LINE = new int[0];
+
+  /**
+   * A range of lines in a replaced by a range of lines in b. An empty a range
+   * is an insertion, an empty b range a deletion. Ends are exclusive.
+   */
+  public static class Edit {
+    private final int beginA;
+    private int endA;
+    private final int beginB;
+    private int endB;
+
+    Edit(int beginA, int endA, int beginB, int endB) {
+      this.beginA = beginA;
+      this.endA = endA;
+      this.beginB = beginB;
+      this.endB = endB;
+    }
+
+    public int getBeginA() {
+      return this.beginA;
+    }
+
+    public int getEndA() {
+      return this.endA;
+    }
+
+    public int getBeginB() {
+      return this.beginB;
+    }
+
+    public int getEndB() {
+      return this.endB;
+    }
+
+    @Override
+    public String toString() {
+      return "Edit[" + this.beginA + "-" + this.endA + "," + this.beginB + "-" + this.endB + "]";
+    }
+  }
+
+  private final int[] a;
+  private final int[] b;
+  private final List<Edit> edits = new ArrayList<>();
+
+  private LineDiff(int[] a, int[] b) {
+    this.a = a;
+    this.b = b;
+  }
+
+  /**
+   * Diffs two sequences of line ids.
+   *
+   * @param a - Lines before
+   * @param b - Lines after
+   * @return the edits turning a into b, in order and never touching each other
+   */
+  public static List<Edit> diff(int[] a, int[] b) {
+    LineDiff diff = new LineDiff(a, b);
+    diff.diffRange(0, a.length, 0, b.length);
+    return diff.edits;
+  }
+
+  private void diffRange(int beginA, int endA, int beginB, int endB) {
+    // The first half of every split recurses, the second half loops
+    while (true) {
+      while (beginA < endA && beginB < endB && this.a[beginA] == this.b[beginB]) {
+        beginA++;
+        beginB++;
+      }
+      while (beginA < endA && beginB < endB && this.a[endA - 1] == this.b[endB - 1]) {
+        endA--;
+        endB--;
+      }
+      if (beginA == endA || beginB == endB) {
+        if (beginA < endA || beginB < endB) {
+          addEdit(beginA, endA, beginB, endB);
+        }
+        return;
+      }
+      if ((long) (endA - beginA) * (endB - beginB) > HISTOGRAM_THRESHOLD) {
+        int[] match = findRareMatch(beginA, endA, beginB, endB);
+        if (match == NO_COMMON_LINE) {
+          addEdit(beginA, endA, beginB, endB);
+          return;
+        }
+        if (match != null) {
+          diffRange(beginA, match[0], beginB, match[1]);
+          beginA = match[2];
+          beginB = match[3];
+          continue;
+        }
+      }
+      long split = findSplit(beginA, endA, beginB, endB);
+      if (split < 0) {
+        // Nothing in common at all
+        addEdit(beginA, endA, beginB, endB);
+        return;
+      }
+      int splitA = (int) (split >>> 32);
+      int splitB = (int) split;
+      diffRange(beginA, splitA, beginB, splitB);
+      beginA = splitA;
+      beginB = splitB;
+    }
+  }
+
+  /**
+   * Finds the run of matching lines to split a large range on, anchored on the
+   * line of b that occurs least often in a. Ties go to the longest run.
+   *
+   * @return the run as {beginA, beginB, endA, endB}, NO_COMMON_LINE if the
+   *         ranges share no line, or null if every shared line is too common
+   */
+  private int[] findRareMatch(int beginA, int endA, int beginB, int endB) {
+    // Per line of a: how often it occurs and where it first does
+    Map<Integer, int[]> occurrences = new HashMap<>();
+    for (int i = beginA; i < endA; i++) {
+      int[] occurrence = occurrences.get(this.a[i]);
+      if (occurrence == null) {
+        occurrences.put(this.a[i], new int[] {1, i});
+      } else {
+        occurrence[0]++;
+      }
+    }
+    boolean shared = false;
+    int bestCount = MAX_OCCURRENCES + 1;
+    int[] best = null;
+    for (int j = beginB; j < endB; j++) {
+      int[] occurrence = occurrences.get(this.b[j]);
+      if (occurrence == null) {
+        continue;
+      }
+      shared = true;
+      if (occurrence[0] > MAX_OCCURRENCES || occurrence[0] > bestCount) {
+        continue;
+      }
+      int matchBeginA = occurrence[1];
+      int matchBeginB = j;
+      while (matchBeginA > beginA && matchBeginB > beginB && this.a[matchBeginA - 1] == this.b[matchBeginB - 1]) {
+        matchBeginA--;
+        matchBeginB--;
+      }
+      int matchEndA = occurrence[1] + 1;
+      int matchEndB = j + 1;
+      while (matchEndA < endA && matchEndB < endB && this.a[matchEndA] == this.b[matchEndB]) {
+        matchEndA++;
+        matchEndB++;
+      }
+      if (best == null || occurrence[0] < bestCount || matchEndB - matchBeginB > best[3] - best[1]) {
+        bestCount = occurrence[0];
+        best = new int[] {matchBeginA, matchBeginB, matchEndA, matchEndB};
+      }
+      // Lines inside the run would only find the same run again
+      j = Math.max(j, matchEndB - 1);
+    }
+    return shared ? best : NO_COMMON_LINE;
+  }
+
+  /**
+   * Searches forwards from the start and backwards from the end until the two
+   * searches overlap, which happens on a shortest edit path.
+   *
+   * @return the point where they met, a's line in the upper 32 bits and b's in
+   *         the lower, or -1 if the ranges share no line
+   */
+  private long findSplit(int beginA, int endA, int beginB, int endB) {
+    int n = endA - beginA;
+    int m = endB - beginB;
+    int maxD = (n + m + 1) / 2;
+    int offset = maxD;
+    int length = 2 * maxD + 2;
+    // Furthest x reached on each diagonal k = x - y, forwards and backwards.
+    // The backward search works on the reversed ranges.
+    int[] forward = new int[length];
+    int[] backward = new int[length];
+    Arrays.fill(forward, -1);
+    Arrays.fill(backward, -1);
+    forward[offset + 1] = 0;
+    backward[offset + 1] = 0;
+    int delta = n - m;
+    // With an odd delta the forward search is the one that finds the overlap
+    boolean front = (delta & 1) != 0;
+    // Diagonals that ran off the edge of the grid are skipped from then on
+    int forwardStart = 0;
+    int forwardEnd = 0;
+    int backwardStart = 0;
+    int backwardEnd = 0;
+    for (int d = 0; d < maxD; d++) {
+      for (int k = -d + forwardStart; k <= d - forwardEnd; k += 2) {
+        int index = offset + k;
+        int x = k == -d || (k != d && forward[index - 1] < forward[index + 1]) ? forward[index + 1]
+            : forward[index - 1] + 1;
+        int y = x - k;
+        while (x < n && y < m && this.a[beginA + x] == this.b[beginB + y]) {
+          x++;
+          y++;
+        }
+        forward[index] = x;
+        if (x > n) {
+          forwardEnd += 2;
+        } else if (y > m) {
+          forwardStart += 2;
+        } else if (front) {
+          int backwardIndex = offset + delta - k;
+          if (backwardIndex >= 0 && backwardIndex < length && backward[backwardIndex] != -1
+              && x >= n - backward[backwardIndex]) {
+            return ((long) (beginA + x) << 32) | (beginB + y);
+          }
+        }
+      }
+      for (int k = -d + backwardStart; k <= d - backwardEnd; k += 2) {
+        int index = offset + k;
+        int x = k == -d || (k != d && backward[index - 1] < backward[index + 1]) ? backward[index + 1]
+            : backward[index - 1] + 1;
+        int y = x - k;
+        while (x < n && y < m && this.a[endA - x - 1] == this.b[endB - y - 1]) {
+          x++;
+          y++;
+        }
+        backward[index] = x;
+        if (x > n) {
+          backwardEnd += 2;
+        } else if (y > m) {
+          backwardStart += 2;
+        } else if (!front) {
+          int forwardIndex = offset + delta - k;
+          if (forwardIndex >= 0 && forwardIndex < length && forward[forwardIndex] != -1) {
+            int forwardX = forward[forwardIndex];
+            int forwardY = forwardX - (forwardIndex - offset);
+            if (forwardX >= n - x) {
+              return ((long) (beginA + forwardX) << 32) | (beginB + forwardY);
+            }
+          }
+        }
+      }
+    }
+    return -1;
+  }
+
+  /** Appends an edit, joining it to the last one if they touch. */
+  private void addEdit(int beginA, int endA, int beginB, int endB) {
+    if (!this.edits.isEmpty()) {
+      Edit last = this.edits.get(this.edits.size() - 1);
+      if (last.endA == beginA && last.endB == beginB) {
+        last.endA = endA;
+        last.endB = endB;
+        return;
+      }
+    }
+    this.edits.add(new Edit(beginA, endA, beginB, endB));
+  }
+
+}
@@ -0,0 +1,113 @@
+package gitcopy;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Gives every distinct line of one or more blobs a number, so the blobs can be
+ * diffed as int arrays. A line that shows up in several blobs, or several times
+ * in one, is kept once. Lines keep their terminator, so a file whose last line
+ * has no newline is written back exactly as it was.
+ *
+ * Blobs are read as a stream, one line at a time. Bytes are kept as ISO-8859-1
+ * strings, which map each byte to one char and back without loss whatever the
+ * file's real encoding.
+ */
+public class LineTable {
+
+  // A NUL this early in a blob marks it as binary, the same check git makes
+  private static final int BINARY_CHECK_LENGTH = 8000;
+
+  private final Map<String, Integer> ids = new HashMap<>();
+  private final List<String> lines = new ArrayList<>();
+
+  /**
+   * Reads a blob into the table.
+   *
+   * @param blobSHA1 - SHA1 of the blob, or null for a missing file
+   * @return the id of each line of the blob, or null if the blob is binary
+   * @throws IOException
+   */
+  public int[] read(String blobSHA1) throws IOException {
+    if (blobSHA1 == null) {
+      return new int[0];
+    }
+    return read(ObjectStore.openObject(blobSHA1));
+  }
+
+  /**
+   * Reads content that isn't in the store, such as a file in the working
+   * directory. The stream is closed once it's read.
+   *
+   * @param content - Stream of the content
+   * @return the id of each line, or null if the content is binary
+   * @throws IOException
+   */
+  public int[] read(InputStream content) throws IOException {
+    int[] lineIds = new int[64];
+    int count = 0;
+    long position = 0;
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+    try (InputStream inputStream = new BufferedInputStream(content)) {
+      int nextByte;
+      while ((nextByte = inputStream.read()) != -1) {
+        if (nextByte == 0 && position < BINARY_CHECK_LENGTH) {
+          return null;
+        }
+        position++;
+        line.write(nextByte);
+        if (nextByte == '\n') {
+          if (count == lineIds.length) {
+            lineIds = Arrays.copyOf(lineIds, count * 2);
+          }
+          lineIds[count++] = intern(line);
+        }
+      }
+    }
+    if (line.size() > 0) {
+      if (count == lineIds.length) {
+        lineIds = Arrays.copyOf(lineIds, count + 1);
+      }
+      lineIds[count++] = intern(line);
+    }
+    return Arrays.copyOf(lineIds, count);
+  }
+
+  private int intern(ByteArrayOutputStream line) {
+    String text = line.toString(StandardCharsets.ISO_8859_1);
+    line.reset();
+    Integer id = this.ids.get(text);
+    if (id == null) {
+      id = this.lines.size();
+      this.ids.put(text, id);
+      this.lines.add(text);
+    }
+    return id;
+  }
+
+  /** The text of a line, with its terminator if it had one. */
+  public String getLine(int id) {
+    return this.lines.get(id);
+  }
+
+  /** Whether a line ends with a newline, which only the last line of a file may not. */
+  public boolean endsWithNewline(int id) {
+    String line = this.lines.get(id);
+    return line.charAt(line.length() - 1) == '\n';
+  }
+
+  /** Writes a line back out exactly as it was read. */
+  public void write(OutputStream outputStream, int id) throws IOException {
+    outputStream.write(this.lines.get(id).getBytes(StandardCharsets.ISO_8859_1));
+  }
+
+}
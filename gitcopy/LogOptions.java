@@ -0,0 +1,145 @@
+package gitcopy;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Arguments of 'java gitcopy.Main log':
+ *
+ * <pre>
+ * log [branch | commit] [-n count | -count] [--since date] [--until date] [--oneline]
+ *     [--name-status [-C]]
+ * </pre>
+ *
+ * Dates are local, either "2024-05-01" or "2024-05-01T13:30". --since and
+ * --until also accept "--since=date". A date alone stands for the start of that
+ * day for --since and the end of it for --until. --name-status lists the files
+ * each commit changed, and -C or --find-copies makes it look for copies as well
+ * as renames.
+ */
+public class LogOptions {
+
+  private String start;
+  private int maxCount = Integer.MAX_VALUE;
+  private long since = Long.MIN_VALUE;
+  private long until = Long.MAX_VALUE;
+  private boolean oneline;
+  private boolean nameStatus;
+  private boolean findCopies;
+
+  /**
+   * Reads the options of a log command.
+   *
+   * @param args - The whole command, starting with "log"
+   * @return the options
+   * @throws IllegalArgumentException if an option or its value is wrong
+   */
+  public static LogOptions parse(String[] args) {
+    LogOptions options = new LogOptions();
+    for (int i = 1; i < args.length; i++) {
+      String arg = args[i];
+      String value = null;
+      int equals = arg.indexOf('=');
+      if (arg.startsWith("--") && equals > 0) {
+        value = arg.substring(equals + 1);
+        arg = arg.substring(0, equals);
+      } else if (arg.matches("-n\\d+|-\\d+")) {
+        // -n5 and -5 both mean -n 5
+        value = arg.substring(arg.charAt(1) == 'n' ? 2 : 1);
+        arg = "-n";
+      }
+      switch (arg) {
+        case "-n":
+        case "--max-count":
+          options.maxCount = parseCount(value != null ? value : valueAfter(args, ++i, arg));
+          break;
+        case "--since":
+          options.since = parseDate(value != null ? value : valueAfter(args, ++i, arg), false);
+          break;
+        case "--until":
+          options.until = parseDate(value != null ? value : valueAfter(args, ++i, arg), true);
+          break;
+        case "--oneline":
+          options.oneline = true;
+          break;
+        case "--name-status":
+          options.nameStatus = true;
+          break;
+        case "-C":
+        case "--find-copies":
+          options.findCopies = true;
+          break;
+        default:
+          if (arg.startsWith("-") || options.start != null) {
+            throw new IllegalArgumentException("Unknown log option " + args[i] + ".");
+          }
+          options.start = arg;
+      }
+    }
+    return options;
+  }
+
+  /** Branch or commit whose history to show, or null for the history of HEAD. */
+  public String getStart() {
+    return this.start;
+  }
+
+  public int getMaxCount() {
+    return this.maxCount;
+  }
+
+  /** Oldest commit time to show, in milliseconds since the epoch. */
+  public long getSince() {
+    return this.since;
+  }
+
+  /** Newest commit time to show, in milliseconds since the epoch. */
+  public long getUntil() {
+    return this.until;
+  }
+
+  public boolean isOneline() {
+    return this.oneline;
+  }
+
+  public boolean isNameStatus() {
+    return this.nameStatus;
+  }
+
+  public boolean isFindCopies() {
+    return this.findCopies;
+  }
+
+  private static String valueAfter(String[] args, int index, String option) {
+    if (index >= args.length) {
+      throw new IllegalArgumentException(option + " needs a value.");
+    }
+    return args[index];
+  }
+
+  private static int parseCount(String value) {
+    try {
+      int count = Integer.parseInt(value);
+      if (count >= 0) {
+        return count;
+      }
+    } catch (NumberFormatException excp) {
+      // Reported below
+    }
+    throw new IllegalArgumentException("-n needs a number of commits, not " + value + ".");
+  }
+
+  private static long parseDate(String value, boolean endOfDay) {
+    try {
+      LocalDateTime time = value.contains("T") ? LocalDateTime.parse(value)
+          : endOfDay ? LocalDate.parse(value).plusDays(1).atStartOfDay().minusNanos(1)
+              : LocalDate.parse(value).atStartOfDay();
+      return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    } catch (DateTimeParseException excp) {
+      throw new IllegalArgumentException("Couldn't read the date " + value + ".");
+    }
+  }
+
+}
@@ -3,12 +3,14 @@ package gitcopy;
 import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class Main {
 
   public static Repo newRepo;
+  private static RepoJournal journal;
+  // A full commit hash, or one shortened to at least 7 characters
+  private static final Pattern COMMIT_HASH = Pattern.compile("[0-9a-fA-F]{7,40}");
   public final static String REPO_DIRECTORY = FileUtils.findGitCopyRootDirectory().getAbsolutePath() + File.separator
       + ".gitcopy";
 
@@ -19,13 +21,19 @@ public class Main {
       System.exit(0);
     }
     String command = args[0];
+    journal = new RepoJournal(REPO_DIRECTORY);
     if (command.equals("init")) {
       handleInit();
     } else if (!FileUtils.validateGitCopyExists()) {
       System.out.println("A repository does not exist here.");
       return;
     } else {
-      loadRepoFromDisk();
+      try {
+        loadRepoFromDisk();
+      } catch (IllegalArgumentException excp) {
+        System.out.println(excp.getMessage());
+        return;
+      }
       switch (command) {
         case "add":
           handleAdd(args);
@@ -48,14 +56,29 @@ public class Main {
         case "log":
           handleLog(args);
           break;
+        case "diff":
+          handleDiff(args);
+          break;
+        case "gc":
+        case "repack":
+          handleGc();
+          break;
+        case "status":
+          handleStatus(args);
+          break;
       }
     }
     saveRepoToDisk();
+    // -Dgitcopy.cacheStats=true shows how well the object caches did
+    if (Boolean.getBoolean("gitcopy.cacheStats")) {
+      ObjectCache.printStats();
+    }
   }
 
   /**
    * Function that validates if the arguments (commands entered) are valid. Valid
-   * commands include: init, add, commit
+   * commands include: init, add, commit, rm, branch, checkout, merge, log, diff,
+   * gc, status
    * 
    * @param args
    * @return boolean
@@ -71,6 +94,10 @@ public class Main {
       case "checkout":
       case "merge":
       case "log":
+      case "diff":
+      case "gc":
+      case "repack":
+      case "status":
         valid = true;
         break;
       default:
@@ -85,6 +112,10 @@ public class Main {
   }
 
   private static void handleAdd(String[] args) throws IOException {
+    if (args.length == 2 && (args[1].equals("-A") || args[1].equals("--all"))) {
+      newRepo.addAll();
+      return;
+    }
     // Take the second argument. Will need to handle other strings thereafter.
     String[] files = Arrays.copyOfRange(args, 1, args.length);
     newRepo.add(files);
@@ -99,6 +130,15 @@ public class Main {
   }
 
   private static void handleCommit(String[] args) throws IOException {
+    // 'commit -a [message]' stages every modified and deleted tracked file first
+    if (args[1].equals("-a") || args[1].equals("--all")) {
+      if (args.length < 3) {
+        System.out.println("Please enter a commit message.");
+        return;
+      }
+      newRepo.commitAll(args[2]);
+      return;
+    }
     String message = args[1];
     newRepo.commit(message);
   }
@@ -128,7 +168,8 @@ public class Main {
 
   private static void determineCheckout(String[] args) throws IOException {
     String commitHashOrBranch = args[1];
-    if (isSHA1(commitHashOrBranch)) {
+    // A branch named like a hash still wins, as it would in git
+    if (!Head.branchExists(commitHashOrBranch) && isSHA1(commitHashOrBranch)) {
       handleCheckoutCommit(args);
     } else {
       handleCheckoutBranch(args);
@@ -141,29 +182,54 @@ public class Main {
   }
 
   private static void handleLog(String[] args) throws IOException {
-    // Determine if there's no arguments. If none, then give log of current branch.
-    if (args.length == 1) {
-      newRepo.log();
+    // With no branch or commit given, LogOptions leaves the start null and the
+    // log is of HEAD
+    LogOptions options;
+    try {
+      options = LogOptions.parse(args);
+    } catch (IllegalArgumentException excp) {
+      System.out.println(excp.getMessage());
+      return;
+    }
+    newRepo.log(options);
+  }
+
+  private static void handleDiff(String[] args) throws IOException {
+    DiffOptions options;
+    try {
+      options = DiffOptions.parse(args);
+    } catch (IllegalArgumentException excp) {
+      System.out.println(excp.getMessage());
+      return;
+    }
+    newRepo.diff(options);
+  }
+
+  private static void handleGc() throws IOException {
+    newRepo.gc();
+  }
+
+  private static void handleStatus(String[] args) throws IOException {
+    if (args.length > 1 && args[1].equals("--watch")) {
+      newRepo.watchStatus();
     } else {
-      newRepo.log(args[1]);
+      newRepo.status();
     }
   }
 
   /** Checks if the input given is a SHA1 */
   private static boolean isSHA1(String input) {
-    String sha1Regex = "[0-9a-fA-F]{40}";
-    Pattern pattern = Pattern.compile(sha1Regex);
-    Matcher matcher = pattern.matcher(input);
-    return matcher.matches();
+    return COMMIT_HASH.matcher(input).matches();
   }
 
+  /** Appends what the command changed to the metadata journal. */
   private static void saveRepoToDisk() throws IOException {
-    FileUtils.saveObjectToFileDisk(Repo.DEFAULT_SHA1, REPO_DIRECTORY, newRepo);
+    journal.save(newRepo);
   }
 
+  /** Loads the repo from the metadata checkpoint and replays the journal. */
   private static void loadRepoFromDisk() throws IOException {
-    newRepo = FileUtils.loadObject(Repo.class, Repo.DEFAULT_SHA1, REPO_DIRECTORY);
-
+    newRepo = journal.load();
   }
 
 }
\ No newline at end of file
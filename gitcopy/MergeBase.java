@@ -0,0 +1,141 @@
+package gitcopy;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Finds the best common ancestors of any number of commits in one walk.
+ *
+ * Each tip gets a bit, and every commit reached is painted with the bits of
+ * the tips it's reachable from. Commits come off the queue highest generation
+ * first, so by the time a commit is taken, everything above it has already
+ * passed its bits down and its paint is final. A commit painted by every tip is
+ * a common ancestor. Its own ancestors are common too but older, so they're
+ * painted STALE and never reported. The walk ends once only stale commits are
+ * left, without going further down the history than the bases.
+ *
+ * Commits made since the last gc all share CommitGraph.GENERATION_INFINITY and
+ * are taken newest first instead, which a skewed clock can get wrong. A commit
+ * that gets new bits after it was taken is queued again to pass them down, and
+ * a base that turns out to be below another base is dropped at the end.
+ */
+public class MergeBase {
+
+  // One bit per tip, and the top bit for STALE
+  public static final int MAX_TIPS = 62;
+  private static final long STALE = 1L << 63;
+
+  private final CommitGraph graph;
+  private final Map<String, Long> paint = new HashMap<>();
+  private final PriorityQueue<Queued> queue = new PriorityQueue<>();
+  // Commits waiting in the queue
+  private final Set<String> queued = new HashSet<>();
+  // Queued commits that aren't stale. The walk stops when this reaches 0.
+  private int liveCount;
+
+  private static class Queued implements Comparable<Queued> {
+    private final String commitSHA1;
+    private final int generation;
+    private final long time;
+
+    Queued(String commitSHA1, int generation, long time) {
+      this.commitSHA1 = commitSHA1;
+      this.generation = generation;
+      this.time = time;
+    }
+
+    @Override
+    public int compareTo(Queued other) {
+      if (this.generation != other.generation) {
+        return Integer.compare(other.generation, this.generation);
+      }
+      if (this.time != other.time) {
+        return Long.compare(other.time, this.time);
+      }
+      return this.commitSHA1.compareTo(other.commitSHA1);
+    }
+  }
+
+  private MergeBase(CommitGraph graph) {
+    this.graph = graph;
+  }
+
+  /**
+   * Finds the best common ancestors of some commits: the common ancestors that
+   * aren't an ancestor of another common ancestor. There's usually one, but
+   * criss-cross merges can leave several.
+   *
+   * @param graph - Commit-graph to read parents and generations from
+   * @param tips  - SHA1s of the commits, at most MAX_TIPS of them
+   * @return SHA1s of the best common ancestors, highest generation first
+   */
+  public static List<String> find(CommitGraph graph, List<String> tips) {
+    if (tips.isEmpty() || tips.size() > MAX_TIPS) {
+      throw new IllegalArgumentException("Can only find the merge base of 1 to " + MAX_TIPS + " commits.");
+    }
+    return new MergeBase(graph).walk(tips);
+  }
+
+  private List<String> walk(List<String> tips) {
+    long allTips = (1L << tips.size()) - 1;
+    for (int i = 0; i < tips.size(); i++) {
+      addPaint(tips.get(i), 1L << i);
+    }
+    List<String> bases = new ArrayList<>();
+    while (this.liveCount > 0) {
+      Queued queued = this.queue.poll();
+      this.queued.remove(queued.commitSHA1);
+      long flags = this.paint.get(queued.commitSHA1);
+      if ((flags & STALE) == 0) {
+        this.liveCount--;
+      }
+      long passedDown = flags;
+      if ((flags & STALE) == 0 && (flags & allTips) == allTips) {
+        bases.add(queued.commitSHA1);
+        passedDown |= STALE;
+      }
+      for (String parent : this.graph.getParents(queued.commitSHA1)) {
+        addPaint(parent, passedDown);
+      }
+    }
+    bases.removeIf(base -> (this.paint.get(base) & STALE) != 0);
+    return bases;
+  }
+
+  /**
+   * Adds bits to a commit's paint, queueing it when it's first reached or when
+   * it was already taken and the bits are new to it.
+   */
+  private void addPaint(String commitSHA1, long flags) {
+    Long current = this.paint.get(commitSHA1);
+    if (current == null) {
+      this.paint.put(commitSHA1, flags);
+      enqueue(commitSHA1, flags);
+      return;
+    }
+    long updated = current | flags;
+    if (updated == current) {
+      return;
+    }
+    this.paint.put(commitSHA1, updated);
+    if (!this.queued.contains(commitSHA1)) {
+      enqueue(commitSHA1, updated);
+    } else if ((current & STALE) == 0 && (updated & STALE) != 0) {
+      this.liveCount--;
+    }
+  }
+
+  private void enqueue(String commitSHA1, long flags) {
+    this.queued.add(commitSHA1);
+    this.queue.add(new Queued(commitSHA1, this.graph.getGeneration(commitSHA1), this.graph.getTime(commitSHA1)));
+    if ((flags & STALE) == 0) {
+      this.liveCount++;
+    }
+  }
+
+}
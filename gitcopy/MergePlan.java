@@ -0,0 +1,227 @@
+package gitcopy;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * What a three-way merge does to each path, worked out before anything is
+ * changed. Every path in the base, ours or theirs is looked at once, with a
+ * hash lookup on each side, so the cost grows with the number of paths rather
+ * than with their product.
+ *
+ * <pre>
+ * ours == theirs        nothing to do, both sides agree
+ * theirs == base        TAKE_OURS, only ours changed it
+ * ours == base          TAKE_THEIRS, or DELETE if theirs removed it
+ * all three differ      CONFLICT
+ * </pre>
+ *
+ * Paths where both sides agree aren't in the plan.
+ *
+ * computeFollowingRenames first looks for files one side renamed, using
+ * RenameDetector. If the other side still has the file under its old name,
+ * the base and that side are planned as if it had been renamed there too, so
+ * an edit on one side and a rename on the other end up as the edited file at
+ * its new path.
+ */
+public class MergePlan {
+
+  public enum Action {
+    TAKE_OURS,
+    TAKE_THEIRS,
+    DELETE,
+    CONFLICT,
+  }
+
+  /** The action for a path and the blob each side has for it. */
+  public static class Resolution {
+    private final Action action;
+    private final String baseSHA1;
+    private final String oursSHA1;
+    private final String theirsSHA1;
+
+    Resolution(Action action, String baseSHA1, String oursSHA1, String theirsSHA1) {
+      this.action = action;
+      this.baseSHA1 = baseSHA1;
+      this.oursSHA1 = oursSHA1;
+      this.theirsSHA1 = theirsSHA1;
+    }
+
+    public Action getAction() {
+      return this.action;
+    }
+
+    /** Blob SHA1s on each side, null where the path doesn't exist. */
+    public String getBaseSHA1() {
+      return this.baseSHA1;
+    }
+
+    public String getOursSHA1() {
+      return this.oursSHA1;
+    }
+
+    public String getTheirsSHA1() {
+      return this.theirsSHA1;
+    }
+  }
+
+  private final TreeMap<String, Resolution> resolutions = new TreeMap<>();
+  // Files ours has that theirs renamed, old path mapped to new path
+  private final Map<String, String> movedInOurs = new TreeMap<>();
+  // What ours has at each of those new paths
+  private final Map<String, String> oursAtNewPath = new HashMap<>();
+
+  private MergePlan() {
+  }
+
+  /**
+   * Plans the merge of two snapshots that share a base.
+   *
+   * @param base   - Snapshot of the merge base, path to blob SHA1
+   * @param ours   - Snapshot being merged into
+   * @param theirs - Snapshot being merged in
+   * @return the plan
+   */
+  public static MergePlan compute(Map<String, String> base, Map<String, String> ours, Map<String, String> theirs) {
+    MergePlan plan = new MergePlan();
+    Set<String> paths = new HashSet<>(base.keySet());
+    paths.addAll(ours.keySet());
+    paths.addAll(theirs.keySet());
+    for (String path : paths) {
+      String baseSHA1 = base.get(path);
+      String oursSHA1 = ours.get(path);
+      String theirsSHA1 = theirs.get(path);
+      Action action;
+      if (Objects.equals(oursSHA1, theirsSHA1)) {
+        continue;
+      } else if (Objects.equals(theirsSHA1, baseSHA1)) {
+        action = Action.TAKE_OURS;
+      } else if (Objects.equals(oursSHA1, baseSHA1)) {
+        action = theirsSHA1 == null ? Action.DELETE : Action.TAKE_THEIRS;
+      } else {
+        action = Action.CONFLICT;
+      }
+      plan.resolutions.put(path, new Resolution(action, baseSHA1, oursSHA1, theirsSHA1));
+    }
+    return plan;
+  }
+
+  /**
+   * Plans the merge of two snapshots, following files that one side renamed
+   * and the other changed in place.
+   *
+   * @param base   - Snapshot of the merge base, path to blob SHA1
+   * @param ours   - Snapshot being merged into
+   * @param theirs - Snapshot being merged in
+   * @return the plan, keyed by the paths files end up at
+   * @throws IOException
+   */
+  public static MergePlan computeFollowingRenames(Map<String, String> base, Map<String, String> ours,
+      Map<String, String> theirs) throws IOException {
+    List<RenameDetector.Rename> oursRenames = detectRenames(base, ours);
+    List<RenameDetector.Rename> theirsRenames = detectRenames(base, theirs);
+    Map<String, String> renamedBase = new HashMap<>(base);
+    Map<String, String> renamedOurs = new HashMap<>(ours);
+    Map<String, String> renamedTheirs = new HashMap<>(theirs);
+    Map<String, String> movedInOurs = new TreeMap<>();
+    for (RenameDetector.Rename rename : oursRenames) {
+      if (theirs.containsKey(rename.getOldPath()) && !theirs.containsKey(rename.getNewPath())) {
+        move(renamedBase, rename.getOldPath(), rename.getNewPath());
+        move(renamedTheirs, rename.getOldPath(), rename.getNewPath());
+      }
+    }
+    for (RenameDetector.Rename rename : theirsRenames) {
+      if (ours.containsKey(rename.getOldPath()) && !ours.containsKey(rename.getNewPath())) {
+        move(renamedBase, rename.getOldPath(), rename.getNewPath());
+        move(renamedOurs, rename.getOldPath(), rename.getNewPath());
+        movedInOurs.put(rename.getOldPath(), rename.getNewPath());
+      }
+    }
+    MergePlan plan = compute(renamedBase, renamedOurs, renamedTheirs);
+    for (Map.Entry<String, String> move : movedInOurs.entrySet()) {
+      plan.movedInOurs.put(move.getKey(), move.getValue());
+      plan.oursAtNewPath.put(move.getValue(), renamedOurs.get(move.getValue()));
+    }
+    return plan;
+  }
+
+  /** Renames from the base to one side. Copies don't matter to a merge. */
+  private static List<RenameDetector.Rename> detectRenames(Map<String, String> base, Map<String, String> side)
+      throws IOException {
+    Map<String, String> deleted = new HashMap<>();
+    Map<String, String> added = new HashMap<>();
+    for (Map.Entry<String, String> entry : base.entrySet()) {
+      if (!side.containsKey(entry.getKey())) {
+        deleted.put(entry.getKey(), entry.getValue());
+      }
+    }
+    for (Map.Entry<String, String> entry : side.entrySet()) {
+      if (!base.containsKey(entry.getKey())) {
+        added.put(entry.getKey(), entry.getValue());
+      }
+    }
+    return RenameDetector.detect(deleted, added, null, Diff.OBJECT_STORE, Diff.OBJECT_STORE);
+  }
+
+  private static void move(Map<String, String> snapshot, String from, String to) {
+    String blobSHA1 = snapshot.remove(from);
+    if (blobSHA1 != null) {
+      snapshot.put(to, blobSHA1);
+    }
+  }
+
+  /** Files ours has that theirs renamed, old path mapped to new path. */
+  public Map<String, String> getRenamesFollowed() {
+    return Collections.unmodifiableMap(this.movedInOurs);
+  }
+
+  /** Every planned path in sorted order. */
+  public Map<String, Resolution> getResolutions() {
+    return Collections.unmodifiableMap(this.resolutions);
+  }
+
+  public boolean hasConflicts() {
+    for (Resolution resolution : this.resolutions.values()) {
+      if (resolution.action == Action.CONFLICT) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * The changes the plan makes to ours, ready for Tree.update. Conflicts are
+   * left out. A file theirs renamed leaves its old path, and keeps ours'
+   * content at the new one unless the plan changes it.
+   *
+   * @return changed paths mapped to their new blob SHA1, or to null if they're
+   *         deleted
+   */
+  public Map<String, String> getChanges() {
+    Map<String, String> changes = new TreeMap<>();
+    for (Map.Entry<String, Resolution> entry : this.resolutions.entrySet()) {
+      Action action = entry.getValue().action;
+      if (action == Action.TAKE_THEIRS) {
+        changes.put(entry.getKey(), entry.getValue().theirsSHA1);
+      } else if (action == Action.DELETE) {
+        changes.put(entry.getKey(), null);
+      }
+    }
+    for (Map.Entry<String, String> move : this.movedInOurs.entrySet()) {
+      changes.put(move.getKey(), null);
+      Resolution resolution = this.resolutions.get(move.getValue());
+      if (resolution == null || resolution.action == Action.TAKE_OURS) {
+        changes.put(move.getValue(), this.oursAtNewPath.get(move.getValue()));
+      }
+    }
+    return changes;
+  }
+
+}
@@ -0,0 +1,131 @@
+package gitcopy;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.ToLongFunction;
+
+/**
+ * Least recently used cache of objects read from the store, keyed by SHA1.
+ * Stored objects never change, so an entry stays valid until it's evicted.
+ * Each entry has a weight, roughly its size in bytes, and the least recently
+ * used entries are dropped once the total weight goes over the limit. An entry
+ * heavier than the whole limit is never kept.
+ *
+ * Lookups and inserts hold the cache's lock, but loading a missing object
+ * doesn't, so a slow read never blocks readers of other objects. Two threads
+ * missing the same object at once both load it.
+ */
+public class ObjectCache<V> {
+
+  /** Reads an object on a cache miss. */
+  public interface Loader<V> {
+    V load(String sha1) throws IOException;
+  }
+
+  // Every cache made, for printing the counters
+  private static final List<ObjectCache<?>> CACHES = new CopyOnWriteArrayList<>();
+
+  private final String name;
+  private final long maxWeight;
+  private final ToLongFunction<V> weigher;
+  // In access order, so the first entry is the least recently used
+  private final LinkedHashMap<String, Entry<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long weight;
+  private long hits;
+  private long misses;
+
+  private static class Entry<V> {
+    private final V value;
+    private final long weight;
+
+    Entry(V value, long weight) {
+      this.value = value;
+      this.weight = weight;
+    }
+  }
+
+  /**
+   * @param name      - Name shown with the counters
+   * @param maxWeight - Total weight the cache may hold
+   * @param weigher   - Weight of an object, e.g. its size in bytes
+   */
+  public ObjectCache(String name, long maxWeight, ToLongFunction<V> weigher) {
+    this.name = name;
+    this.maxWeight = maxWeight;
+    this.weigher = weigher;
+    CACHES.add(this);
+  }
+
+  /**
+   * Returns the cached object, or loads and caches it.
+   *
+   * @param sha1   - SHA1 of the object
+   * @param loader - Reads the object if it isn't cached
+   * @return the object
+   * @throws IOException
+   */
+  public V get(String sha1, Loader<V> loader) throws IOException {
+    synchronized (this) {
+      Entry<V> entry = this.entries.get(sha1);
+      if (entry != null) {
+        this.hits++;
+        return entry.value;
+      }
+      this.misses++;
+    }
+    V value = loader.load(sha1);
+    put(sha1, value);
+    return value;
+  }
+
+  /** Caches an object that was read or written some other way. */
+  public synchronized void put(String sha1, V value) {
+    long entryWeight = Math.max(1, this.weigher.applyAsLong(value));
+    if (entryWeight > this.maxWeight) {
+      return;
+    }
+    Entry<V> previous = this.entries.put(sha1, new Entry<>(value, entryWeight));
+    this.weight += entryWeight - (previous == null ? 0 : previous.weight);
+    Iterator<Entry<V>> oldest = this.entries.values().iterator();
+    while (this.weight > this.maxWeight) {
+      this.weight -= oldest.next().weight;
+      oldest.remove();
+    }
+  }
+
+  public synchronized long getHits() {
+    return this.hits;
+  }
+
+  public synchronized long getMisses() {
+    return this.misses;
+  }
+
+  /** Drops every entry. The counters are kept. */
+  public synchronized void clear() {
+    this.entries.clear();
+    this.weight = 0;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return this.name + ": " + this.hits + " hits, " + this.misses + " misses, " + this.entries.size()
+        + " objects, " + this.weight + " of " + this.maxWeight + " bytes";
+  }
+
+  /** Prints the counters of every cache, one line each. */
+  public static void printStats() {
+    for (ObjectCache<?> cache : CACHES) {
+      System.out.println(cache);
+    }
+  }
+
+  /** Budget for a cache, overridable with -Dgitcopy.cache.[name]=[bytes]. */
+  static long configuredSize(String name, long defaultBytes) {
+    return Long.getLong("gitcopy.cache." + name, defaultBytes);
+  }
+
+}
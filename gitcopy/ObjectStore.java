@@ -0,0 +1,647 @@
+package gitcopy;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Content-addressed store for tracked objects. Every object is written once
+ * into the .blobs directory under the SHA1 of its content, and is laid out as a
+ * small typed header followed by the raw bytes:
+ *
+ * <pre>
+ * blob 1234\0[raw content]
+ * </pre>
+ *
+ * Loose objects are deflated as a whole, header included, unless their content
+ * doesn't compress well, in which case they're stored and read as they are.
+ * Reads go through plain streams, so callers never need an ObjectInputStream to
+ * get at the bytes of a file. Commits saved in .commits are loose objects too,
+ * just without a header. Running gc moves loose objects into packs, and lookups
+ * check the loose objects first and the packs after.
+ */
+public class ObjectStore {
+
+  public static final String BLOB_TYPE = "blob";
+  public static final String COMMIT_TYPE = "commit";
+  // A chunked blob is stored as a manifest of "[chunk SHA1] [length]" lines,
+  // one per chunk, under the SHA1 of the whole content
+  public static final String CHUNKED_TYPE = "chunked";
+  // Files at least this big are split into chunks unless
+  // -Dgitcopy.chunking=false is set
+  public static final long CHUNKING_THRESHOLD = 1024 * 1024;
+  private static final boolean CHUNKING_ENABLED = Boolean.parseBoolean(
+      System.getProperty("gitcopy.chunking", "true"));
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final int MAX_HEADER_LENGTH = 64;
+  private static List<PackFile> packs;
+  // Content sizes of blobs, so a blob's size is only worked out once even when
+  // it has to be put together from chunks or a delta chain
+  private static final ObjectCache<Long> CONTENT_SIZES = new ObjectCache<>("sizes",
+      ObjectCache.configuredSize("sizes", 1024 * 1024), size -> 96);
+
+  /** Type and content size parsed from the front of a stored object. */
+  public static class Header {
+    private final String type;
+    private final long size;
+
+    Header(String type, long size) {
+      this.type = type;
+      this.size = size;
+    }
+
+    public String getType() {
+      return this.type;
+    }
+
+    public long getSize() {
+      return this.size;
+    }
+  }
+
+  /** A stored object opened for reading, wherever it happens to live. */
+  public static class RawObject {
+    private final Header header;
+    private final InputStream content;
+
+    RawObject(Header header, InputStream content) {
+      this.header = header;
+      this.content = content;
+    }
+
+    public Header getHeader() {
+      return this.header;
+    }
+
+    public InputStream getContent() {
+      return this.content;
+    }
+  }
+
+  /**
+   * Writes the content into the store under its SHA1. If an object with the same
+   * SHA1 is already stored, nothing is written.
+   *
+   * @param type    - Object type recorded in the header, e.g. BLOB_TYPE
+   * @param content - Raw bytes of the object
+   * @return the SHA1 of the content
+   * @throws IOException
+   */
+  public static String writeObject(String type, byte[] content) throws IOException {
+    String sha1 = FileUtils.sha1(content);
+    writeObject(type, sha1, content);
+    return sha1;
+  }
+
+  /** Writes content under an id the caller already worked out. */
+  private static void writeObject(String type, String sha1, byte[] content) throws IOException {
+    if (hasObject(sha1)) {
+      return;
+    }
+    Path tempFile = createTempObject();
+    try (OutputStream outputStream = openObjectOutput(tempFile, content, content.length)) {
+      outputStream.write(encodeHeader(type, content.length));
+      outputStream.write(content);
+    }
+    publishTempObject(tempFile, sha1);
+  }
+
+  /**
+   * Streams a file into the store. The content is hashed and written in
+   * fixed-size pieces, so memory use does not depend on the size of the file.
+   * Big blobs are stored as content-defined chunks, so versions of a file that
+   * differ by a few bytes share all their other chunks.
+   *
+   * @param type - Object type recorded in the header, e.g. BLOB_TYPE
+   * @param file - File whose content should be stored
+   * @return the SHA1 of the content
+   * @throws IOException
+   */
+  public static String writeFile(String type, File file) throws IOException {
+    if (CHUNKING_ENABLED && type.equals(BLOB_TYPE) && file.length() >= CHUNKING_THRESHOLD) {
+      return writeChunkedFile(file);
+    }
+    long size = file.length();
+    MessageDigest digest = FileUtils.newSHA1Digest();
+    Path tempFile = createTempObject();
+    try {
+      try (InputStream inputStream = Files.newInputStream(file.toPath())) {
+        // The first piece of the file decides whether the object is compressed
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read = inputStream.readNBytes(buffer, 0, buffer.length);
+        long copied = 0;
+        try (OutputStream outputStream = openObjectOutput(tempFile, buffer, read)) {
+          outputStream.write(encodeHeader(type, size));
+          while (read > 0) {
+            digest.update(buffer, 0, read);
+            outputStream.write(buffer, 0, read);
+            copied += read;
+            read = inputStream.read(buffer);
+          }
+        }
+        if (copied != size) {
+          throw new IllegalArgumentException(file.getName() + " changed while it was being added.");
+        }
+      }
+      String sha1 = FileUtils.toHex(digest.digest());
+      publishTempObject(tempFile, sha1);
+      return sha1;
+    } finally {
+      Files.deleteIfExists(tempFile);
+    }
+  }
+
+  /**
+   * Works out the SHA1 a file would be stored under, without storing it.
+   *
+   * @param file - File to hash
+   * @return the SHA1 of the content
+   * @throws IOException
+   */
+  public static String hashFile(File file) throws IOException {
+    MessageDigest digest = FileUtils.newSHA1Digest();
+    try (InputStream inputStream = Files.newInputStream(file.toPath())) {
+      byte[] buffer = new byte[BUFFER_SIZE];
+      int read;
+      while ((read = inputStream.read(buffer)) > 0) {
+        digest.update(buffer, 0, read);
+      }
+    }
+    return FileUtils.toHex(digest.digest());
+  }
+
+  /**
+   * Splits the file into content-defined chunks and stores each one as its own
+   * blob, then stores the manifest of chunk ids under the SHA1 of the whole
+   * file. Only one chunk is in memory at a time, next to the read buffer.
+   */
+  private static String writeChunkedFile(File file) throws IOException {
+    long size = file.length();
+    MessageDigest digest = FileUtils.newSHA1Digest();
+    StringBuilder manifest = new StringBuilder();
+    byte[] buffer = new byte[Chunker.MAX_CHUNK_SIZE * 2];
+    int filled = 0;
+    long copied = 0;
+    boolean finished = false;
+    try (InputStream inputStream = Files.newInputStream(file.toPath())) {
+      while (!finished || filled > 0) {
+        while (!finished && filled < buffer.length) {
+          int read = inputStream.read(buffer, filled, buffer.length - filled);
+          if (read == -1) {
+            finished = true;
+          } else {
+            filled += read;
+          }
+        }
+        int chunkLength = Chunker.nextChunkLength(buffer, 0, filled);
+        byte[] chunk = Arrays.copyOf(buffer, chunkLength);
+        digest.update(chunk);
+        manifest.append(writeObject(BLOB_TYPE, chunk)).append(' ').append(chunkLength).append('\n');
+        copied += chunkLength;
+        System.arraycopy(buffer, chunkLength, buffer, 0, filled - chunkLength);
+        filled -= chunkLength;
+      }
+    }
+    if (copied != size) {
+      throw new IllegalArgumentException(file.getName() + " changed while it was being added.");
+    }
+    String sha1 = FileUtils.toHex(digest.digest());
+    writeObject(CHUNKED_TYPE, sha1, manifest.toString().getBytes(StandardCharsets.US_ASCII));
+    return sha1;
+  }
+
+  /** Checks if an object with the SHA1 is stored, loose or packed. */
+  public static boolean hasObject(String sha1) throws IOException {
+    if (objectFile(sha1).isFile() || commitFile(sha1).isFile()) {
+      return true;
+    }
+    for (PackFile pack : packs()) {
+      if (pack.contains(sha1)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Finds the stored objects of a type whose id starts with a prefix. Each pack
+   * is searched through its index and the loose objects by name, so this also
+   * finds commits no branch can reach. Only the headers of the ids that match
+   * are read, to check their type.
+   *
+   * @param prefix - Hexadecimal start of an id, in either case
+   * @param type   - Type of object to find, e.g. COMMIT_TYPE
+   * @param limit  - Stop after this many matches of the type. 2 is enough to
+   *               tell whether a prefix is ambiguous.
+   * @return the matching ids in sorted order
+   * @throws IOException
+   */
+  public static List<String> findObjectsByPrefix(String prefix, String type, int limit) throws IOException {
+    String lowercasePrefix = prefix.toLowerCase(Locale.ROOT);
+    TreeSet<String> candidates = new TreeSet<>();
+    for (String directoryPath : new String[] { Repo.BLOB_DIRECTORY, Repo.COMMIT_DIRECTORY }) {
+      String[] names = new File(directoryPath).list((directory, name) -> name.startsWith(lowercasePrefix));
+      if (names != null) {
+        candidates.addAll(Arrays.asList(names));
+      }
+    }
+    // Ids of other types sharing the prefix mustn't use up the limit
+    for (PackFile pack : packs()) {
+      candidates.addAll(pack.findByPrefix(lowercasePrefix, Integer.MAX_VALUE));
+    }
+    List<String> matches = new ArrayList<>();
+    for (String sha1 : candidates) {
+      if (matches.size() == limit) {
+        break;
+      }
+      if (readHeader(sha1).getType().equals(type)) {
+        matches.add(sha1);
+      }
+    }
+    return matches;
+  }
+
+  /**
+   * Opens a stored object along with its header. The content stream starts at
+   * the first byte of content. Chunked blobs are put back together on the fly,
+   * one chunk at a time.
+   *
+   * @param sha1 - SHA1 of the object
+   * @return the opened object
+   * @throws IOException
+   */
+  public static RawObject openRawObject(String sha1) throws IOException {
+    RawObject stored = openStoredObject(sha1);
+    if (!stored.getHeader().getType().equals(CHUNKED_TYPE)) {
+      return stored;
+    }
+    List<String> chunkIds = new ArrayList<>();
+    long size;
+    try (InputStream manifest = stored.getContent()) {
+      size = readManifest(manifest, chunkIds);
+    }
+    Iterator<String> chunks = chunkIds.iterator();
+    InputStream content = new SequenceInputStream(new Enumeration<InputStream>() {
+      @Override
+      public boolean hasMoreElements() {
+        return chunks.hasNext();
+      }
+
+      @Override
+      public InputStream nextElement() {
+        try {
+          return openObject(chunks.next());
+        } catch (IOException exception) {
+          throw new UncheckedIOException(exception);
+        }
+      }
+    });
+    return new RawObject(new Header(BLOB_TYPE, size), content);
+  }
+
+  /**
+   * Opens an object exactly as it is stored, so a chunked blob comes back as its
+   * manifest. Used when objects are moved around as they are, e.g. by repack.
+   *
+   * @param sha1 - SHA1 of the object
+   * @return the opened object
+   * @throws IOException
+   */
+  static RawObject openStoredObject(String sha1) throws IOException {
+    File file = objectFile(sha1);
+    if (file.isFile()) {
+      InputStream inputStream = openLooseFile(file);
+      try {
+        return new RawObject(readHeader(inputStream), inputStream);
+      } catch (IOException | IllegalArgumentException exception) {
+        inputStream.close();
+        throw exception;
+      }
+    }
+    File commit = commitFile(sha1);
+    if (commit.isFile()) {
+      // Commits are small, so they're inflated up front to learn their real size
+      byte[] content = readLooseCommit(commit);
+      return new RawObject(new Header(COMMIT_TYPE, content.length), new ByteArrayInputStream(content));
+    }
+    for (PackFile pack : packs()) {
+      RawObject packed = pack.openObject(sha1);
+      if (packed != null) {
+        return packed;
+      }
+    }
+    throw new IllegalArgumentException("Object " + sha1 + " does not exist.");
+  }
+
+  /**
+   * Opens a stream over the content of a stored object. The header is already
+   * consumed, so the first byte read is the first byte of content.
+   *
+   * @param sha1 - SHA1 of the object
+   * @return InputStream positioned at the start of the content
+   * @throws IOException
+   */
+  public static InputStream openObject(String sha1) throws IOException {
+    return openRawObject(sha1).getContent();
+  }
+
+  /** Reads the whole content of a stored object into memory. */
+  public static byte[] readObject(String sha1) throws IOException {
+    try (InputStream inputStream = openObject(sha1)) {
+      return inputStream.readAllBytes();
+    }
+  }
+
+  /** Size of the content of an object, counting every chunk of a chunked blob. */
+  public static long getContentSize(String sha1) throws IOException {
+    return CONTENT_SIZES.get(sha1, id -> {
+      RawObject rawObject = openRawObject(id);
+      rawObject.getContent().close();
+      return rawObject.getHeader().getSize();
+    });
+  }
+
+  /**
+   * Reads only the header of an object as it is stored. For a chunked blob this
+   * is the header of its manifest.
+   */
+  public static Header readHeader(String sha1) throws IOException {
+    File file = objectFile(sha1);
+    if (file.isFile()) {
+      try (InputStream inputStream = openLooseFile(file)) {
+        return readHeader(inputStream);
+      }
+    }
+    File commit = commitFile(sha1);
+    if (commit.isFile()) {
+      return new Header(COMMIT_TYPE, readLooseCommit(commit).length);
+    }
+    for (PackFile pack : packs()) {
+      Header header = pack.readHeader(sha1);
+      if (header != null) {
+        return header;
+      }
+    }
+    throw new IllegalArgumentException("Object " + sha1 + " does not exist.");
+  }
+
+  /**
+   * Moves every loose object and every existing pack into one new pack, then
+   * removes what was packed. Objects over PackFile.PACK_SIZE_LIMIT stay loose.
+   *
+   * @return the number of objects in the new pack
+   * @throws IOException
+   */
+  public static int repack() throws IOException {
+    List<PackFile> oldPacks = packs();
+    List<File> looseFiles = new ArrayList<>();
+    Set<String> ids = new TreeSet<>();
+    for (File file : listLooseFiles(Repo.BLOB_DIRECTORY)) {
+      if (readHeader(file.getName()).getSize() <= PackFile.PACK_SIZE_LIMIT) {
+        looseFiles.add(file);
+        ids.add(file.getName());
+      }
+    }
+    for (File file : listLooseFiles(Repo.COMMIT_DIRECTORY)) {
+      if (readHeader(file.getName()).getSize() <= PackFile.PACK_SIZE_LIMIT) {
+        looseFiles.add(file);
+        ids.add(file.getName());
+      }
+    }
+    for (PackFile pack : oldPacks) {
+      ids.addAll(pack.getObjectIds());
+    }
+    if (ids.isEmpty()) {
+      return 0;
+    }
+    File newIndex = PackFile.write(ids);
+    for (PackFile pack : oldPacks) {
+      if (!pack.isIndexFile(newIndex)) {
+        pack.delete();
+      }
+    }
+    synchronized (ObjectStore.class) {
+      packs = null;
+    }
+    for (File file : looseFiles) {
+      FileUtils.deleteFile(file);
+    }
+    return ids.size();
+  }
+
+  /**
+   * Copies the content of a stored object into a file, replacing whatever the
+   * file held before. Objects stored uncompressed never pass through the heap:
+   * loose ones are moved with FileChannel.transferTo and packed ones are
+   * written out of a memory-mapped region of the pack. Everything else is
+   * streamed through a fixed-size buffer.
+   *
+   * @param sha1        - SHA1 of the object
+   * @param destination - File to write the content into
+   * @throws IOException
+   */
+  public static void copyObjectToFile(String sha1, File destination) throws IOException {
+    try (FileChannel output = FileChannel.open(destination.toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+      transferObject(sha1, output);
+    }
+  }
+
+  private static void transferObject(String sha1, FileChannel destination) throws IOException {
+    File file = objectFile(sha1);
+    if (file.isFile()) {
+      if (transferLooseFile(file, destination)) {
+        return;
+      }
+    } else {
+      for (PackFile pack : packs()) {
+        if (pack.transferTo(sha1, destination)) {
+          return;
+        }
+      }
+    }
+    RawObject stored = openStoredObject(sha1);
+    try (InputStream content = stored.getContent()) {
+      if (stored.getHeader().getType().equals(CHUNKED_TYPE)) {
+        List<String> chunkIds = new ArrayList<>();
+        readManifest(content, chunkIds);
+        for (String chunkId : chunkIds) {
+          transferObject(chunkId, destination);
+        }
+      } else {
+        // Not closed on purpose, since that would close the destination too
+        content.transferTo(Channels.newOutputStream(destination));
+      }
+    }
+  }
+
+  /**
+   * Copies an uncompressed loose object straight from file to file.
+   *
+   * @return false if the object is compressed or chunked and has to be decoded
+   */
+  private static boolean transferLooseFile(File file, FileChannel destination) throws IOException {
+    try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      ByteBuffer start = ByteBuffer.allocate(MAX_HEADER_LENGTH + 1);
+      source.read(start, 0);
+      start.flip();
+      if (start.remaining() < 2 || FileUtils.isZlibHeader(start.get(0) & 0xFF, start.get(1) & 0xFF)) {
+        return false;
+      }
+      Header header = readHeader(new ByteArrayInputStream(start.array(), 0, start.limit()));
+      if (header.getType().equals(CHUNKED_TYPE)) {
+        return false;
+      }
+      long position = encodeHeader(header.getType(), header.getSize()).length;
+      long end = position + header.getSize();
+      while (position < end) {
+        long transferred = source.transferTo(position, end - position, destination);
+        if (transferred <= 0) {
+          throw new IllegalArgumentException(file.getName() + " is truncated.");
+        }
+        position += transferred;
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Reads a chunk manifest into the list of chunk ids.
+   *
+   * @return the total size of the chunks
+   */
+  private static long readManifest(InputStream inputStream, List<String> chunkIds) throws IOException {
+    long size = 0;
+    BufferedReader manifest = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.US_ASCII));
+    String line;
+    while ((line = manifest.readLine()) != null) {
+      String[] parts = line.split(" ");
+      chunkIds.add(parts[0]);
+      size += Long.parseLong(parts[1]);
+    }
+    return size;
+  }
+
+  /** Builds the "type size\0" header that prefixes every object. */
+  static byte[] encodeHeader(String type, long size) {
+    return (type + " " + size + "\0").getBytes(StandardCharsets.US_ASCII);
+  }
+
+  /** Parses the header at the front of the stream, leaving it at the content. */
+  static Header readHeader(InputStream inputStream) throws IOException {
+    ByteArrayOutputStream header = new ByteArrayOutputStream();
+    int next;
+    while ((next = inputStream.read()) != 0) {
+      if (next == -1 || header.size() >= MAX_HEADER_LENGTH) {
+        throw new IllegalArgumentException("Object header is corrupt.");
+      }
+      header.write(next);
+    }
+    String[] parts = header.toString(StandardCharsets.US_ASCII).split(" ");
+    if (parts.length != 2) {
+      throw new IllegalArgumentException("Object header is corrupt.");
+    }
+    try {
+      return new Header(parts[0], Long.parseLong(parts[1]));
+    } catch (NumberFormatException exception) {
+      throw new IllegalArgumentException("Object header is corrupt.");
+    }
+  }
+
+  /** Creates an empty temp file next to the objects so it can be renamed in. */
+  static Path createTempObject() throws IOException {
+    return Files.createTempFile(new File(Repo.BLOB_DIRECTORY).toPath(), "tmp_", null);
+  }
+
+  /**
+   * Moves a fully written temp file to its final SHA1 name. If another writer
+   * already stored the same object, the temp file is dropped instead.
+   */
+  static void publishTempObject(Path tempFile, String sha1) throws IOException {
+    try {
+      if (hasObject(sha1)) {
+        return;
+      }
+      Files.move(tempFile, objectFile(sha1).toPath(), StandardCopyOption.ATOMIC_MOVE);
+    } catch (FileAlreadyExistsException exception) {
+      // Someone else stored the same content first, which is just as good
+    } finally {
+      Files.deleteIfExists(tempFile);
+    }
+  }
+
+  private static File objectFile(String sha1) {
+    return new File(Repo.BLOB_DIRECTORY, sha1);
+  }
+
+  private static File commitFile(String sha1) {
+    return new File(Repo.COMMIT_DIRECTORY, sha1);
+  }
+
+  /**
+   * Opens the output for a new loose object. It's deflated unless the sample
+   * shows that compressing it wouldn't pay off, in which case it's written as is
+   * so checkout can copy it without decoding.
+   */
+  private static OutputStream openObjectOutput(Path tempFile, byte[] sample, int sampleLength)
+      throws IOException {
+    OutputStream outputStream = new BufferedOutputStream(Files.newOutputStream(tempFile), BUFFER_SIZE);
+    if (FileUtils.isWorthCompressing(sample, sampleLength)) {
+      return FileUtils.newCompressingStream(outputStream);
+    }
+    return outputStream;
+  }
+
+  /** Opens a loose object file, inflating it if it was stored compressed. */
+  private static InputStream openLooseFile(File file) throws IOException {
+    return FileUtils.newDecompressingStream(Files.newInputStream(file.toPath()));
+  }
+
+  private static byte[] readLooseCommit(File commit) throws IOException {
+    try (InputStream inputStream = openLooseFile(commit)) {
+      return inputStream.readAllBytes();
+    }
+  }
+
+  /** Loose object files in a directory, leaving out half-written temp files. */
+  private static File[] listLooseFiles(String directoryPath) {
+    File[] files = new File(directoryPath).listFiles((directory, name) -> !name.startsWith("tmp_"));
+    return files == null ? new File[0] : files;
+  }
+
+  /** Packs are opened once per run and reopened after a repack. */
+  // Synchronized since add stores files from several threads
+  private static synchronized List<PackFile> packs() throws IOException {
+    if (packs == null) {
+      packs = PackFile.loadPacks();
+    }
+    return packs;
+  }
+
+}
@@ -0,0 +1,523 @@
+package gitcopy;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * A pack of objects kept in two files under .gitcopy/.packs:
+ *
+ * <pre>
+ * pack-[sha1].pack  "GCPK" [version] [count] then one entry per object
+ * pack-[sha1].idx   "GCIX" [version] [count] [fan-out] [sorted 20-byte ids] [offsets]
+ * </pre>
+ *
+ * Every pack entry is either the full content of an object or a delta against
+ * another entry that comes earlier in the same pack, and its data is deflated. The index is sorted by
+ * object id so a lookup is a binary search. The fan-out holds 256 counts, where
+ * entry b is the number of ids whose first byte is at most b, so a search only
+ * has to cover the ids that share its first byte.
+ */
+public class PackFile {
+
+  private static final int PACK_MAGIC = 0x47435042; // "GCPK"
+  private static final int INDEX_MAGIC = 0x47434958; // "GCIX"
+  // Full entries that don't compress well are kept as they are, and flagged
+  private static final int PACK_VERSION = 3;
+  private static final int INDEX_VERSION = 2;
+  private static final int INDEX_HEADER_LENGTH = 12;
+  private static final int FANOUT_LENGTH = 256 * 4;
+  private static final int ID_LENGTH = 20;
+  private static final int IDS_START = INDEX_HEADER_LENGTH + FANOUT_LENGTH;
+  private static final byte FULL_ENTRY = 0;
+  private static final byte DELTA_ENTRY = 1;
+  // Set on the kind of a full entry whose data is stored uncompressed
+  private static final byte RAW_DATA_FLAG = 0x10;
+  // Number of recent objects each object is tried against as a delta base
+  private static final int DELTA_WINDOW = 10;
+  private static final int MAX_DELTA_DEPTH = 10;
+  // Objects bigger than this stay loose. Packs are meant for the many small
+  // objects, and keeping big ones out also keeps packs well under the 2 GB that
+  // DataOutputStream.size() can count.
+  static final long PACK_SIZE_LIMIT = 8 * 1024 * 1024;
+
+  private final File packFile;
+  private final File indexFile;
+  private final FileChannel packChannel;
+  private final MappedByteBuffer index;
+  private final int count;
+
+  private PackFile(File indexFile) throws IOException {
+    this.indexFile = indexFile;
+    String baseName = indexFile.getName().substring(0, indexFile.getName().length() - ".idx".length());
+    this.packFile = new File(indexFile.getParentFile(), baseName + ".pack");
+    try (FileChannel indexChannel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+      this.index = indexChannel.map(FileChannel.MapMode.READ_ONLY, 0, indexChannel.size());
+    }
+    if (this.index.getInt(0) != INDEX_MAGIC || this.index.getInt(4) != INDEX_VERSION) {
+      throw new IllegalArgumentException(indexFile.getName() + " is not a pack index.");
+    }
+    this.count = this.index.getInt(8);
+    this.packChannel = FileChannel.open(this.packFile.toPath(), StandardOpenOption.READ);
+    ByteBuffer header = ByteBuffer.allocate(8);
+    this.packChannel.read(header, 0);
+    if (header.getInt(0) != PACK_MAGIC || header.getInt(4) != PACK_VERSION) {
+      this.packChannel.close();
+      throw new IllegalArgumentException(this.packFile.getName() + " is not a pack.");
+    }
+  }
+
+  /** Opens every pack in the pack directory. */
+  public static List<PackFile> loadPacks() throws IOException {
+    List<PackFile> packs = new ArrayList<>();
+    File[] indexFiles = new File(Repo.PACK_DIRECTORY).listFiles((directory, name) -> name.endsWith(".idx"));
+    if (indexFiles == null) {
+      return packs;
+    }
+    Arrays.sort(indexFiles);
+    for (File indexFile : indexFiles) {
+      packs.add(new PackFile(indexFile));
+    }
+    return packs;
+  }
+
+  /** Checks if the object is in this pack. */
+  public boolean contains(String sha1) {
+    return findPosition(sha1) >= 0;
+  }
+
+  /**
+   * Finds the objects in this pack whose id starts with a prefix.
+   *
+   * @param prefix - Lowercase hexadecimal start of an id
+   * @param limit  - Most ids to return
+   * @return the matching ids in sorted order
+   */
+  public List<String> findByPrefix(String prefix, int limit) {
+    List<String> matches = new ArrayList<>();
+    byte[] lowest = FileUtils.fromHex(padPrefix(prefix, '0'));
+    byte[] highest = FileUtils.fromHex(padPrefix(prefix, 'f'));
+    int position = lowerBound(lowest);
+    while (position < this.count && matches.size() < limit && compareIdAt(position, highest) <= 0) {
+      matches.add(idAt(position));
+      position++;
+    }
+    return matches;
+  }
+
+  private static String padPrefix(String prefix, char fill) {
+    StringBuilder id = new StringBuilder(ID_LENGTH * 2).append(prefix);
+    while (id.length() < ID_LENGTH * 2) {
+      id.append(fill);
+    }
+    return id.toString();
+  }
+
+  /** Ids of every object in this pack, in sorted order. */
+  public List<String> getObjectIds() {
+    List<String> ids = new ArrayList<>(this.count);
+    for (int position = 0; position < this.count; position++) {
+      ids.add(idAt(position));
+    }
+    return ids;
+  }
+
+  /**
+   * Opens an object stored in this pack. Full entries are streamed straight out
+   * of the pack, and deltas are resolved against their base first.
+   *
+   * @param sha1 - SHA1 of the object
+   * @return the object, or null if it isn't in this pack
+   * @throws IOException
+   */
+  public ObjectStore.RawObject openObject(String sha1) throws IOException {
+    int position = findPosition(sha1);
+    if (position < 0) {
+      return null;
+    }
+    long offset = offsetAt(position);
+    Entry entry = readEntry(offset);
+    if (entry.kind == FULL_ENTRY) {
+      InputStream data = new RangeInputStream(this.packChannel, entry.dataOffset, entry.storedLength);
+      return new ObjectStore.RawObject(new ObjectStore.Header(entry.type, entry.size),
+          entry.compressed ? FileUtils.newDecompressingStream(data) : data);
+    }
+    byte[] content = readContent(offset);
+    return new ObjectStore.RawObject(new ObjectStore.Header(entry.type, entry.size),
+        new ByteArrayInputStream(content));
+  }
+
+  /**
+   * Writes an object straight from a memory-mapped region of the pack into the
+   * channel. Only works for full entries stored uncompressed.
+   *
+   * @param sha1        - SHA1 of the object
+   * @param destination - Channel to write the content into
+   * @return false if the object isn't in this pack or has to be decoded first
+   * @throws IOException
+   */
+  public boolean transferTo(String sha1, FileChannel destination) throws IOException {
+    int position = findPosition(sha1);
+    if (position < 0) {
+      return false;
+    }
+    Entry entry = readEntry(offsetAt(position));
+    if (entry.kind != FULL_ENTRY || entry.compressed || entry.type.equals(ObjectStore.CHUNKED_TYPE)) {
+      return false;
+    }
+    MappedByteBuffer data = this.packChannel.map(FileChannel.MapMode.READ_ONLY, entry.dataOffset,
+        entry.storedLength);
+    while (data.hasRemaining()) {
+      destination.write(data);
+    }
+    return true;
+  }
+
+  /** Reads the type and size of an object without resolving its content. */
+  public ObjectStore.Header readHeader(String sha1) throws IOException {
+    int position = findPosition(sha1);
+    if (position < 0) {
+      return null;
+    }
+    Entry entry = readEntry(offsetAt(position));
+    return new ObjectStore.Header(entry.type, entry.size);
+  }
+
+  /** Checks if this pack is the one described by the index file. */
+  boolean isIndexFile(File file) {
+    return this.indexFile.getAbsoluteFile().equals(file.getAbsoluteFile());
+  }
+
+  /** Releases the pack and removes both of its files. */
+  void delete() throws IOException {
+    this.packChannel.close();
+    Files.deleteIfExists(this.indexFile.toPath());
+    Files.deleteIfExists(this.packFile.toPath());
+  }
+
+  /**
+   * Writes every given object into a new pack. Objects are sorted by type and
+   * size so similar objects end up next to each other, and each one is stored
+   * as a delta against whichever recent object gives the smallest result.
+   *
+   * @param ids - SHA1s of the objects to pack. All must be readable through the
+   *            ObjectStore and no bigger than PACK_SIZE_LIMIT.
+   * @return the file of the new pack index
+   * @throws IOException
+   */
+  static File write(Collection<String> ids) throws IOException {
+    File packDirectory = new File(Repo.PACK_DIRECTORY);
+    packDirectory.mkdirs();
+    List<Candidate> candidates = new ArrayList<>();
+    for (String id : ids) {
+      candidates.add(new Candidate(id, ObjectStore.readHeader(id)));
+    }
+    candidates.sort(Comparator.comparing((Candidate candidate) -> candidate.header.getType())
+        .thenComparingLong(candidate -> candidate.header.getSize()));
+
+    Map<String, Long> offsets = new HashMap<>();
+    Path tempPack = Files.createTempFile(packDirectory.toPath(), "tmp_", ".pack");
+    try {
+      try (DataOutputStream outputStream = new DataOutputStream(
+          new BufferedOutputStream(Files.newOutputStream(tempPack)))) {
+        outputStream.writeInt(PACK_MAGIC);
+        outputStream.writeInt(PACK_VERSION);
+        outputStream.writeInt(candidates.size());
+        Deque<WindowEntry> window = new ArrayDeque<>();
+        for (Candidate candidate : candidates) {
+          offsets.put(candidate.id, (long) outputStream.size());
+          writeEntry(outputStream, candidate, window);
+        }
+      }
+      String packName = "pack-" + FileUtils.sha1(String.join("", new TreeSet<>(ids)));
+      Files.move(tempPack, new File(packDirectory, packName + ".pack").toPath(),
+          StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      File indexFile = new File(packDirectory, packName + ".idx");
+      writeIndex(indexFile, offsets);
+      return indexFile;
+    } finally {
+      Files.deleteIfExists(tempPack);
+    }
+  }
+
+  /** Writes a single entry, trying each object in the window as a delta base. */
+  private static void writeEntry(DataOutputStream outputStream, Candidate candidate, Deque<WindowEntry> window)
+      throws IOException {
+    String type = candidate.header.getType();
+    long offset = outputStream.size();
+    byte[] content;
+    try (InputStream inputStream = ObjectStore.openStoredObject(candidate.id).getContent()) {
+      content = inputStream.readAllBytes();
+    }
+    WindowEntry bestBase = null;
+    byte[] bestDelta = null;
+    for (WindowEntry base : window) {
+      if (!base.type.equals(type) || base.depth >= MAX_DELTA_DEPTH) {
+        continue;
+      }
+      byte[] delta = Delta.create(base.content, content);
+      if (delta != null && (bestDelta == null || delta.length < bestDelta.length)) {
+        bestDelta = delta;
+        bestBase = base;
+      }
+    }
+    if (bestDelta == null && !FileUtils.isWorthCompressing(content, content.length)) {
+      writeEntryHeader(outputStream, (byte) (FULL_ENTRY | RAW_DATA_FLAG), type, content.length);
+      outputStream.writeLong(content.length);
+      outputStream.write(content);
+    } else if (bestDelta == null) {
+      writeEntryHeader(outputStream, FULL_ENTRY, type, content.length);
+      writeEntryData(outputStream, content);
+    } else {
+      writeEntryHeader(outputStream, DELTA_ENTRY, type, content.length);
+      outputStream.writeLong(bestBase.offset);
+      writeEntryData(outputStream, bestDelta);
+    }
+    window.addLast(new WindowEntry(type, content, offset, bestBase == null ? 0 : bestBase.depth + 1));
+    if (window.size() > DELTA_WINDOW) {
+      window.removeFirst();
+    }
+  }
+
+  private static void writeEntryHeader(DataOutputStream outputStream, byte kind, String type, long size)
+      throws IOException {
+    outputStream.writeByte(kind);
+    outputStream.writeUTF(type);
+    outputStream.writeLong(size);
+  }
+
+  /** Deflates the entry data and writes it after its stored length. */
+  private static void writeEntryData(DataOutputStream outputStream, byte[] data) throws IOException {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    try (OutputStream compressingStream = FileUtils.newCompressingStream(compressed)) {
+      compressingStream.write(data);
+    }
+    outputStream.writeLong(compressed.size());
+    compressed.writeTo(outputStream);
+  }
+
+  private static void writeIndex(File indexFile, Map<String, Long> offsets) throws IOException {
+    List<String> sortedIds = new ArrayList<>(offsets.keySet());
+    sortedIds.sort(null);
+    Path tempIndex = Files.createTempFile(indexFile.getParentFile().toPath(), "tmp_", ".idx");
+    try {
+      try (DataOutputStream outputStream = new DataOutputStream(
+          new BufferedOutputStream(Files.newOutputStream(tempIndex)))) {
+        outputStream.writeInt(INDEX_MAGIC);
+        outputStream.writeInt(INDEX_VERSION);
+        outputStream.writeInt(sortedIds.size());
+        int[] fanout = new int[256];
+        for (String id : sortedIds) {
+          fanout[Integer.parseInt(id.substring(0, 2), 16)]++;
+        }
+        int total = 0;
+        for (int count : fanout) {
+          total += count;
+          outputStream.writeInt(total);
+        }
+        for (String id : sortedIds) {
+          outputStream.write(FileUtils.fromHex(id));
+        }
+        for (String id : sortedIds) {
+          outputStream.writeLong(offsets.get(id));
+        }
+      }
+      Files.move(tempIndex, indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tempIndex);
+    }
+  }
+
+  /** Resolves the content of the entry at the offset, following delta bases. */
+  private byte[] readContent(long offset) throws IOException {
+    Entry entry = readEntry(offset);
+    byte[] data = readBytes(entry.dataOffset, Math.toIntExact(entry.storedLength));
+    if (entry.compressed) {
+      try (InputStream inputStream = FileUtils.newDecompressingStream(new ByteArrayInputStream(data))) {
+        data = inputStream.readAllBytes();
+      }
+    }
+    if (entry.kind == FULL_ENTRY) {
+      return data;
+    }
+    return Delta.apply(readContent(entry.baseOffset), data);
+  }
+
+  private Entry readEntry(long offset) throws IOException {
+    // Entry headers are small: kind, type string and a few longs
+    ByteBuffer buffer = ByteBuffer.allocate(64);
+    this.packChannel.read(buffer, offset);
+    buffer.flip();
+    Entry entry = new Entry();
+    byte kind = buffer.get();
+    entry.kind = (byte) (kind & ~RAW_DATA_FLAG);
+    byte[] typeBytes = new byte[buffer.getShort()];
+    buffer.get(typeBytes);
+    entry.type = new String(typeBytes, StandardCharsets.UTF_8);
+    entry.size = buffer.getLong();
+    if (entry.kind == DELTA_ENTRY) {
+      entry.baseOffset = buffer.getLong();
+    } else if (entry.kind != FULL_ENTRY) {
+      throw new IllegalArgumentException(this.packFile.getName() + " is corrupt.");
+    }
+    entry.storedLength = buffer.getLong();
+    entry.compressed = (kind & RAW_DATA_FLAG) == 0;
+    entry.dataOffset = offset + buffer.position();
+    return entry;
+  }
+
+  private byte[] readBytes(long offset, int length) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    while (buffer.hasRemaining()) {
+      if (this.packChannel.read(buffer, offset + buffer.position()) < 0) {
+        throw new IllegalArgumentException(this.packFile.getName() + " is truncated.");
+      }
+    }
+    return buffer.array();
+  }
+
+  /** Binary search over the sorted ids in the index. */
+  private int findPosition(String sha1) {
+    if (sha1.length() != ID_LENGTH * 2) {
+      return -1;
+    }
+    byte[] target = FileUtils.fromHex(sha1);
+    int position = lowerBound(target);
+    return position < this.count && compareIdAt(position, target) == 0 ? position : -1;
+  }
+
+  /**
+   * Position of the first id that isn't less than the target. The fan-out
+   * narrows the search to the ids with the same first byte.
+   */
+  private int lowerBound(byte[] target) {
+    int firstByte = target[0] & 0xFF;
+    int low = firstByte == 0 ? 0 : this.index.getInt(INDEX_HEADER_LENGTH + (firstByte - 1) * 4);
+    int high = this.index.getInt(INDEX_HEADER_LENGTH + firstByte * 4);
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (compareIdAt(middle, target) < 0) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  private int compareIdAt(int position, byte[] target) {
+    int start = IDS_START + position * ID_LENGTH;
+    for (int i = 0; i < ID_LENGTH; i++) {
+      int comparison = Integer.compare(this.index.get(start + i) & 0xFF, target[i] & 0xFF);
+      if (comparison != 0) {
+        return comparison;
+      }
+    }
+    return 0;
+  }
+
+  private String idAt(int position) {
+    byte[] id = new byte[ID_LENGTH];
+    this.index.get(IDS_START + position * ID_LENGTH, id);
+    return FileUtils.toHex(id);
+  }
+
+  private long offsetAt(int position) {
+    return this.index.getLong(IDS_START + this.count * ID_LENGTH + position * 8);
+  }
+
+  /** Parsed header of one entry in the pack. */
+  private static class Entry {
+    private byte kind;
+    private String type;
+    private long size;
+    private long baseOffset;
+    private long storedLength;
+    private boolean compressed;
+    private long dataOffset;
+  }
+
+  /** An object waiting to be written into a pack. */
+  private static class Candidate {
+    private final String id;
+    private final ObjectStore.Header header;
+
+    Candidate(String id, ObjectStore.Header header) {
+      this.id = id;
+      this.header = header;
+    }
+  }
+
+  /** A recently written object that later objects may be deltas against. */
+  private static class WindowEntry {
+    private final String type;
+    private final byte[] content;
+    private final long offset;
+    private final int depth;
+
+    WindowEntry(String type, byte[] content, long offset, int depth) {
+      this.type = type;
+      this.content = content;
+      this.offset = offset;
+      this.depth = depth;
+    }
+  }
+
+  /** Streams a range of the pack using positional reads. */
+  private static class RangeInputStream extends InputStream {
+    private final FileChannel channel;
+    private long position;
+    private final long end;
+
+    RangeInputStream(FileChannel channel, long start, long length) {
+      this.channel = channel;
+      this.position = start;
+      this.end = start + length;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] single = new byte[1];
+      return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      if (this.position >= this.end) {
+        return -1;
+      }
+      int toRead = (int) Math.min(length, this.end - this.position);
+      int read = this.channel.read(ByteBuffer.wrap(buffer, offset, toRead), this.position);
+      if (read < 0) {
+        return -1;
+      }
+      this.position += read;
+      return read;
+    }
+  }
+
+}
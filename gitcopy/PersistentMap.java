@@ -0,0 +1,527 @@
+package gitcopy;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * A map backed by an immutable hash array mapped trie (HAMT). Every put or
+ * remove copies only the path from the root to the changed entry and shares
+ * the rest of the trie, so fork() can hand out an independent copy in O(1).
+ * Copies keep sharing everything they haven't changed, and diff() skips
+ * whatever two copies still share.
+ *
+ * Iterating walks the trie as it was when iteration started, so the map can be
+ * changed while it's being iterated.
+ */
+public class PersistentMap<K, V> extends AbstractMap<K, V> implements Serializable {
+  private static final long serialVersionUID = -2964476063280276110L;
+
+  private static final int BITS_PER_LEVEL = 5;
+  private static final int LEVEL_MASK = (1 << BITS_PER_LEVEL) - 1;
+
+  private Node root;
+  private int size;
+
+  public PersistentMap() {
+    this.root = BitmapNode.EMPTY;
+    this.size = 0;
+  }
+
+  public PersistentMap(Map<? extends K, ? extends V> map) {
+    this();
+    putAll(map);
+  }
+
+  private PersistentMap(Node root, int size) {
+    this.root = root;
+    this.size = size;
+  }
+
+  /** Returns an independent copy of this map that shares all of its nodes. */
+  public PersistentMap<K, V> fork() {
+    return new PersistentMap<>(this.root, this.size);
+  }
+
+  @Override
+  public int size() {
+    return this.size;
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return this.root.find(hash(key), 0, key) != null;
+  }
+
+  @Override
+  public V get(Object key) {
+    Leaf leaf = this.root.find(hash(key), 0, key);
+    return leaf == null ? null : castValue(leaf.value);
+  }
+
+  @Override
+  public V put(K key, V value) {
+    int hash = hash(key);
+    Leaf existing = this.root.find(hash, 0, key);
+    if (existing != null && Objects.equals(existing.value, value)) {
+      return value;
+    }
+    this.root = this.root.put(hash, 0, new Leaf(hash, key, value));
+    if (existing == null) {
+      this.size++;
+      return null;
+    }
+    return castValue(existing.value);
+  }
+
+  @Override
+  public V remove(Object key) {
+    int hash = hash(key);
+    Leaf existing = this.root.find(hash, 0, key);
+    if (existing == null) {
+      return null;
+    }
+    Node newRoot = this.root.remove(hash, 0, key);
+    this.root = newRoot == null ? BitmapNode.EMPTY : newRoot;
+    this.size--;
+    return castValue(existing.value);
+  }
+
+  @Override
+  public void clear() {
+    this.root = BitmapNode.EMPTY;
+    this.size = 0;
+  }
+
+  @Override
+  public Set<Map.Entry<K, V>> entrySet() {
+    return new AbstractSet<Map.Entry<K, V>>() {
+      @Override
+      public Iterator<Map.Entry<K, V>> iterator() {
+        return new LeafIterator(PersistentMap.this.root);
+      }
+
+      @Override
+      public int size() {
+        return PersistentMap.this.size;
+      }
+    };
+  }
+
+  /** Receives the differences found by diff. */
+  public interface ChangeListener<K, V> {
+    /** The key was added, or its value changed. */
+    void put(K key, V value);
+
+    /** The key was removed. */
+    void removed(K key);
+  }
+
+  /**
+   * Reports every key that differs between two versions of a map. Subtrees the
+   * two versions still share are skipped without being looked at, so comparing
+   * a map with a fork of itself costs time in the number of changes, not in the
+   * size of the map.
+   *
+   * @param before   - The older version of the map
+   * @param after    - The newer version of the map
+   * @param listener - Receives one call per changed key
+   */
+  public static <K, V> void diff(PersistentMap<K, V> before, PersistentMap<K, V> after,
+      ChangeListener<K, V> listener) {
+    diffSlots(before.root, after.root, 0, listener);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <K, V> void diffSlots(Object before, Object after, int shift, ChangeListener<K, V> listener) {
+    if (before == after) {
+      return;
+    }
+    if (before instanceof BitmapNode && after instanceof BitmapNode) {
+      BitmapNode beforeNode = (BitmapNode) before;
+      BitmapNode afterNode = (BitmapNode) after;
+      int bits = beforeNode.bitmap | afterNode.bitmap;
+      while (bits != 0) {
+        int bit = Integer.lowestOneBit(bits);
+        bits &= ~bit;
+        Object beforeSlot = (beforeNode.bitmap & bit) == 0 ? null : beforeNode.slots[beforeNode.indexOf(bit)];
+        Object afterSlot = (afterNode.bitmap & bit) == 0 ? null : afterNode.slots[afterNode.indexOf(bit)];
+        diffSlots(beforeSlot, afterSlot, shift + BITS_PER_LEVEL, listener);
+      }
+      return;
+    }
+    if (before instanceof Leaf && after instanceof Leaf && Objects.equals(((Leaf) before).key,
+        ((Leaf) after).key)) {
+      Leaf afterLeaf = (Leaf) after;
+      if (!Objects.equals(((Leaf) before).value, afterLeaf.value)) {
+        listener.put((K) afterLeaf.key, (V) afterLeaf.value);
+      }
+      return;
+    }
+    // The shapes differ, e.g. a leaf that was split into a subtree. Such slots
+    // hold few entries, so they're compared entry by entry.
+    Map<Object, Object> beforeEntries = new HashMap<>();
+    collectLeaves(before, beforeEntries);
+    Map<Object, Object> afterEntries = new HashMap<>();
+    collectLeaves(after, afterEntries);
+    for (Map.Entry<Object, Object> entry : beforeEntries.entrySet()) {
+      if (!afterEntries.containsKey(entry.getKey())) {
+        listener.removed((K) entry.getKey());
+      }
+    }
+    for (Map.Entry<Object, Object> entry : afterEntries.entrySet()) {
+      if (!beforeEntries.containsKey(entry.getKey())
+          || !Objects.equals(beforeEntries.get(entry.getKey()), entry.getValue())) {
+        listener.put((K) entry.getKey(), (V) entry.getValue());
+      }
+    }
+  }
+
+  private static void collectLeaves(Object slot, Map<Object, Object> entries) {
+    if (slot instanceof Leaf) {
+      entries.put(((Leaf) slot).key, ((Leaf) slot).value);
+    } else if (slot instanceof BitmapNode) {
+      for (Object child : ((BitmapNode) slot).slots) {
+        collectLeaves(child, entries);
+      }
+    } else if (slot instanceof CollisionNode) {
+      for (Leaf leaf : ((CollisionNode) slot).leaves) {
+        collectLeaves(leaf, entries);
+      }
+    }
+  }
+
+  private static int hash(Object key) {
+    int hash = Objects.hashCode(key);
+    return hash ^ (hash >>> 16);
+  }
+
+  @SuppressWarnings("unchecked")
+  private V castValue(Object value) {
+    return (V) value;
+  }
+
+  /** Index of the child or leaf for the hash at this level of the trie. */
+  private static int bitFor(int hash, int shift) {
+    return 1 << ((hash >>> shift) & LEVEL_MASK);
+  }
+
+  /** A trie node. Nodes are never changed after they are built. */
+  private abstract static class Node implements Serializable {
+    private static final long serialVersionUID = -3212901348395033499L;
+
+    abstract Leaf find(int hash, int shift, Object key);
+
+    abstract Node put(int hash, int shift, Leaf leaf);
+
+    /** Returns the node without the key, or null if nothing is left in it. */
+    abstract Node remove(int hash, int shift, Object key);
+  }
+
+  /** A single key and value, stored in the slot for its hash. */
+  private static final class Leaf implements Map.Entry<Object, Object>, Serializable {
+    private static final long serialVersionUID = 2645712453536727858L;
+
+    private final int hash;
+    private final Object key;
+    private final Object value;
+
+    Leaf(int hash, Object key, Object value) {
+      this.hash = hash;
+      this.key = key;
+      this.value = value;
+    }
+
+    @Override
+    public Object getKey() {
+      return this.key;
+    }
+
+    @Override
+    public Object getValue() {
+      return this.value;
+    }
+
+    @Override
+    public Object setValue(Object value) {
+      throw new UnsupportedOperationException("Entries of a PersistentMap can't be changed in place.");
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Map.Entry)) {
+        return false;
+      }
+      Map.Entry<?, ?> entry = (Map.Entry<?, ?>) other;
+      return Objects.equals(this.key, entry.getKey()) && Objects.equals(this.value, entry.getValue());
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(this.key) ^ Objects.hashCode(this.value);
+    }
+  }
+
+  /**
+   * Node with up to 32 slots, one per 5 bits of the hash. The bitmap says which
+   * slots are used, and slots holds them packed in order. Each slot is either a
+   * Leaf or a child Node.
+   */
+  private static final class BitmapNode extends Node {
+    private static final long serialVersionUID = 380224095879521861L;
+
+    private static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+    private final int bitmap;
+    private final Object[] slots;
+
+    BitmapNode(int bitmap, Object[] slots) {
+      this.bitmap = bitmap;
+      this.slots = slots;
+    }
+
+    private int indexOf(int bit) {
+      return Integer.bitCount(this.bitmap & (bit - 1));
+    }
+
+    @Override
+    Leaf find(int hash, int shift, Object key) {
+      int bit = bitFor(hash, shift);
+      if ((this.bitmap & bit) == 0) {
+        return null;
+      }
+      Object slot = this.slots[indexOf(bit)];
+      if (slot instanceof Node) {
+        return ((Node) slot).find(hash, shift + BITS_PER_LEVEL, key);
+      }
+      Leaf leaf = (Leaf) slot;
+      return Objects.equals(leaf.key, key) ? leaf : null;
+    }
+
+    @Override
+    Node put(int hash, int shift, Leaf leaf) {
+      int bit = bitFor(hash, shift);
+      int index = indexOf(bit);
+      if ((this.bitmap & bit) == 0) {
+        Object[] newSlots = new Object[this.slots.length + 1];
+        System.arraycopy(this.slots, 0, newSlots, 0, index);
+        newSlots[index] = leaf;
+        System.arraycopy(this.slots, index, newSlots, index + 1, this.slots.length - index);
+        return new BitmapNode(this.bitmap | bit, newSlots);
+      }
+      Object slot = this.slots[index];
+      Object newSlot;
+      if (slot instanceof Node) {
+        newSlot = ((Node) slot).put(hash, shift + BITS_PER_LEVEL, leaf);
+      } else {
+        Leaf existing = (Leaf) slot;
+        if (Objects.equals(existing.key, leaf.key)) {
+          newSlot = leaf;
+        } else {
+          newSlot = merge(existing, leaf, shift + BITS_PER_LEVEL);
+        }
+      }
+      Object[] newSlots = this.slots.clone();
+      newSlots[index] = newSlot;
+      return new BitmapNode(this.bitmap, newSlots);
+    }
+
+    @Override
+    Node remove(int hash, int shift, Object key) {
+      int bit = bitFor(hash, shift);
+      if ((this.bitmap & bit) == 0) {
+        return this;
+      }
+      int index = indexOf(bit);
+      Object slot = this.slots[index];
+      Object newSlot;
+      if (slot instanceof Node) {
+        Node newChild = ((Node) slot).remove(hash, shift + BITS_PER_LEVEL, key);
+        newSlot = newChild == null ? null : collapse(newChild);
+      } else {
+        newSlot = Objects.equals(((Leaf) slot).key, key) ? null : slot;
+      }
+      if (newSlot == slot) {
+        return this;
+      }
+      if (newSlot != null) {
+        Object[] newSlots = this.slots.clone();
+        newSlots[index] = newSlot;
+        return new BitmapNode(this.bitmap, newSlots);
+      }
+      if (this.slots.length == 1) {
+        return null;
+      }
+      Object[] newSlots = new Object[this.slots.length - 1];
+      System.arraycopy(this.slots, 0, newSlots, 0, index);
+      System.arraycopy(this.slots, index + 1, newSlots, index, newSlots.length - index);
+      return new BitmapNode(this.bitmap & ~bit, newSlots);
+    }
+
+    /** A child left with a single leaf is replaced by that leaf. */
+    private static Object collapse(Node child) {
+      if (child instanceof BitmapNode) {
+        BitmapNode bitmapChild = (BitmapNode) child;
+        if (bitmapChild.slots.length == 1 && bitmapChild.slots[0] instanceof Leaf) {
+          return bitmapChild.slots[0];
+        }
+      }
+      return child;
+    }
+
+    /** Builds the smallest subtree holding two leaves whose hashes share a prefix. */
+    private static Node merge(Leaf first, Leaf second, int shift) {
+      if (first.hash == second.hash) {
+        return new CollisionNode(first.hash, new Leaf[] { first, second });
+      }
+      int firstBit = bitFor(first.hash, shift);
+      int secondBit = bitFor(second.hash, shift);
+      if (firstBit == secondBit) {
+        return new BitmapNode(firstBit, new Object[] { merge(first, second, shift + BITS_PER_LEVEL) });
+      }
+      Object[] slots = Integer.compareUnsigned(firstBit, secondBit) < 0
+          ? new Object[] { first, second }
+          : new Object[] { second, first };
+      return new BitmapNode(firstBit | secondBit, slots);
+    }
+  }
+
+  /** Leaves whose full 32-bit hashes are equal. */
+  private static final class CollisionNode extends Node {
+    private static final long serialVersionUID = 3640078691461689182L;
+
+    private final int hash;
+    private final Leaf[] leaves;
+
+    CollisionNode(int hash, Leaf[] leaves) {
+      this.hash = hash;
+      this.leaves = leaves;
+    }
+
+    private int indexOf(Object key) {
+      for (int i = 0; i < this.leaves.length; i++) {
+        if (Objects.equals(this.leaves[i].key, key)) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    @Override
+    Leaf find(int hash, int shift, Object key) {
+      int index = indexOf(key);
+      return index < 0 ? null : this.leaves[index];
+    }
+
+    @Override
+    Node put(int hash, int shift, Leaf leaf) {
+      if (hash != this.hash) {
+        // Only shares a prefix with the colliding hashes, so split them apart
+        BitmapNode wrapper = new BitmapNode(bitFor(this.hash, shift), new Object[] { this });
+        return wrapper.put(hash, shift, leaf);
+      }
+      int index = indexOf(leaf.key);
+      Leaf[] newLeaves;
+      if (index < 0) {
+        newLeaves = new Leaf[this.leaves.length + 1];
+        System.arraycopy(this.leaves, 0, newLeaves, 0, this.leaves.length);
+        newLeaves[this.leaves.length] = leaf;
+      } else {
+        newLeaves = this.leaves.clone();
+        newLeaves[index] = leaf;
+      }
+      return new CollisionNode(this.hash, newLeaves);
+    }
+
+    @Override
+    Node remove(int hash, int shift, Object key) {
+      int index = indexOf(key);
+      if (index < 0) {
+        return this;
+      }
+      if (this.leaves.length == 1) {
+        return null;
+      }
+      Leaf[] newLeaves = new Leaf[this.leaves.length - 1];
+      System.arraycopy(this.leaves, 0, newLeaves, 0, index);
+      System.arraycopy(this.leaves, index + 1, newLeaves, index, newLeaves.length - index);
+      if (newLeaves.length == 1) {
+        // A single leaf can live directly in a bitmap node again
+        return new BitmapNode(bitFor(this.hash, shift), new Object[] { newLeaves[0] });
+      }
+      return new CollisionNode(this.hash, newLeaves);
+    }
+  }
+
+  /** Depth-first walk over every leaf under a root. */
+  private class LeafIterator implements Iterator<Map.Entry<K, V>> {
+    private final Deque<Object[]> stack = new ArrayDeque<>();
+    private final Deque<Integer> positions = new ArrayDeque<>();
+    private Leaf next;
+    private Leaf last;
+
+    LeafIterator(Node root) {
+      pushNode(root);
+      advance();
+    }
+
+    private void pushNode(Node node) {
+      this.stack.push(node instanceof BitmapNode ? ((BitmapNode) node).slots : ((CollisionNode) node).leaves);
+      this.positions.push(0);
+    }
+
+    private void advance() {
+      this.next = null;
+      while (!this.stack.isEmpty()) {
+        Object[] slots = this.stack.peek();
+        int position = this.positions.pop();
+        if (position >= slots.length) {
+          this.stack.pop();
+          continue;
+        }
+        this.positions.push(position + 1);
+        Object slot = slots[position];
+        if (slot instanceof Node) {
+          pushNode((Node) slot);
+        } else {
+          this.next = (Leaf) slot;
+          return;
+        }
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return this.next != null;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Map.Entry<K, V> next() {
+      if (this.next == null) {
+        throw new NoSuchElementException();
+      }
+      this.last = this.next;
+      advance();
+      return (Map.Entry<K, V>) (Map.Entry<?, ?>) this.last;
+    }
+
+    @Override
+    public void remove() {
+      if (this.last == null) {
+        throw new IllegalStateException();
+      }
+      PersistentMap.this.remove(this.last.key);
+      this.last = null;
+    }
+  }
+
+}
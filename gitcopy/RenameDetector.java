@@ -0,0 +1,333 @@
+package gitcopy;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Pairs up files that were deleted with files that were added when the added
+ * file is the deleted one moved, with or without changes. Files can also be
+ * found to be copies of files that still exist.
+ *
+ * Files with the same blob are paired first, without reading anything. The
+ * rest are compared by MinHash: each file is cut into chunks, at newlines or
+ * every CHUNK_LENGTH bytes, and the smallest value of SIGNATURE_LENGTH hash
+ * functions over its chunks make up its signature. The share of positions two
+ * signatures agree on estimates the share of chunks the files have in common.
+ * Rather than comparing every deleted file with every added one, signatures
+ * are cut into BANDS bands and only files that agree on a whole band are
+ * compared, so moving thousands of files costs time in the number of files,
+ * not in its square.
+ *
+ * Only the best MAX_CANDIDATES sources of each added file are kept, so files
+ * that all look alike don't pile up a candidate for every pair of them.
+ *
+ * Pairs are taken best score first, and each added file is paired once. A
+ * deleted file is renamed once. Any later pairing with it is a copy, and only
+ * made when copies are looked for.
+ */
+public class RenameDetector {
+
+  // Lowest score, in percent, for two different files to count as a rename
+  public static final int MIN_SCORE = 50;
+
+  private static final int MAX_CANDIDATES = 8;
+  private static final int CHUNK_LENGTH = 64;
+  private static final int BANDS = 24;
+  private static final int ROWS = 3;
+  private static final int SIGNATURE_LENGTH = BANDS * ROWS;
+  private static final long[] SEEDS = new long[SIGNATURE_LENGTH];
+
+  static {
+    long seed = 0x9E3779B97F4A7C15L;
+    for (int i = 0; i < SIGNATURE_LENGTH; i++) {
+      seed = mix(seed + i);
+      SEEDS[i] = seed;
+    }
+  }
+
+  /** A file found at a new path, moved or copied from an old one. */
+  public static class Rename {
+    private final String oldPath;
+    private final String newPath;
+    private final int score;
+    private final boolean copy;
+
+    Rename(String oldPath, String newPath, int score, boolean copy) {
+      this.oldPath = oldPath;
+      this.newPath = newPath;
+      this.score = score;
+      this.copy = copy;
+    }
+
+    public String getOldPath() {
+      return this.oldPath;
+    }
+
+    public String getNewPath() {
+      return this.newPath;
+    }
+
+    /** How alike the two files are, from 0 to 100. */
+    public int getScore() {
+      return this.score;
+    }
+
+    /** Whether the old file is still there, or was already renamed elsewhere. */
+    public boolean isCopy() {
+      return this.copy;
+    }
+  }
+
+  /** MinHash signature of a file and its size. */
+  private static class Signature {
+    private final long[] minimums;
+    private final long size;
+
+    Signature(long[] minimums, long size) {
+      this.minimums = minimums;
+      this.size = size;
+    }
+
+    private int scoreAgainst(Signature other) {
+      int same = 0;
+      for (int i = 0; i < SIGNATURE_LENGTH; i++) {
+        if (this.minimums[i] == other.minimums[i]) {
+          same++;
+        }
+      }
+      return same * 100 / SIGNATURE_LENGTH;
+    }
+  }
+
+  private static class Candidate {
+    private final String source;
+    private final String target;
+    private final int score;
+    private final boolean sameName;
+
+    Candidate(String source, String target, int score, boolean sameName) {
+      this.source = source;
+      this.target = target;
+      this.score = score;
+      this.sameName = sameName;
+    }
+  }
+
+  // Best score first. Ties go to a source with the same file name, then to the
+  // first path.
+  private static final Comparator<Candidate> BEST_FIRST = Comparator
+      .comparingInt((Candidate candidate) -> -candidate.score)
+      .thenComparing(candidate -> !candidate.sameName)
+      .thenComparing(candidate -> candidate.target)
+      .thenComparing(candidate -> candidate.source);
+
+  private RenameDetector() {
+  }
+
+  /**
+   * Finds the added files that were moved or copied from somewhere else.
+   *
+   * @param deleted      - Paths that were removed, mapped to their old blob
+   * @param added        - Paths that are new, mapped to their blob
+   * @param copySources  - Paths that exist on both sides and may have been
+   *                     copied, mapped to their old blob, or null to only
+   *                     look for renames
+   * @param beforeSource - Where the old side's content is read from
+   * @param afterSource  - Where the new side's content is read from
+   * @return the renames and copies found, at most one per added path
+   * @throws IOException
+   */
+  public static List<Rename> detect(Map<String, String> deleted, Map<String, String> added,
+      Map<String, String> copySources, Diff.ContentSource beforeSource, Diff.ContentSource afterSource)
+      throws IOException {
+    List<Rename> renames = new ArrayList<>();
+    boolean findCopies = copySources != null;
+    if (added.isEmpty() || (deleted.isEmpty() && !findCopies)) {
+      return renames;
+    }
+    Map<String, String> sources = findCopies ? new HashMap<>(copySources) : new HashMap<>();
+    sources.putAll(deleted);
+    Set<String> renamedSources = new HashSet<>();
+    Set<String> pairedTargets = new HashSet<>();
+
+    // Same blob on both sides, found without reading anything
+    Map<String, List<String>> sourcesByBlob = new HashMap<>();
+    for (Map.Entry<String, String> source : sources.entrySet()) {
+      sourcesByBlob.computeIfAbsent(source.getValue(), blobSHA1 -> new ArrayList<>()).add(source.getKey());
+    }
+    List<Candidate> exactMatches = new ArrayList<>();
+    for (Map.Entry<String, String> target : added.entrySet()) {
+      List<String> matches = sourcesByBlob.get(target.getValue());
+      if (matches != null) {
+        for (String source : matches) {
+          exactMatches.add(new Candidate(source, target.getKey(), 100,
+              fileName(source).equals(fileName(target.getKey()))));
+        }
+      }
+    }
+    pair(exactMatches, deleted, findCopies, renamedSources, pairedTargets, renames);
+
+    // Whatever is left is compared by signature
+    // Sources are numbered, so a target can mark which ones it has compared
+    List<String> sourcePaths = new ArrayList<>();
+    List<String> sourceNames = new ArrayList<>();
+    List<Signature> sourceSignatures = new ArrayList<>();
+    Map<Long, List<Integer>> buckets = new HashMap<>();
+    for (Map.Entry<String, String> source : sources.entrySet()) {
+      if (renamedSources.contains(source.getKey()) && !findCopies) {
+        continue;
+      }
+      Signature signature = sign(beforeSource.open(source.getKey(), source.getValue()));
+      if (signature == null) {
+        continue;
+      }
+      int sourceNumber = sourcePaths.size();
+      sourcePaths.add(source.getKey());
+      sourceNames.add(fileName(source.getKey()));
+      sourceSignatures.add(signature);
+      for (int band = 0; band < BANDS; band++) {
+        buckets.computeIfAbsent(bandKey(signature, band), key -> new ArrayList<>()).add(sourceNumber);
+      }
+    }
+    List<Candidate> similarMatches = new ArrayList<>();
+    // The last target each source was compared with
+    int[] comparedWith = new int[sourcePaths.size()];
+    Arrays.fill(comparedWith, -1);
+    int targetNumber = -1;
+    for (Map.Entry<String, String> target : added.entrySet()) {
+      if (pairedTargets.contains(target.getKey())) {
+        continue;
+      }
+      Signature signature = sign(afterSource.open(target.getKey(), target.getValue()));
+      if (signature == null) {
+        continue;
+      }
+      targetNumber++;
+      String targetName = fileName(target.getKey());
+      // Worst of the kept candidates at the head, ready to be dropped
+      PriorityQueue<Candidate> best = new PriorityQueue<>(BEST_FIRST.reversed());
+      for (int band = 0; band < BANDS; band++) {
+        List<Integer> bucket = buckets.get(bandKey(signature, band));
+        if (bucket == null) {
+          continue;
+        }
+        for (int source : bucket) {
+          if (comparedWith[source] == targetNumber) {
+            continue;
+          }
+          comparedWith[source] = targetNumber;
+          Signature sourceSignature = sourceSignatures.get(source);
+          // Files of very different sizes can't be mostly the same
+          long smaller = Math.min(signature.size, sourceSignature.size);
+          long larger = Math.max(signature.size, sourceSignature.size);
+          if (smaller * 100 < larger * MIN_SCORE) {
+            continue;
+          }
+          int score = Math.min(99, signature.scoreAgainst(sourceSignature));
+          if (score < MIN_SCORE) {
+            continue;
+          }
+          boolean sameName = sourceNames.get(source).equals(targetName);
+          Candidate worst = best.peek();
+          // Most files of a large move score alike, so ties are settled here
+          if (best.size() == MAX_CANDIDATES
+              && (score < worst.score || (score == worst.score && (worst.sameName || !sameName)))) {
+            continue;
+          }
+          best.add(new Candidate(sourcePaths.get(source), target.getKey(), score, sameName));
+          if (best.size() > MAX_CANDIDATES) {
+            best.poll();
+          }
+        }
+      }
+      similarMatches.addAll(best);
+    }
+    pair(similarMatches, deleted, findCopies, renamedSources, pairedTargets, renames);
+    return renames;
+  }
+
+  /** Takes candidates best first, each target once. */
+  private static void pair(List<Candidate> candidates, Map<String, String> deleted, boolean findCopies,
+      Set<String> renamedSources, Set<String> pairedTargets, List<Rename> renames) {
+    candidates.sort(BEST_FIRST);
+    for (Candidate candidate : candidates) {
+      boolean copy = !deleted.containsKey(candidate.source) || renamedSources.contains(candidate.source);
+      if (pairedTargets.contains(candidate.target) || (copy && !findCopies)) {
+        continue;
+      }
+      pairedTargets.add(candidate.target);
+      // A deleted file is renamed the first time, and copied after that
+      renamedSources.add(candidate.source);
+      renames.add(new Rename(candidate.source, candidate.target, candidate.score, copy));
+    }
+  }
+
+  /**
+   * Reads a file's chunks into its signature.
+   *
+   * @return the signature, or null for an empty file, which is like any other
+   */
+  private static Signature sign(InputStream content) throws IOException {
+    long[] minimums = new long[SIGNATURE_LENGTH];
+    Arrays.fill(minimums, Long.MAX_VALUE);
+    long size = 0;
+    try (InputStream inputStream = new BufferedInputStream(content)) {
+      long chunkHash = 0;
+      int chunkLength = 0;
+      int nextByte;
+      while (true) {
+        nextByte = inputStream.read();
+        if (nextByte != -1) {
+          size++;
+          chunkHash = chunkHash * 31 + nextByte;
+          chunkLength++;
+        }
+        if (chunkLength > 0 && (nextByte == -1 || nextByte == '\n' || chunkLength == CHUNK_LENGTH)) {
+          for (int i = 0; i < SIGNATURE_LENGTH; i++) {
+            long value = mix(chunkHash ^ SEEDS[i]);
+            if (value < minimums[i]) {
+              minimums[i] = value;
+            }
+          }
+          chunkHash = 0;
+          chunkLength = 0;
+        }
+        if (nextByte == -1) {
+          break;
+        }
+      }
+    }
+    return size == 0 ? null : new Signature(minimums, size);
+  }
+
+  /** Key of one band of a signature, which also tells the bands apart. */
+  private static long bandKey(Signature signature, int band) {
+    long key = band;
+    for (int row = 0; row < ROWS; row++) {
+      key = mix(key * 31 + signature.minimums[band * ROWS + row]);
+    }
+    return key;
+  }
+
+  /** The finalizer of SplitMix64, which spreads every input bit over the result. */
+  private static long mix(long value) {
+    value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+    value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+    return value ^ (value >>> 31);
+  }
+
+  private static String fileName(String path) {
+    return path.substring(path.lastIndexOf('/') + 1);
+  }
+
+}
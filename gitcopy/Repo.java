@@ -1,28 +1,50 @@
 package gitcopy;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 public class Repo implements Serializable {
+  private static final long serialVersionUID = -4973160632390876346L;
 
   private RepoStateMachine REPO_STATE_MACHINE;
   private Map<String, GitCopyStateMachine> BRANCH_STATE_MACHINES;
-  // First key are branches, values are hashmaps of the file name (key) and blobs
-  // (values)
-  private Map<String, Map<String, Blob>> BRANCHES_FILE_BLOP_MAP;
+  // First key are branches, values are maps of the file name (key) and blobs
+  // (values). The inner maps are persistent, so branches share every entry they
+  // haven't changed.
+  private Map<String, PersistentMap<String, Blob>> BRANCHES_FILE_BLOP_MAP;
   private String CURRENT_BRANCH;
   private static final String MAIN_DIRECTORY = FileUtils.findGitCopyRootDirectory().getAbsolutePath();
   private static final String GITCOPY_DIRECTORY = MAIN_DIRECTORY + File.separator + ".gitcopy";
   public static final String BLOB_DIRECTORY = GITCOPY_DIRECTORY + File.separator + ".blobs";
-  public static final String STAGED_DIRECTORY = GITCOPY_DIRECTORY + File.separator + ".staging";
   public static final String COMMIT_DIRECTORY = GITCOPY_DIRECTORY + File.separator + ".commits";
   public static final String BRANCH_DIRECTORY = GITCOPY_DIRECTORY + File.separator + ".branches";
+  public static final String PACK_DIRECTORY = GITCOPY_DIRECTORY + File.separator + ".packs";
+  public static final String INDEX_FILE = GITCOPY_DIRECTORY + File.separator + "index";
+  public static final String COMMIT_GRAPH_FILE = GITCOPY_DIRECTORY + File.separator + "commit-graph";
   static final String DEFAULT_SHA1 = "0000000000000000000000000000000000000000";
   static final String COMMIT_INIT_SHA1 = "1000000000000000000000000000000000000001";
+  // Number of files add reads and hashes at once. Set with -Dgitcopy.threads=[n]
+  private static final int ADD_THREADS = Math.max(1,
+      Integer.getInteger("gitcopy.threads", Runtime.getRuntime().availableProcessors()));
 
   public Repo() {
     REPO_STATE_MACHINE = new RepoStateMachine();
@@ -33,13 +55,25 @@ public class Repo implements Serializable {
     addMasterBranchToFileBlobMap();
   }
 
+  /**
+   * Rebuilds a repo from state that was saved earlier. Used by RepoJournal when
+   * loading the repo at the start of a command.
+   */
+  Repo(RepoStateMachine repoStateMachine, Map<String, GitCopyStateMachine> branchStateMachines,
+      Map<String, PersistentMap<String, Blob>> branchesFileBlobMap, String currentBranch) {
+    REPO_STATE_MACHINE = repoStateMachine;
+    BRANCH_STATE_MACHINES = branchStateMachines;
+    BRANCHES_FILE_BLOP_MAP = branchesFileBlobMap;
+    CURRENT_BRANCH = currentBranch;
+  }
+
   public void initializeRepo() throws IOException {
 
     // Since we already have a REPO key from initialization
     // we can now transition its state to
     // INITIALIZED via transitionState
 
-    REPO_STATE_MACHINE.transitionState("init", "REPO");
+    REPO_STATE_MACHINE.transitionState(GitCopyInputs.INIT, "REPO");
 
     // Create hidden folders to store files in
     createFoldersForInit();
@@ -48,8 +82,8 @@ public class Repo implements Serializable {
     // initial commit. Then saves that to disk. Skip transition state here
     // because there are no files to stage and this is the parent commit.
     Commit initialCommit = makeInitialCommit();
-    Head.setGlobalHead("master", initialCommit);
-    Head.setBranchHead("master", initialCommit);
+    Head.setBranchHead("master", initialCommit.getSHA1());
+    Head.setGlobalHead("master");
 
     System.out.println("Successfully initialized repository");
   }
@@ -59,105 +93,233 @@ public class Repo implements Serializable {
       return;
     }
 
-    // Prevent duplicates of files where blob SHA1s are the same. That would
-    // indicate the same file with no content changes
-    for (String file : files) {
-      Map<String, Blob> currBranchFileBlobMap = BRANCHES_FILE_BLOP_MAP.get(CURRENT_BRANCH);
-      if (currBranchFileBlobMap != null && currBranchFileBlobMap.containsKey(file)) {
-        // check if file with same content already exists in staging area. SHA1 should
-        // be equal if so
-        String blobSHA1OfFile = currBranchFileBlobMap.get(file).getBlobSHA1();
-        File stagedFilePath = FileUtils.createFileInCurrentDirectory(STAGED_DIRECTORY, blobSHA1OfFile);
-        if (stagedFilePath.exists()) {
-          continue;
+    // Files whose stat matches the index keep their blob without being read.
+    // Everything else has to be hashed.
+    Index index = Index.load();
+    long hashedAt = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+    List<String> paths = FileUtils.collectFiles(files);
+    Map<String, Blob> blobs = new HashMap<>();
+    Map<String, BasicFileAttributes> statsToRecord = new HashMap<>();
+    List<String> filesToStore = new ArrayList<>();
+    for (String file : paths) {
+      File fileCWD = new File(file);
+      BasicFileAttributes attributes = fileCWD.isFile()
+          ? Files.readAttributes(fileCWD.toPath(), BasicFileAttributes.class)
+          : null;
+      Index.Entry entry = attributes == null ? null
+          : index.getUnchanged(file, attributes, Blob.modeOf(fileCWD));
+      if (entry != null) {
+        blobs.put(file, entry.toBlob(file));
+      } else {
+        filesToStore.add(file);
+        if (attributes != null) {
+          statsToRecord.put(file, attributes);
         }
       }
-      // Don't need to check state since unstaged files don't exist yet
-      GitCopyStateMachine currBranchStateMachine = BRANCH_STATE_MACHINES.get(CURRENT_BRANCH);
-      currBranchStateMachine.updateFileAndStateToMachine(file, GitCopyStates.UNSTAGED, false);
+    }
 
-      // transition state to staged
-      currBranchStateMachine.transitionState("add", file);
+    // Convert the files into blobs with their contents and SHA1s. Reading and
+    // hashing is the slow part, so it runs on several threads.
+    blobs.putAll(storeFiles(filesToStore));
+    for (Map.Entry<String, BasicFileAttributes> stat : statsToRecord.entrySet()) {
+      index.record(stat.getKey(), stat.getValue(), hashedAt, blobs.get(stat.getKey()));
+    }
+
+    // The state machine and the blob map aren't thread safe, so they're updated
+    // here on a single thread once every file is stored
+    Map<String, Blob> currBranchFileBlobMap = BRANCHES_FILE_BLOP_MAP.get(CURRENT_BRANCH);
+    GitCopyStateMachine currBranchStateMachine = BRANCH_STATE_MACHINES.get(CURRENT_BRANCH);
+    List<String> filesToStage = new ArrayList<>();
+    for (String file : paths) {
+      // Prevent duplicates of files where blob SHA1s are the same. That would
+      // indicate the same file with no content changes
+      Blob trackedBlob = currBranchFileBlobMap.get(file);
+      if (trackedBlob != null && trackedBlob.getBlobSHA1().equals(blobs.get(file).getBlobSHA1())
+          && trackedBlob.getMode() == blobs.get(file).getMode()) {
+        continue;
+      }
+      if (!currBranchStateMachine.fileInStateMachine(file)) {
+        currBranchStateMachine.updateFileAndStateToMachine(file, GitCopyStates.UNSTAGED, false);
+      }
+      filesToStage.add(file);
 
-      // Convert the file into a blob with its contents and a SHA1
-      Blob blob = new Blob(file);
+      Blob blob = blobs.get(file);
       currBranchFileBlobMap.put(file, blob);
+      index.stage(file, blob.getBlobSHA1());
+    }
+    // transition states to staged
+    currBranchStateMachine.transitionAll(GitCopyInputs.ADD, filesToStage);
+    // Stats and staged files go to disk together in one rewrite of the index
+    index.save();
+  }
 
-      // Stages file via save files to disk
-      stageFile(file, blob);
+  /**
+   * Stages every change in the working directory. Modified and untracked files
+   * are added, and tracked files that were deleted are staged for removal. Used
+   * when command of 'java gitcopy.Main add -A' is invoked.
+   */
+  public void addAll() throws IOException {
+    if (!verifyRepoStateInitialized()) {
+      return;
+    }
+    stageDeletedFiles();
+    add(new String[] { "." });
+  }
+
+  /**
+   * Stages every tracked file that was modified or deleted and commits them.
+   * Untracked files are left out. Used when command of 'java gitcopy.Main
+   * commit -a' is invoked.
+   */
+  public void commitAll(String message) throws IOException {
+    List<String> trackedFiles = new ArrayList<>();
+    for (String file : BRANCHES_FILE_BLOP_MAP.get(CURRENT_BRANCH).keySet()) {
+      if (new File(file).isFile()) {
+        trackedFiles.add(file);
+      }
+    }
+    stageDeletedFiles();
+    // Unchanged files match their index entry and are skipped without being read
+    add(trackedFiles.toArray(new String[0]));
+    commit(message);
+  }
+
+  /** Stages the removal of every tracked file that's gone from the working directory. */
+  private void stageDeletedFiles() throws IOException {
+    Map<String, Blob> currBranchFileBlobMap = BRANCHES_FILE_BLOP_MAP.get(CURRENT_BRANCH);
+    List<String> deletedFiles = new ArrayList<>();
+    for (String file : currBranchFileBlobMap.keySet()) {
+      if (!new File(file).isFile()) {
+        deletedFiles.add(file);
+      }
+    }
+    if (deletedFiles.isEmpty()) {
+      return;
+    }
+    Index index = Index.load();
+    for (String file : deletedFiles) {
+      currBranchFileBlobMap.remove(file);
+      index.stageRemoval(file);
+    }
+    BRANCH_STATE_MACHINES.get(CURRENT_BRANCH).transitionAll(GitCopyInputs.REMOVE, deletedFiles);
+    index.save();
+  }
+
+  /**
+   * Streams files into the object store on a pool of ADD_THREADS workers.
+   *
+   * @param files - Paths of the files to store
+   * @return the blob of each file
+   */
+  private static Map<String, Blob> storeFiles(List<String> files) throws IOException {
+    Map<String, Blob> blobs = new HashMap<>();
+    if (files.size() <= 1 || ADD_THREADS == 1) {
+      for (String file : files) {
+        blobs.put(file, new Blob(file));
+      }
+      return blobs;
+    }
+    ExecutorService workers = Executors.newFixedThreadPool(Math.min(ADD_THREADS, files.size()));
+    try {
+      Map<String, Future<Blob>> pending = new LinkedHashMap<>();
+      for (String file : files) {
+        pending.put(file, workers.submit(() -> new Blob(file)));
+      }
+      for (Map.Entry<String, Future<Blob>> entry : pending.entrySet()) {
+        blobs.put(entry.getKey(), entry.getValue().get());
+      }
+    } catch (ExecutionException excp) {
+      Throwable cause = excp.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IllegalArgumentException(cause);
+    } catch (InterruptedException excp) {
+      Thread.currentThread().interrupt();
+      throw new IllegalArgumentException("Interrupted while adding files.");
+    } finally {
+      workers.shutdownNow();
     }
+    return blobs;
   }
 
   public void remove(String[] files) throws IOException {
     GitCopyStateMachine currBranchStateMachine = BRANCH_STATE_MACHINES.get(CURRENT_BRANCH);
     Map<String, Blob> currBranchFileBlobMap = BRANCHES_FILE_BLOP_MAP.get(CURRENT_BRANCH);
+    Index index = Index.load();
     for (String file : files) {
       if (currBranchStateMachine.fileInStateMachine(file)) {
-        Blob blob = currBranchFileBlobMap.get(file);
-        String blobSHA1 = blob.getBlobSHA1();
         currBranchFileBlobMap.remove(file);
-        File blobDirectoryFile = new File(BLOB_DIRECTORY + File.separator + blobSHA1);
-        File blobStagedFile = new File(STAGED_DIRECTORY + File.separator + blobSHA1);
+        // The object itself stays in the store since other files and commits can
+        // share the same content.
         File fileCWD = new File(System.getProperty("user.dir") + File.separator + file);
-        deleteFiles(blobDirectoryFile, blobStagedFile, fileCWD);
+        deleteFiles(fileCWD);
+        index.stageRemoval(file);
         // Transitions state then removes from state machine
-        currBranchStateMachine.transitionState("rm", file);
+        currBranchStateMachine.transitionState(GitCopyInputs.REMOVE, file);
 
       } else {
         System.out.println("This file does not exist.");
       }
     }
+    index.save();
   }
 
   public void commit(String message) throws IOException {
-    Map<String, String> snapMap = new HashMap<>();
     GitCopyStateMachine currBranchStateMachine = BRANCH_STATE_MACHINES.get(CURRENT_BRANCH);
-    Map<String, GitCopyStates> files = currBranchStateMachine.getFiles();
-    Map<String, Blob> currBranchFileBlobMap = BRANCHES_FILE_BLOP_MAP.get(CURRENT_BRANCH);
-
-    for (Map.Entry<String, GitCopyStates> entry : files.entrySet()) {
-      String file = entry.getKey();
-      GitCopyStates state = entry.getValue();
-      if (state == GitCopyStates.STAGED) {
-        String blobSHA1 = currBranchFileBlobMap.get(file).getBlobSHA1();
-        snapMap.put(file, blobSHA1);
-        currBranchStateMachine.transitionState("commit", file);
-        File blobStagedFile = new File(STAGED_DIRECTORY + File.separator + blobSHA1);
-        FileUtils.deleteFile(blobStagedFile);
+    Index index = Index.load();
+    // Paths that changed since the last commit, mapped to their new blob SHA1 or
+    // to null if they were removed. The index lists exactly those, so tracked
+    // files that weren't touched are never looked at.
+    Map<String, String> changes = index.getStaged();
+
+    List<String> committedFiles = new ArrayList<>();
+    for (Map.Entry<String, String> change : changes.entrySet()) {
+      if (change.getValue() == null) {
+        // Removed with rm, so it leaves the tree and stops being tracked
+        currBranchStateMachine.transitionState(GitCopyInputs.REMOVE, change.getKey());
+      } else {
+        committedFiles.add(change.getKey());
       }
     }
-    String lastCommitSHA1 = Head.getGlobalHeadCommitSHA1();
-    Commit newCommit = new Commit(message, snapMap, lastCommitSHA1);
+    currBranchStateMachine.transitionAll(GitCopyInputs.COMMIT, committedFiles);
+    index.clearStaged();
+    // The new tree is the last commit's tree with the changes applied, so only
+    // the directories along the changed paths are written
+    Commit lastCommit = Head.getGlobalHeadCommit();
+    String treeSHA1 = Tree.update(lastCommit.getTreeSHA1(), changes);
+    // A merge that stopped on conflicts is finished by this commit
+    List<String> parents = new ArrayList<>();
+    parents.add(lastCommit.getSHA1());
+    parents.addAll(Head.getMergeHeads());
+    Commit newCommit = new Commit(message, treeSHA1, parents);
     newCommit.saveCommit();
-
-    Branch currentBranch = FileUtils.loadObject(Branch.class, "HEAD", GITCOPY_DIRECTORY);
-    String currBranchName = currentBranch.getName();
-    Head.setGlobalHead(currBranchName, newCommit);
-    Head.setBranchHead(currBranchName, newCommit);
-
+    Head.advanceGlobalHead(newCommit.getSHA1());
+    index.save();
+    Head.clearMergeHeads();
   }
 
   /** Creates a new branch */
   public void branch(String branchName) throws IOException {
     // Grab last global head commit and make it so the branch created
     // has that commit as its first commit pointer
-    Commit lastCommit = Head.getGlobalHeadCommit();
-    if (lastCommit.getSHA1().equals(COMMIT_INIT_SHA1)) {
+    String lastCommitSHA1 = Head.getGlobalHeadCommitSHA1();
+    if (lastCommitSHA1.equals(COMMIT_INIT_SHA1)) {
       System.out.println(
           "Cannot create a new branch so long as the head points to initial commit. Please make a new commit first.");
       return;
     }
-    Head.setBranchHead(branchName, lastCommit);
+    Head.setBranchHead(branchName, lastCommitSHA1);
     addBranchToStateMachine(branchName);
     addBranchToFileBlobMap(branchName);
   }
 
   /** Checks what branches are currently live */
   public void branch() throws IOException {
-    File branchPath = new File(BRANCH_DIRECTORY);
-    File[] branches = branchPath.listFiles();
-    for (File branch : branches) {
-      String fileName = branch.getName();
+    for (String fileName : Head.getBranchNames()) {
       if (CURRENT_BRANCH.equals(fileName)) {
         System.out.println(fileName + " *");
       } else {
@@ -171,17 +333,20 @@ public class Repo implements Serializable {
    * branches]' is invoked
    */
   public void branchDelete(String[] branches) throws IOException {
-    // Remove branch from state machine and blob map, and then remove the branch
-    // file from branches folder
+    // Remove branch from state machine and blob map, and then remove its ref
     for (String branch : branches) {
       BRANCH_STATE_MACHINES.remove(branch);
       BRANCHES_FILE_BLOP_MAP.remove(branch);
-      deleteFiles(new File(BRANCH_DIRECTORY + File.separator + branch));
+      Head.deleteBranch(branch);
     }
   }
 
   /** Checks out to another branch. */
   public void checkoutBranch(String branchName) throws IOException {
+    if (Index.load().hasStaged()) {
+      System.out.println("You have staged changes. Commit them before checking out something else.");
+      return;
+    }
     System.out.println("prev branch: " + CURRENT_BRANCH);
     // If we were previously in a detached head, we remove the detached branch state
     // machine and branch file blob mapping.
@@ -194,230 +359,488 @@ public class Repo implements Serializable {
       }
     }
     CURRENT_BRANCH = branchName;
+    Commit previousHeadCommit = Head.getGlobalHeadCommit();
     Commit branchHeadCommit = Head.getBranchHeadCommit(branchName);
-    Head.setGlobalHead(branchName, branchHeadCommit);
+    Head.setGlobalHead(branchName);
     System.out.println("You're now on the " + branchName + " branch.");
 
     // Restore files in current working directory
-    restoreCommit(branchHeadCommit.getSnapshot());
+    restoreCommit(previousHeadCommit.getTreeSHA1(), branchHeadCommit.getTreeSHA1());
 
   }
 
   /** Checks out to a commit. */
   public void checkoutCommit(String commitHash) throws IOException {
-    // Get the latest head commit pointer, then recursively find the commit hash
-    // and its corresponding commit instance.
-
+    if (Index.load().hasStaged()) {
+      System.out.println("You have staged changes. Commit them before checking out something else.");
+      return;
+    }
+    // The hash can be shortened, and is looked up in the object store rather
+    // than by walking history, so commits off the current branch are found too
     Commit lastCommit = Head.getGlobalHeadCommit();
-    Commit foundCommit = findCommit(commitHash, lastCommit);
-    if (foundCommit == null) {
-      System.out.println("Couldn't find the commit hash");
+    Commit foundCommit;
+    try {
+      foundCommit = Commit.loadCommit(Commit.resolveSHA1(commitHash));
+    } catch (IllegalArgumentException excp) {
+      System.out.println(excp.getMessage());
       return;
     }
-    // After finding the commit instance, iterate through the snapshot
-    // and restore all files from that commit.
-    Map<String, String> commitSnapShot = foundCommit.getSnapshot();
-    restoreCommit(commitSnapShot);
+    // After finding the commit instance, restore the files that differ between
+    // the current head and that commit.
+    restoreCommit(lastCommit.getTreeSHA1(), foundCommit.getTreeSHA1());
 
     // Detach the head and set the current branch to a temporary "DETACHED". Add in
     // detached (temporary) branch state machine and file blob map.
     Head.setGlobalHead(foundCommit);
-    CURRENT_BRANCH = "DETACHED";
     addBranchToStateMachine("DETACHED");
     addBranchToFileBlobMap("DETACHED");
+    CURRENT_BRANCH = "DETACHED";
     System.out.println(
         "You're now in a detached head state. Please be careful when making changes. You can make experimental stages and commits here, but they will not be saved thereafter once you switch your branch.");
   }
 
+  /**
+   * Merges branches into the current one with a single merge commit. Used when
+   * command of 'java gitcopy.Main merge [branches]' is invoked. Files both
+   * sides changed are merged line by line. If some lines still conflict, the
+   * clean changes are staged, the conflicts are written out with markers, and
+   * the merge is finished by the next commit.
+   */
   public void merge(String[] branches) throws IOException {
-
-    // ths function is incomplete
-
+    if (!Head.getMergeHeads().isEmpty()) {
+      System.out.println("A merge is still in progress. Resolve its conflicts and commit it first.");
+      return;
+    }
     Commit LCA = getLCACommit(branches);
-
-    // Iterate through branchCommits and compare LCA to each.
-    Map<String, String> LCASnapShot = LCA.getSnapshot();
-    Map<String, String> currBranchSnapShot = Head.getBranchHeadCommit(CURRENT_BRANCH).getSnapshot();
-    // The merge snapshot to commit with. Goes through each condition to add to this
-    // snapshot.
-    Map<String, String> mergeSnapShotMap = new HashMap<>();
-    GitCopyStateMachine currBranchStateMachine = BRANCH_STATE_MACHINES.get(CURRENT_BRANCH);
+    Commit headCommit = Head.getGlobalHeadCommit();
+    Map<String, String> baseSnapshot = LCA.getSnapshot();
     Map<String, Blob> currBranchFileBlobMap = BRANCHES_FILE_BLOP_MAP.get(CURRENT_BRANCH);
 
-    // Tracks files that need to be deleted from merging
-    Map<String, String> filesToDelete = new HashMap<>();
-
-    // boolean value to use to check if we need to look for files not in LCA but in
-    // curr branch (fileNotInLCAButInBranch). Used to reduce redundant code calls in
-    // case of many branches to iterate through.
-    boolean seenCurrBranch = false;
-
+    // Every branch is planned against the result of merging the ones before it.
+    // Nothing is changed until every plan is known.
+    Map<String, String> mergedSnapshot = new HashMap<>(headCommit.getSnapshot());
+    Map<String, String> changes = new HashMap<>();
+    Map<String, Blob> blobsTaken = new HashMap<>();
+    // Conflicted paths mapped to their content with markers, or to null where
+    // the file as a whole conflicts
+    Map<String, String> conflicts = new TreeMap<>();
+    List<String> parents = new ArrayList<>();
+    parents.add(headCommit.getSHA1());
     for (String branch : branches) {
       Commit branchCommit = Head.getBranchHeadCommit(branch);
-      Map<String, String> snapshot = branchCommit.getSnapshot();
-
-      // The given branch is modified, but the curr branch is not.
-      Merge.oneBranchChangesOnly(LCASnapShot, snapshot, currBranchSnapShot, mergeSnapShotMap,
-          currBranchStateMachine, currBranchFileBlobMap);
-
-      // The curr branch is modified, but the given branch is not.
-      Merge.oneBranchChangesOnly(LCASnapShot, currBranchSnapShot, snapshot, mergeSnapShotMap,
-          currBranchStateMachine, currBranchFileBlobMap);
-
-      // Both branches modified. Check if the changes are the same or if they are
-      // different.
-      Merge.isModdedGivenAndOrCurr(LCASnapShot, snapshot, currBranchSnapShot, mergeSnapShotMap, currBranchStateMachine,
-          currBranchFileBlobMap, filesToDelete);
-
-      // Check to see if we've already checked fileNotInLCAButInBranch for the curr
-      // branch. Reduce redundant calls during iterations.
-      if (!seenCurrBranch) {
-        // If curr branch has files that LCA doesn't
-        Merge.fileNotInLCAButInBranch(LCASnapShot, currBranchSnapShot, mergeSnapShotMap, currBranchStateMachine,
-            currBranchFileBlobMap);
-        seenCurrBranch = true;
+      parents.add(branchCommit.getSHA1());
+      MergePlan plan = MergePlan.computeFollowingRenames(baseSnapshot, mergedSnapshot, branchCommit.getSnapshot());
+      Map<String, String> planChanges = plan.getChanges();
+      // Files the branch renamed keep the mode they have here
+      Map<String, Blob> oursBlobsMoved = new HashMap<>();
+      for (Map.Entry<String, String> move : plan.getRenamesFollowed().entrySet()) {
+        Blob oursBlob = currBranchFileBlobMap.get(move.getKey());
+        if (oursBlob != null) {
+          oursBlobsMoved.put(move.getValue(), oursBlob);
+        }
+      }
+      for (Map.Entry<String, MergePlan.Resolution> entry : plan.getResolutions().entrySet()) {
+        MergePlan.Resolution resolution = entry.getValue();
+        if (resolution.getAction() != MergePlan.Action.CONFLICT) {
+          continue;
+        }
+        String fileName = entry.getKey();
+        // A file deleted on one side can't be merged by line
+        ContentMerge.Result result = resolution.getOursSHA1() == null || resolution.getTheirsSHA1() == null ? null
+            : ContentMerge.merge(resolution.getBaseSHA1(), resolution.getOursSHA1(), resolution.getTheirsSHA1(),
+                "HEAD", branch);
+        if (result != null && result.isClean()) {
+          planChanges.put(fileName, result.getBlobSHA1());
+          Blob oursBlob = oursBlobsMoved.getOrDefault(fileName, currBranchFileBlobMap.get(fileName));
+          blobsTaken.put(fileName, new Blob(fileName, result.getBlobSHA1(),
+              ObjectStore.getContentSize(result.getBlobSHA1()),
+              oursBlob == null ? Blob.REGULAR_MODE : oursBlob.getMode()));
+          System.out.println("Auto-merged " + fileName + ".");
+        } else {
+          conflicts.put(fileName, result == null ? null : result.getBlobSHA1());
+          System.out.println("Conflict between branches in " + fileName + ". Please resolve them.");
+        }
+      }
+      Map<String, Blob> branchFileBlobMap = BRANCHES_FILE_BLOP_MAP.get(branch);
+      for (Map.Entry<String, String> change : planChanges.entrySet()) {
+        String fileName = change.getKey();
+        String blobSHA1 = change.getValue();
+        changes.put(fileName, blobSHA1);
+        if (blobSHA1 == null) {
+          mergedSnapshot.remove(fileName);
+          blobsTaken.remove(fileName);
+        } else {
+          mergedSnapshot.put(fileName, blobSHA1);
+          if (blobsTaken.containsKey(fileName) && blobsTaken.get(fileName).getBlobSHA1().equals(blobSHA1)) {
+            continue;
+          }
+          // Keeps the mode the file has on its branch
+          Blob branchBlob = branchFileBlobMap == null ? null : branchFileBlobMap.get(fileName);
+          Blob oursBlob = oursBlobsMoved.get(fileName);
+          if (branchBlob != null && branchBlob.getBlobSHA1().equals(blobSHA1)) {
+            blobsTaken.put(fileName, branchBlob);
+          } else if (oursBlob != null) {
+            blobsTaken.put(fileName, new Blob(fileName, blobSHA1, ObjectStore.getContentSize(blobSHA1),
+                oursBlob.getMode()));
+          } else {
+            blobsTaken.put(fileName, new Blob(fileName, blobSHA1));
+          }
+        }
       }
-
-      // If given branch has files that LCA doesn't
-      Merge.fileNotInLCAButInBranch(LCASnapShot, snapshot, mergeSnapShotMap, currBranchStateMachine,
-          currBranchFileBlobMap);
+    }
+    if (!conflicts.isEmpty()) {
+      if (branches.length > 1) {
+        // Conflicts from several branches at once would be too tangled to resolve
+        System.out.println("Nothing was merged. Merge the branches one at a time to resolve the conflicts.");
+        return;
+      }
+      stopMergeOnConflicts(changes, blobsTaken, conflicts, parents.subList(1, parents.size()));
+      return;
+    }
+    if (parents.subList(1, parents.size()).stream().allMatch(LCA.getSHA1()::equals)) {
+      System.out.println("Already up to date.");
+      return;
     }
 
-    // Save commit
-    commitMerge(mergeSnapShotMap);
-
-    // Delete files after merging and finding files to be deleted
-    deleteFilesFromMerge(filesToDelete);
-  }
+    String treeSHA1 = Tree.update(headCommit.getTreeSHA1(), changes);
+    Commit mergeCommit = new Commit("Merge " + String.join(", ", branches), treeSHA1, parents);
+    mergeCommit.saveCommit();
+    Head.advanceGlobalHead(mergeCommit.getSHA1());
 
-  /** Helper function to delete files from merge. */
-  private void deleteFilesFromMerge(Map<String, String> filesToDelete) {
-    for (Map.Entry<String, String> entry : filesToDelete.entrySet()) {
-      String fileName = entry.getKey();
-      String blobSHA1 = entry.getValue();
-      File fileCWD = new File(System.getProperty("user.dir") + File.separator + fileName);
-      deleteFiles(fileCWD);
+    GitCopyStateMachine currBranchStateMachine = BRANCH_STATE_MACHINES.get(CURRENT_BRANCH);
+    for (Map.Entry<String, String> change : changes.entrySet()) {
+      String fileName = change.getKey();
+      if (change.getValue() == null) {
+        currBranchStateMachine.transitionState(GitCopyInputs.REMOVE, fileName);
+        currBranchFileBlobMap.remove(fileName);
+      } else {
+        // Merged files arrive committed
+        if (!currBranchStateMachine.fileInStateMachine(fileName)) {
+          currBranchStateMachine.updateFileAndStateToMachine(fileName, GitCopyStates.UNSTAGED, false);
+        }
+        currBranchFileBlobMap.put(fileName, blobsTaken.get(fileName));
+      }
     }
+    // Only the files the merge changed are written or deleted
+    restoreCommit(headCommit.getTreeSHA1(), treeSHA1);
   }
 
-  private void commitMerge(Map<String, String> mergeMap) throws IOException {
-    String lastCommitSHA1 = Head.getBranchHeadCommit(CURRENT_BRANCH).getSHA1();
-    boolean allFileStatesStaged = false;
-    for (Map.Entry<String, String> entry : mergeMap.entrySet()) {
-      String fileName = entry.getKey();
-      GitCopyStates currState = BRANCH_STATE_MACHINES.get(CURRENT_BRANCH).getCurrentStateOfFile(fileName);
-      if (currState == GitCopyStates.STAGED) {
-        allFileStatesStaged = true;
+  /**
+   * Leaves a merge with conflicts for the user to finish. The changes that
+   * merged cleanly are staged and written to the working directory, each
+   * conflicted file is written with its markers, or left as the side that
+   * still has it, and the merged branches are kept in MERGE_HEAD for the next
+   * commit.
+   */
+  private void stopMergeOnConflicts(Map<String, String> changes, Map<String, Blob> blobsTaken,
+      Map<String, String> conflicts, List<String> mergeHeads) throws IOException {
+    GitCopyStateMachine currBranchStateMachine = BRANCH_STATE_MACHINES.get(CURRENT_BRANCH);
+    Map<String, Blob> currBranchFileBlobMap = BRANCHES_FILE_BLOP_MAP.get(CURRENT_BRANCH);
+    Index index = Index.load();
+    List<String> filesToStage = new ArrayList<>();
+    for (Map.Entry<String, String> change : changes.entrySet()) {
+      String fileName = change.getKey();
+      if (change.getValue() == null) {
+        currBranchFileBlobMap.remove(fileName);
+        deleteFiles(new File(fileName));
+        index.stageRemoval(fileName);
+        currBranchStateMachine.transitionState(GitCopyInputs.REMOVE, fileName);
       } else {
-        allFileStatesStaged = false;
-        System.out.println("Not all of the files in merge map are staged.");
-        return;
+        Blob blob = blobsTaken.get(fileName);
+        if (!currBranchStateMachine.fileInStateMachine(fileName)) {
+          currBranchStateMachine.updateFileAndStateToMachine(fileName, GitCopyStates.UNSTAGED, false);
+        }
+        currBranchFileBlobMap.put(fileName, blob);
+        index.stage(fileName, blob.getBlobSHA1());
+        filesToStage.add(fileName);
+        writeWorkingFile(fileName, blob.getBlobSHA1(), blob);
       }
     }
-    if (allFileStatesStaged) {
-      Commit newCommit = new Commit("merge commit", mergeMap, lastCommitSHA1);
-      newCommit.saveCommit();
-
-      Branch currentBranch = FileUtils.loadObject(Branch.class, CURRENT_BRANCH, BRANCH_DIRECTORY);
-      String currBranchName = currentBranch.getName();
-      Head.setGlobalHead(currBranchName, newCommit);
-      Head.setBranchHead(currBranchName, newCommit);
+    currBranchStateMachine.transitionAll(GitCopyInputs.ADD, filesToStage);
+    for (Map.Entry<String, String> conflict : conflicts.entrySet()) {
+      if (conflict.getValue() != null) {
+        writeWorkingFile(conflict.getKey(), conflict.getValue(), currBranchFileBlobMap.get(conflict.getKey()));
+      }
     }
+    index.save();
+    Head.setMergeHeads(mergeHeads);
+    System.out.println("Automatic merge failed. Fix the conflicts, add the files and commit to finish the merge.");
   }
 
-  // Log commits for current branch. Used when no second argument is passed for
-  // log. e.g., java gitcopy.Main log
-  public void log() throws IOException {
-    Commit currBranchCommit = Head.getBranchHeadCommit(CURRENT_BRANCH);
-    traverseCommitHistory(currBranchCommit);
-
+  /**
+   * Prints the staged, modified, deleted and untracked files of the current
+   * branch. Used when command of 'java gitcopy.Main status' is invoked. While a
+   * 'status --watch' is running, only the paths it saw change are looked at.
+   */
+  public void status() throws IOException {
+    Index index = Index.load();
+    Status status = Status.compute(index.getStaged(), BRANCHES_FILE_BLOP_MAP.get(CURRENT_BRANCH), index,
+        StatusWatcher.readDirtyPaths());
+    index.save();
+    status.print(Head.getGlobalHeadBranchName());
   }
 
-  // Log commits for the specific branch.
-  // Command in terminal example: java gitcopy.Main log [insert branch name]
-  public void log(String branchName) throws IOException {
-    Commit branchCommit = Head.getBranchHeadCommit(branchName);
-    traverseCommitHistory(branchCommit);
+  /**
+   * Prints the status, then keeps watching the working directory so later
+   * status commands can skip the full scan. Used when command of
+   * 'java gitcopy.Main status --watch' is invoked. Runs until it's stopped.
+   */
+  public void watchStatus() throws IOException {
+    // Watch first, so nothing that changes during the full scan is missed
+    StatusWatcher watcher = new StatusWatcher();
+    Index index = Index.load();
+    Status status = Status.compute(index.getStaged(), BRANCHES_FILE_BLOP_MAP.get(CURRENT_BRANCH), index, null);
+    index.save();
+    status.print(Head.getGlobalHeadBranchName());
+    watcher.markDirty(status.getChangedPaths());
+    System.out.println("Watching for changes. Press Ctrl+C to stop.");
+    watcher.run();
   }
 
   /**
-   * Function to travel commit history and print out relevant information for
-   * logging.
+   * Prints the differences between commits, the staging area and the working
+   * directory. Used when command of 'java gitcopy.Main diff' is invoked.
+   *
+   * @param options - What to compare and how to print it
    */
-  private void traverseCommitHistory(Commit commit) {
-    System.out.println();
-    System.out.println("Commit hash: " + commit.getSHA1());
-    System.out.println("Commit message: " + commit.getMessage());
-    System.out.println("Commit Date: " + commit.getTime());
-
-    ArrayList<String> parents = commit.getParents();
+  public void diff(DiffOptions options) throws IOException {
+    List<Map<String, String>> commitSnapshots = new ArrayList<>();
+    for (String commitName : options.getCommits()) {
+      Commit commit;
+      try {
+        commit = findCommit(commitName);
+      } catch (IllegalArgumentException excp) {
+        System.out.println(excp.getMessage());
+        return;
+      }
+      commitSnapshots.add(commit.getSnapshot());
+    }
+    if (commitSnapshots.size() == 2) {
+      Diff.print(commitSnapshots.get(0), commitSnapshots.get(1), Diff.OBJECT_STORE, options.getFormat(),
+          options.isFindCopies());
+      return;
+    }
 
-    for (String parentSHA1 : parents) {
-      Commit parentCommit = FileUtils.loadObject(Commit.class, parentSHA1, COMMIT_DIRECTORY);
-      if (!parentCommit.getSHA1().equals(COMMIT_INIT_SHA1)) {
-        traverseCommitHistory(parentCommit);
+    Index index = Index.load();
+    Map<String, String> headSnapshot = Head.getGlobalHeadCommit().getSnapshot();
+    Map<String, String> stagedSnapshot = new HashMap<>(headSnapshot);
+    for (Map.Entry<String, String> change : index.getStaged().entrySet()) {
+      if (change.getValue() == null) {
+        stagedSnapshot.remove(change.getKey());
+      } else {
+        stagedSnapshot.put(change.getKey(), change.getValue());
       }
     }
-    return;
+    Map<String, String> before = !commitSnapshots.isEmpty() ? commitSnapshots.get(0)
+        : options.isStaged() ? headSnapshot : stagedSnapshot;
+    if (options.isStaged()) {
+      Diff.print(before, stagedSnapshot, Diff.OBJECT_STORE, options.getFormat(),
+          options.isFindCopies());
+      return;
+    }
+    // Only files that are tracked, or were in the commit, are compared
+    Set<String> paths = new HashSet<>(stagedSnapshot.keySet());
+    paths.addAll(before.keySet());
+    Map<String, String> workingSnapshot = hashWorkingFiles(paths, index);
+    index.save();
+    Diff.print(before, workingSnapshot, Diff.WORKING_TREE, options.getFormat(), options.isFindCopies());
   }
 
-  private void restoreCommit(Map<String, String> commitSnapShot) throws IOException {
-    for (Map.Entry<String, String> snapshotEntry : commitSnapShot.entrySet()) {
-      Blob loadedBlob = null;
-      String fileName = snapshotEntry.getKey();
-      String blobSHA1 = snapshotEntry.getValue();
-      if ((new File(BLOB_DIRECTORY, blobSHA1)).exists()) {
-        writeFile(loadedBlob, fileName);
+  /**
+   * Works out the blob SHA1 of files in the working directory, reusing the
+   * stat index so only files that changed since they were last hashed are read.
+   *
+   * @param paths - Files to hash. Ones that don't exist are left out.
+   * @param index - Stat index. Files that had to be hashed are recorded in it if
+   *              their blob is already stored.
+   * @return each existing file mapped to its SHA1
+   */
+  private static Map<String, String> hashWorkingFiles(Set<String> paths, Index index) throws IOException {
+    long hashedAt = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+    Map<String, String> snapshot = new HashMap<>();
+    for (String path : paths) {
+      File file = new File(path);
+      if (!file.isFile()) {
+        continue;
       }
+      BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+      int mode = Blob.modeOf(file);
+      Index.Entry entry = index.getUnchanged(path, attributes, mode);
+      if (entry != null) {
+        snapshot.put(path, entry.getBlobSHA1());
+      } else {
+        String blobSHA1 = ObjectStore.hashFile(file);
+        // Hashing doesn't store the blob, so only content the store already has
+        // can be recorded
+        if (ObjectStore.hasObject(blobSHA1)) {
+          index.record(path, attributes, hashedAt, new Blob(path, blobSHA1, attributes.size(), mode));
+        }
+        snapshot.put(path, blobSHA1);
+      }
+    }
+    return snapshot;
+  }
 
+  /**
+   * Looks up a commit by branch name, HEAD, or a commit hash of at least 7
+   * characters. A branch wins over a hash that looks the same.
+   */
+  private static Commit findCommit(String name) {
+    return Commit.loadCommit(findCommitSHA1(name));
+  }
+
+  /** Like findCommit, but only reads refs and indexes, not the commit itself. */
+  private static String findCommitSHA1(String name) {
+    if (name.equals("HEAD")) {
+      return Head.getGlobalHeadCommitSHA1();
+    }
+    String branchHeadSHA1 = Head.getBranchHeadCommitSHA1(name);
+    if (branchHeadSHA1 != null) {
+      return branchHeadSHA1;
     }
+    if (!name.matches("[0-9a-fA-F]+")) {
+      throw new IllegalArgumentException("No branch or commit named " + name + ".");
+    }
+    return Commit.resolveSHA1(name);
   }
 
-  private void writeFile(Blob blob, String fileName) throws IOException {
-    FileUtils.writeContentsToFile(new File(fileName), blob.getFileContent());
+  /**
+   * Packs loose objects and older packs into a single delta-compressed pack,
+   * and loose branch refs into packed-refs. Used when command of
+   * 'java gitcopy.Main gc' or 'repack' is invoked.
+   */
+  public void gc() throws IOException {
+    int packedObjects = ObjectStore.repack();
+    System.out.println("Packed " + packedObjects + " objects.");
+    int packedRefs = Head.packRefs();
+    System.out.println("Packed " + packedRefs + " refs.");
+    int graphedCommits = CommitGraph.write();
+    System.out.println("Wrote " + graphedCommits + " commits to the commit-graph.");
   }
 
-  /** Helper function to encapsulate getting LCA */
-  private Commit getLCACommit(String[] branches) {
-    // branchesCommits is an array list that holds all of the branches' commits we
-    // need to merge
-    ArrayList<Commit> branchesCommits = new ArrayList<>();
-    for (String branch : branches) {
-      branchesCommits.add(Head.getBranchHeadCommit(branch));
+  /**
+   * Prints the history of HEAD, or of a branch or commit, newest first. Used
+   * when command of 'java gitcopy.Main log' is invoked. Commits are loaded only
+   * as they're printed, and the output is buffered, so a short log of a long
+   * history stays short. With --name-status each commit also lists the files it
+   * changed against its first parent, renames included.
+   *
+   * @param options - Start, limits and format to log with
+   */
+  public void log(LogOptions options) throws IOException {
+    String startSHA1;
+    try {
+      startSHA1 = options.getStart() == null ? Head.getGlobalHeadCommitSHA1() : findCommitSHA1(options.getStart());
+    } catch (IllegalArgumentException excp) {
+      System.out.println(excp.getMessage());
+      return;
+    }
+    CommitWalker walker = new CommitWalker(CommitGraph.open(), List.of(startSHA1))
+        .setSince(options.getSince())
+        .setUntil(options.getUntil());
+    BufferedWriter output = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8),
+        64 * 1024);
+    int shown = 0;
+    while (shown < options.getMaxCount() && walker.hasNext()) {
+      String commitSHA1 = walker.next();
+      // The initial commit only shows up in a log of a repo with nothing else
+      if (commitSHA1.equals(COMMIT_INIT_SHA1) && !commitSHA1.equals(startSHA1)) {
+        continue;
+      }
+      Commit commit = Commit.loadCommit(commitSHA1);
+      if (options.isOneline()) {
+        output.write(commitSHA1.substring(0, 7) + " " + commit.getMessage());
+        output.newLine();
+      } else {
+        output.newLine();
+        output.write("Commit hash: " + commitSHA1);
+        output.newLine();
+        output.write("Commit message: " + commit.getMessage());
+        output.newLine();
+        output.write("Commit Date: " + commit.getTime());
+        output.newLine();
+      }
+      if (options.isNameStatus() && !commitSHA1.equals(COMMIT_INIT_SHA1)) {
+        // Against the first parent, as for every other commit of a merge
+        String parentSHA1 = commit.getParents().get(0);
+        Map<String, String> parentSnapshot = parentSHA1.equals(COMMIT_INIT_SHA1) ? Map.of()
+            : Commit.loadCommit(parentSHA1).getSnapshot();
+        output.flush();
+        Diff.print(parentSnapshot, commit.getSnapshot(), Diff.OBJECT_STORE, Diff.Format.NAME_STATUS,
+            options.isFindCopies());
+      }
+      shown++;
     }
-    // Get common ancestor of all branches
-    ArrayList<Commit> branchesCommonAncestor = Merge.findLatestCommonAncestor(branchesCommits);
+    output.flush();
+  }
 
-    // Add the global head branch to branchesCommonAncestor to find the final LCA
-    branchesCommonAncestor.add(Head.getGlobalHeadCommit());
+  /**
+   * Moves the working directory from one commit's tree to another's. Only the
+   * files that differ are touched: changed and added files are restored, and
+   * files the target doesn't have are deleted. Identical subtrees are skipped.
+   */
+  private void restoreCommit(String fromTreeSHA1, String toTreeSHA1) throws IOException {
+    Map<String, Blob> currBranchFileBlobMap = BRANCHES_FILE_BLOP_MAP.get(CURRENT_BRANCH);
+    Tree.diff(fromTreeSHA1, toTreeSHA1, new PersistentMap.ChangeListener<String, String>() {
+      @Override
+      public void put(String fileName, String blobSHA1) {
+        try {
+          if (ObjectStore.hasObject(blobSHA1)) {
+            // Trees only hold SHA1s, so the mode comes from the tracked blob
+            writeWorkingFile(fileName, blobSHA1,
+                currBranchFileBlobMap == null ? null : currBranchFileBlobMap.get(fileName));
+          }
+        } catch (IOException excp) {
+          throw new IllegalArgumentException(excp.getMessage());
+        }
+      }
 
-    // Find the final LCA between master and the other LCA of the branches from
-    // branchesCommonAncestor and return the LCA commit
-    ArrayList<Commit> latestCommonAncestor = Merge.findLatestCommonAncestor(branchesCommonAncestor);
-    return latestCommonAncestor.get(0);
+      @Override
+      public void removed(String fileName) {
+        File file = new File(fileName);
+        if (file.isFile()) {
+          deleteFiles(file);
+        }
+      }
+    });
   }
 
-  /** Recursive function to find the commit hash in commit parents. */
-  private Commit findCommit(String commitHash, Commit lastCommit) {
-    if (lastCommit.getSHA1().equals(COMMIT_INIT_SHA1)) {
-      return null;
+  /**
+   * Writes a blob's content to a file in the working directory.
+   *
+   * @param fileName  - Path of the file
+   * @param blobSHA1  - SHA1 of the content
+   * @param modeBlob  - Tracked blob to take the mode from, if it's for the
+   *                  same content
+   */
+  private static void writeWorkingFile(String fileName, String blobSHA1, Blob modeBlob) throws IOException {
+    File file = new File(fileName);
+    if (file.getParentFile() != null) {
+      file.getParentFile().mkdirs();
     }
-    if (lastCommit.getSHA1().equals(commitHash)) {
-      return lastCommit;
+    ObjectStore.copyObjectToFile(blobSHA1, file);
+    if (modeBlob != null && modeBlob.getBlobSHA1().equals(blobSHA1)) {
+      file.setExecutable(modeBlob.isExecutable());
     }
-    for (String commitParentSHA1 : lastCommit.getParents()) {
-      Commit commitFromParentSHA1 = FileUtils.loadObject(Commit.class, commitParentSHA1, COMMIT_DIRECTORY);
-      Commit result = findCommit(commitHash, commitFromParentSHA1);
-      if (result != null) {
-        return result;
-      }
+  }
+
+  /** Helper function to encapsulate getting LCA */
+  private Commit getLCACommit(String[] branches) {
+    // The current head and every branch being merged in are walked together
+    List<String> tips = new ArrayList<>();
+    tips.add(Head.getGlobalHeadCommitSHA1());
+    for (String branch : branches) {
+      tips.add(Head.getBranchHeadCommit(branch).getSHA1());
     }
-    return null;
+    // With criss-cross merges there can be more than one best ancestor. The one
+    // furthest from the root is used.
+    List<String> mergeBases = MergeBase.find(CommitGraph.open(), tips);
+    return Commit.loadCommit(mergeBases.get(0));
   }
 
   /**
    * Inputs a new branch and a copy of the current branches state machine into
-   * BRANCH_STATE_MACHINES.
+   * BRANCH_STATE_MACHINES. The copy shares its states with the original.
    * 
    * @param branchName - the new branch name we created, which serves as the key
    */
@@ -437,24 +860,36 @@ public class Repo implements Serializable {
 
   /** Adds the master branch into the branchesFileBlobMap. */
   private void addMasterBranchToFileBlobMap() {
-    BRANCHES_FILE_BLOP_MAP.put("master", new HashMap<>());
+    BRANCHES_FILE_BLOP_MAP.put("master", new PersistentMap<>());
   }
 
   /**
    * Adds the newest branch made to the branchFileBlobMap. Inputs the
-   * branchName as the new key, as well as a copy of the HashMap
-   * from the current branch into the new branchName key.
+   * branchName as the new key, as well as a fork of the map from the current
+   * branch into the new branchName key. Forking is O(1): both branches share
+   * the same trie and Blob instances until one of them changes.
    */
   private void addBranchToFileBlobMap(String branchName) {
-    Map<String, Blob> originalFileBlopMap = BRANCHES_FILE_BLOP_MAP.get(CURRENT_BRANCH);
-    Map<String, Blob> deepCopy = new HashMap<>();
-    for (Map.Entry<String, Blob> entry : originalFileBlopMap.entrySet()) {
-      String fileName = entry.getKey();
-      Blob originalBlob = entry.getValue();
-      Blob deepCopyBlob = originalBlob.clone();
-      deepCopy.put(fileName, deepCopyBlob);
-    }
-    BRANCHES_FILE_BLOP_MAP.put(branchName, deepCopy);
+    PersistentMap<String, Blob> originalFileBlopMap = BRANCHES_FILE_BLOP_MAP.get(CURRENT_BRANCH);
+    BRANCHES_FILE_BLOP_MAP.put(branchName, originalFileBlopMap.fork());
+  }
+
+  /** Accessors used by RepoJournal to save the repo. */
+
+  RepoStateMachine getRepoStateMachine() {
+    return REPO_STATE_MACHINE;
+  }
+
+  Map<String, GitCopyStateMachine> getBranchStateMachines() {
+    return BRANCH_STATE_MACHINES;
+  }
+
+  Map<String, PersistentMap<String, Blob>> getBranchesFileBlobMap() {
+    return BRANCHES_FILE_BLOP_MAP;
+  }
+
+  String getCurrentBranch() {
+    return CURRENT_BRANCH;
   }
 
   /** Creates hidden folders in the .gitcopy directory */
@@ -466,7 +901,6 @@ public class Repo implements Serializable {
     String gitCopyDirectory = gitCopyFolder.getAbsolutePath();
 
     File[] folders = {
-        new File(gitCopyDirectory, ".staging"),
         new File(gitCopyDirectory, ".log"),
         new File(gitCopyDirectory, ".commits"),
         new File(gitCopyDirectory, ".blobs"),
@@ -493,14 +927,6 @@ public class Repo implements Serializable {
     return initialCommit;
   }
 
-  /** Helper function to stage files */
-  private void stageFile(String filename, Blob blob) throws IOException {
-
-    // Save the blob to disk in .blobs and .staged
-    FileUtils.saveObjectToFileDisk(blob.getBlobSHA1(), BLOB_DIRECTORY, blob);
-    FileUtils.saveObjectToFileDisk(blob.getBlobSHA1(), STAGED_DIRECTORY, blob);
-  }
-
   /** Helper function to delete files */
   private void deleteFiles(File... files) {
     for (File file : files) {
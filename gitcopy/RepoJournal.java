@@ -0,0 +1,573 @@
+package gitcopy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps the metadata of the repo (state machines, file maps of the branches and
+ * the current branch) in two files under .gitcopy:
+ *
+ * <pre>
+ * metadata  "GCMD" [version] [sequence] then the whole repo
+ * journal   one batch per saved command: [sequence] [length] [ops] [crc32]
+ * </pre>
+ *
+ * Branches are forks of one another and mostly alike, so the checkpoint holds
+ * the current branch whole and every other branch as its differences from the
+ * current one. Loading forks the current branch for each of them and applies
+ * the differences, so the branches share their maps again.
+ *
+ * Loading maps the checkpoint and replays the batches appended after it. Saving
+ * diffs the repo against what was loaded and appends only the changes, so a
+ * command costs time in the size of its change, not in the size of the repo.
+ * Once the journal has grown big enough it's folded into a new checkpoint.
+ */
+public class RepoJournal {
+
+  private static final int METADATA_MAGIC = 0x47434D44; // "GCMD"
+  private static final int METADATA_VERSION = 2;
+  // The journal is compacted once it's bigger than this and half the checkpoint
+  private static final long MIN_COMPACTION_SIZE = 64 * 1024;
+  // Length of the sequence, length and checksum around a batch
+  private static final int BATCH_HEADER_LENGTH = 12;
+  private static final int BATCH_TRAILER_LENGTH = 4;
+
+  private static final byte SET_CURRENT_BRANCH = 1;
+  private static final byte PUT_REPO_STATE = 2;
+  private static final byte REMOVE_REPO_STATE = 3;
+  private static final byte CREATE_BRANCH = 4;
+  private static final byte DELETE_BRANCH = 5;
+  private static final byte PUT_STATE = 6;
+  private static final byte REMOVE_STATE = 7;
+  private static final byte PUT_FILE = 8;
+  private static final byte REMOVE_FILE = 9;
+
+  private final File metadataFile;
+  private final File journalFile;
+  // Where the original build kept the whole repo as one serialized file
+  private final File originalFormatFile;
+  private long sequence;
+  private long checkpointLength;
+  private long journalLength;
+  // The repo as of the last load or save. The next save is diffed against it.
+  private String baseCurrentBranch;
+  private PersistentMap<String, GitCopyStates> baseRepoStates;
+  private Map<String, PersistentMap<String, GitCopyStates>> baseBranchStates = new HashMap<>();
+  private Map<String, PersistentMap<String, Blob>> baseBranchFiles = new HashMap<>();
+
+  /**
+   * @param directoryPath - The .gitcopy directory the metadata lives in
+   */
+  public RepoJournal(String directoryPath) {
+    this.metadataFile = new File(directoryPath, "metadata");
+    this.journalFile = new File(directoryPath, "journal");
+    this.originalFormatFile = new File(directoryPath, Repo.DEFAULT_SHA1);
+  }
+
+  /**
+   * Loads the repo from the checkpoint and the journal.
+   *
+   * @return the repo
+   * @throws IOException
+   */
+  public Repo load() throws IOException {
+    if (!metadataFile.exists()) {
+      if (originalFormatFile.exists()) {
+        throw new IllegalArgumentException(
+            "This repository was made by an older version of gitcopy and can't be read. Create it again with init.");
+      }
+      throw new IllegalArgumentException("The repository metadata is missing.");
+    }
+    State state = readCheckpoint();
+    replayJournal(state);
+    Repo repo = state.toRepo();
+    remember(repo);
+    return repo;
+  }
+
+  /**
+   * Saves the repo by appending what changed since it was loaded. Writes a
+   * checkpoint instead if there is none yet or the journal got too long.
+   *
+   * @param repo - The repo to save
+   * @throws IOException
+   */
+  public void save(Repo repo) throws IOException {
+    if (!metadataFile.exists() || journalLength > Math.max(MIN_COMPACTION_SIZE, checkpointLength / 2)) {
+      writeCheckpoint(repo);
+      return;
+    }
+    byte[] ops = diffOps(repo);
+    if (ops.length > 0) {
+      appendBatch(ops);
+    }
+    remember(repo);
+  }
+
+  /** Keeps forks of the repo's maps so the next save can be diffed against them. */
+  private void remember(Repo repo) {
+    baseCurrentBranch = repo.getCurrentBranch();
+    baseRepoStates = repo.getRepoStateMachine().getFiles().fork();
+    baseBranchStates = new HashMap<>();
+    for (Map.Entry<String, GitCopyStateMachine> entry : repo.getBranchStateMachines().entrySet()) {
+      baseBranchStates.put(entry.getKey(), entry.getValue().getFiles().fork());
+    }
+    baseBranchFiles = new HashMap<>();
+    for (Map.Entry<String, PersistentMap<String, Blob>> entry : repo.getBranchesFileBlobMap().entrySet()) {
+      baseBranchFiles.put(entry.getKey(), entry.getValue().fork());
+    }
+  }
+
+  /**
+   * Encodes every change from the remembered repo to the given one. New branches
+   * are created first, as copies of the branch that was current when the repo
+   * was loaded, since that's the branch they were most likely forked from. Their
+   * entries are then diffed against that copy.
+   */
+  private byte[] diffOps(Repo repo) throws IOException {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    DataOutputStream ops = new DataOutputStream(buffer);
+    Map<String, GitCopyStateMachine> stateMachines = repo.getBranchStateMachines();
+    Map<String, PersistentMap<String, Blob>> fileMaps = repo.getBranchesFileBlobMap();
+    String origin = baseBranchStates.containsKey(baseCurrentBranch) ? baseCurrentBranch : "";
+
+    for (String branch : stateMachines.keySet()) {
+      if (!baseBranchStates.containsKey(branch)) {
+        ops.writeByte(CREATE_BRANCH);
+        writeString(ops, branch);
+        writeString(ops, origin);
+      }
+    }
+    for (String branch : stateMachines.keySet()) {
+      String base = baseBranchStates.containsKey(branch) ? branch : origin;
+      PersistentMap<String, GitCopyStates> baseStates = baseBranchStates.getOrDefault(base, new PersistentMap<>());
+      PersistentMap<String, Blob> baseFiles = baseBranchFiles.getOrDefault(base, new PersistentMap<>());
+      PersistentMap<String, Blob> files = fileMaps.getOrDefault(branch, new PersistentMap<>());
+      PersistentMap.diff(baseStates, stateMachines.get(branch).getFiles(), new OpWriter<GitCopyStates>(ops) {
+        void writePut(String path, GitCopyStates state) throws IOException {
+          ops.writeByte(PUT_STATE);
+          writeString(ops, branch);
+          writeString(ops, path);
+          writeString(ops, state.name());
+        }
+
+        void writeRemove(String path) throws IOException {
+          ops.writeByte(REMOVE_STATE);
+          writeString(ops, branch);
+          writeString(ops, path);
+        }
+      });
+      PersistentMap.diff(baseFiles, files, new OpWriter<Blob>(ops) {
+        void writePut(String path, Blob blob) throws IOException {
+          ops.writeByte(PUT_FILE);
+          writeString(ops, branch);
+          writeBlob(ops, path, blob);
+        }
+
+        void writeRemove(String path) throws IOException {
+          ops.writeByte(REMOVE_FILE);
+          writeString(ops, branch);
+          writeString(ops, path);
+        }
+      });
+    }
+    for (String branch : baseBranchStates.keySet()) {
+      if (!stateMachines.containsKey(branch)) {
+        ops.writeByte(DELETE_BRANCH);
+        writeString(ops, branch);
+      }
+    }
+    PersistentMap.diff(baseRepoStates, repo.getRepoStateMachine().getFiles(), new OpWriter<GitCopyStates>(ops) {
+      void writePut(String key, GitCopyStates state) throws IOException {
+        ops.writeByte(PUT_REPO_STATE);
+        writeString(ops, key);
+        writeString(ops, state.name());
+      }
+
+      void writeRemove(String key) throws IOException {
+        ops.writeByte(REMOVE_REPO_STATE);
+        writeString(ops, key);
+      }
+    });
+    if (!repo.getCurrentBranch().equals(baseCurrentBranch)) {
+      ops.writeByte(SET_CURRENT_BRANCH);
+      writeString(ops, repo.getCurrentBranch());
+    }
+    ops.flush();
+    return buffer.toByteArray();
+  }
+
+  /** Appends one batch and forces it to disk before the command returns. */
+  private void appendBatch(byte[] ops) throws IOException {
+    CRC32 checksum = new CRC32();
+    checksum.update(ops);
+    ByteBuffer batch = ByteBuffer.allocate(BATCH_HEADER_LENGTH + ops.length + BATCH_TRAILER_LENGTH);
+    batch.putLong(sequence + 1).putInt(ops.length).put(ops).putInt((int) checksum.getValue());
+    batch.flip();
+    try (FileChannel channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE)) {
+      channel.position(journalLength);
+      while (batch.hasRemaining()) {
+        channel.write(batch);
+      }
+      channel.force(false);
+    }
+    sequence++;
+    journalLength += batch.limit();
+  }
+
+  /**
+   * Writes the whole repo to a new checkpoint, then drops the journal. The
+   * checkpoint carries the sequence of the last batch, so if the journal
+   * survives a crash in between its batches are skipped on the next load.
+   */
+  private void writeCheckpoint(Repo repo) throws IOException {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    DataOutputStream outputStream = new DataOutputStream(buffer);
+    outputStream.writeInt(METADATA_MAGIC);
+    outputStream.writeInt(METADATA_VERSION);
+    outputStream.writeLong(sequence);
+    writeString(outputStream, repo.getCurrentBranch());
+    writeStates(outputStream, repo.getRepoStateMachine().getFiles());
+    Map<String, GitCopyStateMachine> stateMachines = repo.getBranchStateMachines();
+    Map<String, PersistentMap<String, Blob>> fileMaps = repo.getBranchesFileBlobMap();
+    // The current branch goes first, so the others can be written against it
+    String origin = stateMachines.containsKey(repo.getCurrentBranch()) ? repo.getCurrentBranch() : "";
+    List<String> branches = new ArrayList<>(stateMachines.keySet());
+    if (branches.remove(origin)) {
+      branches.add(0, origin);
+    }
+    outputStream.writeInt(branches.size());
+    for (String branch : branches) {
+      PersistentMap<String, GitCopyStates> states = stateMachines.get(branch).getFiles();
+      PersistentMap<String, Blob> files = fileMaps.getOrDefault(branch, new PersistentMap<>());
+      String base = branch.equals(origin) ? "" : origin;
+      MapDiff<GitCopyStates> stateDiff = new MapDiff<>(
+          base.isEmpty() ? new PersistentMap<>() : stateMachines.get(base).getFiles(), states);
+      MapDiff<Blob> fileDiff = new MapDiff<>(fileMaps.getOrDefault(base, new PersistentMap<>()), files);
+      // A branch that has drifted far from the current one is smaller written whole
+      if (!base.isEmpty() && stateDiff.size() + fileDiff.size() > states.size() + files.size()) {
+        base = "";
+        stateDiff = new MapDiff<>(new PersistentMap<>(), states);
+        fileDiff = new MapDiff<>(new PersistentMap<>(), files);
+      }
+      writeString(outputStream, branch);
+      writeString(outputStream, base);
+      outputStream.writeInt(stateDiff.puts.size());
+      for (Map.Entry<String, GitCopyStates> entry : stateDiff.puts.entrySet()) {
+        writeString(outputStream, entry.getKey());
+        writeString(outputStream, entry.getValue().name());
+      }
+      writeKeys(outputStream, stateDiff.removes);
+      outputStream.writeInt(fileDiff.puts.size());
+      for (Map.Entry<String, Blob> entry : fileDiff.puts.entrySet()) {
+        writeBlob(outputStream, entry.getKey(), entry.getValue());
+      }
+      writeKeys(outputStream, fileDiff.removes);
+    }
+    outputStream.flush();
+
+    Path tempFile = Files.createTempFile(metadataFile.getParentFile().toPath(), "tmp_", ".metadata");
+    try {
+      // On disk before the rename, or a crash could leave the new name on an
+      // empty file after the journal is gone
+      try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+        ByteBuffer checkpoint = ByteBuffer.wrap(buffer.toByteArray());
+        while (checkpoint.hasRemaining()) {
+          channel.write(checkpoint);
+        }
+        channel.force(true);
+      }
+      Files.move(tempFile, metadataFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tempFile);
+    }
+    Files.deleteIfExists(journalFile.toPath());
+    checkpointLength = buffer.size();
+    journalLength = 0;
+    remember(repo);
+  }
+
+  private State readCheckpoint() throws IOException {
+    ByteBuffer buffer;
+    try (FileChannel channel = FileChannel.open(metadataFile.toPath(), StandardOpenOption.READ)) {
+      checkpointLength = channel.size();
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, checkpointLength);
+    }
+    if (buffer.getInt() != METADATA_MAGIC || buffer.getInt() != METADATA_VERSION) {
+      throw new IllegalArgumentException("The repository metadata is corrupt.");
+    }
+    State state = new State();
+    sequence = buffer.getLong();
+    state.currentBranch = readString(buffer);
+    state.repoStates = readStates(buffer);
+    int branches = buffer.getInt();
+    for (int i = 0; i < branches; i++) {
+      String branch = readString(buffer);
+      String base = readString(buffer);
+      if (!base.isEmpty() && !state.branchStates.containsKey(base)) {
+        throw new IllegalArgumentException("The repository metadata is corrupt.");
+      }
+      PersistentMap<String, GitCopyStates> states = base.isEmpty() ? new PersistentMap<>()
+          : state.branchStates.get(base).fork();
+      PersistentMap<String, Blob> files = base.isEmpty() ? new PersistentMap<>()
+          : state.branchFiles.get(base).fork();
+      int count = buffer.getInt();
+      for (int j = 0; j < count; j++) {
+        String key = readString(buffer);
+        states.put(key, GitCopyStates.valueOf(readString(buffer)));
+      }
+      readRemovedKeys(buffer, states);
+      count = buffer.getInt();
+      for (int j = 0; j < count; j++) {
+        Blob blob = readBlob(buffer);
+        files.put(blob.getFileName(), blob);
+      }
+      readRemovedKeys(buffer, files);
+      state.branchStates.put(branch, states);
+      state.branchFiles.put(branch, files);
+    }
+    return state;
+  }
+
+  /**
+   * Applies every batch newer than the checkpoint. A batch that is cut short or
+   * fails its checksum was being written when a command died, so it and
+   * anything after it is dropped.
+   */
+  private void replayJournal(State state) throws IOException {
+    journalLength = 0;
+    if (!journalFile.exists()) {
+      return;
+    }
+    try (FileChannel channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.READ,
+        StandardOpenOption.WRITE)) {
+      ByteBuffer journal = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      while (journal.remaining() >= BATCH_HEADER_LENGTH) {
+        long batchSequence = journal.getLong();
+        int length = journal.getInt();
+        if (length < 0 || length > journal.remaining() - BATCH_TRAILER_LENGTH) {
+          break;
+        }
+        ByteBuffer ops = journal.slice(journal.position(), length);
+        journal.position(journal.position() + length);
+        CRC32 checksum = new CRC32();
+        checksum.update(ops.duplicate());
+        if (journal.getInt() != (int) checksum.getValue()) {
+          break;
+        }
+        if (batchSequence > sequence) {
+          state.apply(ops);
+          sequence = batchSequence;
+        }
+        journalLength = journal.position();
+      }
+      if (journalLength < channel.size()) {
+        channel.truncate(journalLength);
+      }
+    }
+  }
+
+  private static void writeStates(DataOutputStream outputStream, PersistentMap<String, GitCopyStates> states)
+      throws IOException {
+    outputStream.writeInt(states.size());
+    for (Map.Entry<String, GitCopyStates> entry : states.entrySet()) {
+      writeString(outputStream, entry.getKey());
+      writeString(outputStream, entry.getValue().name());
+    }
+  }
+
+  private static PersistentMap<String, GitCopyStates> readStates(ByteBuffer buffer) {
+    PersistentMap<String, GitCopyStates> states = new PersistentMap<>();
+    int count = buffer.getInt();
+    for (int i = 0; i < count; i++) {
+      String key = readString(buffer);
+      states.put(key, GitCopyStates.valueOf(readString(buffer)));
+    }
+    return states;
+  }
+
+  private static void writeKeys(DataOutputStream outputStream, List<String> keys) throws IOException {
+    outputStream.writeInt(keys.size());
+    for (String key : keys) {
+      writeString(outputStream, key);
+    }
+  }
+
+  private static void readRemovedKeys(ByteBuffer buffer, Map<String, ?> map) {
+    int count = buffer.getInt();
+    for (int i = 0; i < count; i++) {
+      map.remove(readString(buffer));
+    }
+  }
+
+  private static void writeBlob(DataOutputStream outputStream, String path, Blob blob) throws IOException {
+    writeString(outputStream, path);
+    writeString(outputStream, blob.getBlobSHA1());
+    outputStream.writeLong(blob.getKnownSize());
+    outputStream.writeInt(blob.getMode());
+  }
+
+  private static Blob readBlob(ByteBuffer buffer) {
+    String path = readString(buffer);
+    String blobSHA1 = readString(buffer);
+    long size = buffer.getLong();
+    int mode = buffer.getInt();
+    return new Blob(path, blobSHA1, size, mode);
+  }
+
+  private static void writeString(DataOutputStream outputStream, String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    outputStream.writeInt(bytes.length);
+    outputStream.write(bytes);
+  }
+
+  private static String readString(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.getInt()];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /** Turns the changes reported by PersistentMap.diff into journal ops. */
+  private abstract static class OpWriter<V> implements PersistentMap.ChangeListener<String, V> {
+    private final DataOutputStream ops;
+
+    OpWriter(DataOutputStream ops) {
+      this.ops = ops;
+    }
+
+    abstract void writePut(String key, V value) throws IOException;
+
+    abstract void writeRemove(String key) throws IOException;
+
+    @Override
+    public void put(String key, V value) {
+      try {
+        writePut(key, value);
+      } catch (IOException excp) {
+        throw new IllegalArgumentException(excp.getMessage());
+      }
+    }
+
+    @Override
+    public void removed(String key) {
+      try {
+        writeRemove(key);
+      } catch (IOException excp) {
+        throw new IllegalArgumentException(excp.getMessage());
+      }
+    }
+  }
+
+  /** Differences between two versions of a map, kept so they can be counted. */
+  private static class MapDiff<V> implements PersistentMap.ChangeListener<String, V> {
+    private final Map<String, V> puts = new LinkedHashMap<>();
+    private final List<String> removes = new ArrayList<>();
+
+    MapDiff(PersistentMap<String, V> before, PersistentMap<String, V> after) {
+      PersistentMap.diff(before, after, this);
+    }
+
+    @Override
+    public void put(String key, V value) {
+      this.puts.put(key, value);
+    }
+
+    @Override
+    public void removed(String key) {
+      this.removes.add(key);
+    }
+
+    private int size() {
+      return this.puts.size() + this.removes.size();
+    }
+  }
+
+  /** The repo while it's being rebuilt from the checkpoint and the journal. */
+  private static class State {
+    private String currentBranch;
+    private PersistentMap<String, GitCopyStates> repoStates;
+    private final Map<String, PersistentMap<String, GitCopyStates>> branchStates = new HashMap<>();
+    private final Map<String, PersistentMap<String, Blob>> branchFiles = new HashMap<>();
+
+    /** Applies the ops of one batch, in the order they were written. */
+    private void apply(ByteBuffer ops) {
+      while (ops.hasRemaining()) {
+        byte op = ops.get();
+        switch (op) {
+          case SET_CURRENT_BRANCH:
+            currentBranch = readString(ops);
+            break;
+          case PUT_REPO_STATE:
+            repoStates.put(readString(ops), GitCopyStates.valueOf(readString(ops)));
+            break;
+          case REMOVE_REPO_STATE:
+            repoStates.remove(readString(ops));
+            break;
+          case CREATE_BRANCH: {
+            String branch = readString(ops);
+            String origin = readString(ops);
+            branchStates.put(branch, branchStates.getOrDefault(origin, new PersistentMap<>()).fork());
+            branchFiles.put(branch, branchFiles.getOrDefault(origin, new PersistentMap<>()).fork());
+            break;
+          }
+          case DELETE_BRANCH: {
+            String branch = readString(ops);
+            branchStates.remove(branch);
+            branchFiles.remove(branch);
+            break;
+          }
+          case PUT_STATE: {
+            String branch = readString(ops);
+            String path = readString(ops);
+            branchStates.get(branch).put(path, GitCopyStates.valueOf(readString(ops)));
+            break;
+          }
+          case REMOVE_STATE: {
+            String branch = readString(ops);
+            branchStates.get(branch).remove(readString(ops));
+            break;
+          }
+          case PUT_FILE: {
+            String branch = readString(ops);
+            Blob blob = readBlob(ops);
+            branchFiles.get(branch).put(blob.getFileName(), blob);
+            break;
+          }
+          case REMOVE_FILE: {
+            String branch = readString(ops);
+            branchFiles.get(branch).remove(readString(ops));
+            break;
+          }
+          default:
+            throw new IllegalArgumentException("The repository journal is corrupt.");
+        }
+      }
+    }
+
+    private Repo toRepo() {
+      Map<String, GitCopyStateMachine> stateMachines = new HashMap<>();
+      for (Map.Entry<String, PersistentMap<String, GitCopyStates>> entry : branchStates.entrySet()) {
+        stateMachines.put(entry.getKey(), new GitCopyStateMachine(entry.getValue()));
+      }
+      return new Repo(new RepoStateMachine(repoStates), stateMachines, branchFiles, currentBranch);
+    }
+  }
+
+}
@@ -1,34 +1,28 @@
 package gitcopy;
 
-import java.io.IOException;
-
 public class RepoStateMachine extends StateMachine {
+  private static final long serialVersionUID = 558176072653380276L;
+
+  private static final Transitions TRANSITIONS = new Transitions()
+      .on(GitCopyInputs.INIT, GitCopyStates.UNINITIALIZED, GitCopyStates.INITIALIZED);
 
   public RepoStateMachine() {
     super();
     initializeRepo();
   }
 
+  /** Rebuilds the state machine of the repo from its saved states. */
+  RepoStateMachine(PersistentMap<String, GitCopyStates> states) {
+    super(states);
+  }
+
   private void initializeRepo() {
     this.currentStates.put("REPO", GitCopyStates.UNINITIALIZED);
   }
 
-  /**
-   * Transitions state depending on the input given and the current state.
-   * 
-   * @param input
-   * @param filename
-   * @throws IOException
-   */
-  public void transitionState(String input, String filename) throws IOException {
-    GitCopyStates currState = getCurrentStateOfFile(filename);
-    switch (input) {
-      case "init":
-        if (currState == GitCopyStates.UNINITIALIZED) {
-          updateFileAndStateToMachine("REPO", GitCopyStates.INITIALIZED, false);
-          break;
-        }
-    }
+  @Override
+  protected Transitions transitions() {
+    return TRANSITIONS;
   }
 
 }
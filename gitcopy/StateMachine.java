@@ -1,28 +1,106 @@
 package gitcopy;
 
 import java.io.Serializable;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
 
+/**
+ * Tracks the state of each file and moves files between states by looking up
+ * (input, current state) in the transition table of the subclass.
+ */
 public abstract class StateMachine implements Serializable, Cloneable {
-  protected Map<String, GitCopyStates> currentStates;
+  private static final long serialVersionUID = -3461832752504429210L;
+
+  protected PersistentMap<String, GitCopyStates> currentStates;
+
+  /**
+   * Where each input takes a file from each state. A pair of (input, state)
+   * that isn't in the table leaves the file as it is.
+   */
+  protected static class Transitions {
+    private final EnumMap<GitCopyInputs, EnumMap<GitCopyStates, GitCopyStates>> targets =
+        new EnumMap<>(GitCopyInputs.class);
+    private final EnumMap<GitCopyInputs, EnumSet<GitCopyStates>> removals = new EnumMap<>(GitCopyInputs.class);
+
+    /** Moves files in state from to state to on input. */
+    protected Transitions on(GitCopyInputs input, GitCopyStates from, GitCopyStates to) {
+      this.targets.computeIfAbsent(input, key -> new EnumMap<>(GitCopyStates.class)).put(from, to);
+      return this;
+    }
+
+    /** Stops tracking files in any of the given states on input. */
+    protected Transitions removeOn(GitCopyInputs input, GitCopyStates... from) {
+      EnumSet<GitCopyStates> states = this.removals.computeIfAbsent(input, key -> EnumSet.noneOf(GitCopyStates.class));
+      Collections.addAll(states, from);
+      return this;
+    }
+  }
 
   public StateMachine() {
-    this.currentStates = new HashMap<>();
+    this.currentStates = new PersistentMap<>();
+  }
+
+  /** Builds a state machine around states that were saved earlier. */
+  protected StateMachine(PersistentMap<String, GitCopyStates> states) {
+    this.currentStates = states;
   }
 
-  /** Cloning method */
+  /** The transition table of this machine. */
+  protected abstract Transitions transitions();
+
+  /**
+   * Cloning method. The states are kept in a persistent map, so the clone
+   * shares them with the original in O(1) until either one changes.
+   */
   @Override
   public StateMachine clone() {
     try {
       StateMachine clone = (StateMachine) super.clone();
-      clone.currentStates = new HashMap<>(this.currentStates);
+      clone.currentStates = this.currentStates.fork();
       return clone;
     } catch (CloneNotSupportedException excp) {
       throw new AssertionError();
     }
   }
 
+  /**
+   * Transitions state depending on the input given and the current state.
+   * 
+   * @param input
+   * @param filename
+   */
+  public void transitionState(GitCopyInputs input, String filename) {
+    GitCopyStates currState = getCurrentStateOfFile(filename);
+    if (currState == null) {
+      return;
+    }
+    Transitions table = transitions();
+    EnumSet<GitCopyStates> removedFrom = table.removals.get(input);
+    if (removedFrom != null && removedFrom.contains(currState)) {
+      removeFile(filename);
+      return;
+    }
+    EnumMap<GitCopyStates, GitCopyStates> targets = table.targets.get(input);
+    GitCopyStates nextState = targets == null ? null : targets.get(currState);
+    if (nextState != null && nextState != currState) {
+      updateFileAndStateToMachine(filename, nextState, false);
+    }
+  }
+
+  /**
+   * Applies one input to several files.
+   * 
+   * @param input
+   * @param filenames - Files to transition. Untracked files are skipped.
+   */
+  public void transitionAll(GitCopyInputs input, Collection<String> filenames) {
+    for (String filename : filenames) {
+      transitionState(input, filename);
+    }
+  }
+
   /**
    * Add new files or update files that are tracked in state machine.
    * 
@@ -40,7 +118,7 @@ public abstract class StateMachine implements Serializable, Cloneable {
   }
 
   /** Get files in state machine. */
-  public Map<String, GitCopyStates> getFiles() {
+  public PersistentMap<String, GitCopyStates> getFiles() {
     return this.currentStates;
   }
 
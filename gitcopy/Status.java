@@ -0,0 +1,164 @@
+package gitcopy;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What differs between the working directory and the tracked files of a
+ * branch. Staged files and staged removals come from the staging area.
+ * Modified and deleted files are found by comparing each tracked file with its
+ * blob, using the stat index so only files whose stat changed are hashed.
+ * Untracked files are the files in the working directory the branch doesn't
+ * track.
+ */
+public class Status {
+
+  private final TreeSet<String> staged = new TreeSet<>();
+  private final TreeSet<String> stagedRemovals = new TreeSet<>();
+  private final TreeSet<String> modified = new TreeSet<>();
+  private final TreeSet<String> deleted = new TreeSet<>();
+  private final TreeSet<String> untracked = new TreeSet<>();
+
+  /**
+   * Works out the status of a branch.
+   *
+   * @param staged       - Staged paths mapped to their blob SHA1, or to null
+   *                     for staged removals
+   * @param trackedFiles - Blobs of the branch's files
+   * @param index        - Stat index. Files that had to be hashed are recorded
+   *                     in it if their blob is already stored.
+   * @param candidates   - Paths that may have changed since the last full scan,
+   *                     or null to scan the whole working directory. A path
+   *                     ending in "/" stands for everything below it.
+   * @return the status
+   * @throws IOException
+   */
+  public static Status compute(Map<String, String> staged, Map<String, Blob> trackedFiles, Index index,
+      Set<String> candidates) throws IOException {
+    Status status = new Status();
+    long hashedAt = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+    for (Map.Entry<String, String> entry : staged.entrySet()) {
+      if (entry.getValue() == null) {
+        status.stagedRemovals.add(entry.getKey());
+      } else {
+        status.staged.add(entry.getKey());
+      }
+    }
+
+    Collection<String> pathsToCheck = candidates == null ? trackedFiles.keySet() : expand(candidates, trackedFiles);
+    for (String path : pathsToCheck) {
+      Blob trackedBlob = trackedFiles.get(path);
+      if (trackedBlob != null) {
+        status.checkTrackedFile(path, trackedBlob, index, hashedAt);
+      } else if (new File(path).isFile()) {
+        status.untracked.add(path);
+      }
+    }
+    if (candidates == null) {
+      for (String path : FileUtils.collectFiles(".")) {
+        if (!trackedFiles.containsKey(path)) {
+          status.untracked.add(path);
+        }
+      }
+    }
+    return status;
+  }
+
+  /** Replaces each directory candidate with the tracked files below it. */
+  private static Collection<String> expand(Set<String> candidates, Map<String, Blob> trackedFiles) {
+    TreeSet<String> paths = new TreeSet<>();
+    TreeSet<String> directories = new TreeSet<>();
+    for (String candidate : candidates) {
+      if (candidate.endsWith("/")) {
+        directories.add(candidate);
+      } else {
+        paths.add(candidate);
+      }
+    }
+    if (!directories.isEmpty()) {
+      for (String path : trackedFiles.keySet()) {
+        for (int end = path.indexOf('/'); end >= 0; end = path.indexOf('/', end + 1)) {
+          if (directories.contains(path.substring(0, end + 1))) {
+            paths.add(path);
+            break;
+          }
+        }
+      }
+    }
+    return paths;
+  }
+
+  private void checkTrackedFile(String path, Blob trackedBlob, Index index, long hashedAt) throws IOException {
+    File file = new File(path);
+    if (!file.isFile()) {
+      this.deleted.add(path);
+      return;
+    }
+    BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+    int mode = Blob.modeOf(file);
+    Index.Entry entry = index.getUnchanged(path, attributes, mode);
+    String blobSHA1;
+    if (entry != null) {
+      blobSHA1 = entry.getBlobSHA1();
+    } else {
+      blobSHA1 = ObjectStore.hashFile(file);
+      // Hashing doesn't store the blob, so only content the store already has
+      // can be recorded
+      if (ObjectStore.hasObject(blobSHA1)) {
+        index.record(path, attributes, hashedAt, new Blob(path, blobSHA1, attributes.size(), mode));
+      }
+    }
+    if (!blobSHA1.equals(trackedBlob.getBlobSHA1()) || mode != trackedBlob.getMode()) {
+      this.modified.add(path);
+    }
+  }
+
+  /** Every path that isn't clean. */
+  public Set<String> getChangedPaths() {
+    TreeSet<String> paths = new TreeSet<>(this.staged);
+    paths.addAll(this.stagedRemovals);
+    paths.addAll(this.modified);
+    paths.addAll(this.deleted);
+    paths.addAll(this.untracked);
+    return paths;
+  }
+
+  /** Prints the status in one write. */
+  public void print(String branchName) {
+    StringBuilder output = new StringBuilder();
+    output.append(branchName == null ? "HEAD detached" : "On branch " + branchName).append('\n');
+    if (this.staged.isEmpty() && this.stagedRemovals.isEmpty() && this.modified.isEmpty()
+        && this.deleted.isEmpty() && this.untracked.isEmpty()) {
+      output.append("nothing to commit, working tree clean\n");
+    }
+    if (!this.staged.isEmpty() || !this.stagedRemovals.isEmpty()) {
+      output.append("Changes to be committed:\n");
+      appendPaths(output, "staged:   ", this.staged);
+      appendPaths(output, "deleted:  ", this.stagedRemovals);
+    }
+    if (!this.modified.isEmpty() || !this.deleted.isEmpty()) {
+      output.append("Changes not staged for commit:\n");
+      appendPaths(output, "modified: ", this.modified);
+      appendPaths(output, "deleted:  ", this.deleted);
+    }
+    if (!this.untracked.isEmpty()) {
+      output.append("Untracked files:\n");
+      appendPaths(output, "", this.untracked);
+    }
+    System.out.print(output);
+  }
+
+  private static void appendPaths(StringBuilder output, String label, Set<String> paths) {
+    for (String path : paths) {
+      output.append("  ").append(label).append(path).append('\n');
+    }
+  }
+
+}
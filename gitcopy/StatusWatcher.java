@@ -0,0 +1,271 @@
+package gitcopy;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+/**
+ * Watches the working directory for 'status --watch' and keeps the set of
+ * paths that may have changed since a full status was taken. The set is
+ * appended to .gitcopy/watch, one path per line, while the watcher holds a lock
+ * on .gitcopy/watch.lock. A plain 'status' run while the lock is held only has
+ * to look at those paths. If the watcher dies, its lock goes with it and status
+ * goes back to a full scan.
+ *
+ * Events reach the watcher some time after the change, so status first syncs
+ * with it: it creates a cookie file in .gitcopy/watch-cookies and waits for the
+ * watcher to write the cookie's name to the set. Every change made before the
+ * cookie was created has been recorded by then. The set is only ever appended
+ * to in whole lines, and a set whose last line isn't finished is not trusted.
+ */
+public class StatusWatcher {
+
+  private static final String DIRTY_FILE = "watch";
+  private static final String LOCK_FILE = "watch.lock";
+  // Written when the watch service dropped events, so the set can't be trusted
+  private static final String OVERFLOW_MARKER = "\0overflow";
+  // Starts the line the watcher writes for each cookie it sees
+  private static final String COOKIE_MARKER = "\0cookie ";
+  private static final String COOKIE_DIRECTORY = "watch-cookies";
+  // How long status waits for its cookie before doing a full scan instead
+  private static final long COOKIE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private final Path workingDirectory = Paths.get(System.getProperty("user.dir"));
+  private final File gitCopyDirectory = new File(Main.REPO_DIRECTORY);
+  private final WatchService watchService;
+  private final Map<WatchKey, Path> watchedDirectories = new HashMap<>();
+  private final Set<Path> watchedPaths = new HashSet<>();
+  private final Set<String> dirtyPaths = new HashSet<>();
+  private final FileChannel lockChannel;
+  private final FileLock lock;
+  private final FileChannel dirtyFile;
+  // Lines not yet written to the dirty file
+  private final StringBuilder pendingLines = new StringBuilder();
+  private final WatchKey cookieKey;
+
+  /**
+   * Takes the lock and starts watching every directory of the working tree.
+   * Changes made from here on are recorded, so the full status should be taken
+   * after this.
+   */
+  public StatusWatcher() throws IOException {
+    this.lockChannel = FileChannel.open(new File(this.gitCopyDirectory, LOCK_FILE).toPath(),
+        StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    this.lock = this.lockChannel.tryLock();
+    if (this.lock == null) {
+      this.lockChannel.close();
+      throw new IllegalArgumentException("Another status --watch is already running.");
+    }
+    this.dirtyFile = FileChannel.open(new File(this.gitCopyDirectory, DIRTY_FILE).toPath(),
+        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    this.watchService = FileSystems.getDefault().newWatchService();
+    Path cookieDirectory = new File(this.gitCopyDirectory, COOKIE_DIRECTORY).toPath();
+    Files.createDirectories(cookieDirectory);
+    this.cookieKey = cookieDirectory.register(this.watchService, ENTRY_CREATE);
+    registerTree(this.workingDirectory);
+  }
+
+  /**
+   * Reads the paths recorded by a running watcher, once it has caught up with
+   * every change made before this call.
+   *
+   * @return the paths that may have changed, or null if no watcher is running,
+   *         it lost track or it didn't catch up in time
+   */
+  public static Set<String> readDirtyPaths() throws IOException {
+    File lockFile = new File(Main.REPO_DIRECTORY, LOCK_FILE);
+    File dirtyFile = new File(Main.REPO_DIRECTORY, DIRTY_FILE);
+    File cookieDirectory = new File(Main.REPO_DIRECTORY, COOKIE_DIRECTORY);
+    if (!lockFile.exists() || !dirtyFile.exists() || !cookieDirectory.isDirectory()) {
+      return null;
+    }
+    try (FileChannel channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.WRITE)) {
+      FileLock lock = channel.tryLock();
+      if (lock != null) {
+        // Nobody is watching
+        lock.release();
+        return null;
+      }
+    }
+    String cookie = ProcessHandle.current().pid() + "-" + System.nanoTime();
+    Path cookieFile = new File(cookieDirectory, cookie).toPath();
+    Files.createFile(cookieFile);
+    try {
+      String cookieLine = COOKIE_MARKER + cookie + "\n";
+      long deadline = System.nanoTime() + COOKIE_TIMEOUT_NANOS;
+      String content = Files.readString(dirtyFile.toPath(), StandardCharsets.UTF_8);
+      while (!content.contains(cookieLine)) {
+        if (System.nanoTime() > deadline) {
+          return null;
+        }
+        Thread.sleep(5);
+        content = Files.readString(dirtyFile.toPath(), StandardCharsets.UTF_8);
+      }
+      return parseDirtyPaths(content);
+    } catch (InterruptedException excp) {
+      Thread.currentThread().interrupt();
+      return null;
+    } finally {
+      Files.deleteIfExists(cookieFile);
+    }
+  }
+
+  /** The paths in the dirty file, or null if it can't be trusted. */
+  private static Set<String> parseDirtyPaths(String content) {
+    if (!content.endsWith("\n")) {
+      // The watcher is partway through writing a line
+      return null;
+    }
+    Set<String> paths = new HashSet<>();
+    for (String line : content.split("\n")) {
+      if (line.equals(OVERFLOW_MARKER)) {
+        return null;
+      }
+      if (!line.startsWith(COOKIE_MARKER)) {
+        paths.add(line);
+      }
+    }
+    return paths;
+  }
+
+  /** Records paths that are already known not to be clean. */
+  public void markDirty(Set<String> paths) throws IOException {
+    for (String path : paths) {
+      markDirty(path);
+    }
+    flush();
+  }
+
+  /** Records changes until the process is stopped. */
+  public void run() throws IOException {
+    while (true) {
+      WatchKey key;
+      try {
+        key = this.watchService.take();
+      } catch (InterruptedException excp) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+      Set<String> cookies = new HashSet<>();
+      handleEvents(key, cookies);
+      if (!cookies.isEmpty()) {
+        // A key can be queued behind the cookie's while still holding events
+        // from before it, if they came in while the key was being handled.
+        // Everything queued now goes in first.
+        for (WatchKey ready = this.watchService.poll(); ready != null; ready = this.watchService.poll()) {
+          handleEvents(ready, cookies);
+        }
+        for (String cookie : cookies) {
+          this.pendingLines.append(COOKIE_MARKER).append(cookie).append('\n');
+        }
+      }
+      flush();
+    }
+  }
+
+  private void handleEvents(WatchKey key, Set<String> cookies) throws IOException {
+    Path directory = this.watchedDirectories.get(key);
+    for (WatchEvent<?> event : key.pollEvents()) {
+      if (event.kind() == OVERFLOW) {
+        this.pendingLines.append(OVERFLOW_MARKER).append('\n');
+        continue;
+      }
+      if (key == this.cookieKey) {
+        cookies.add(event.context().toString());
+        continue;
+      }
+      Path child = directory.resolve((Path) event.context());
+      if (child.getFileName().toString().equals(".gitcopy")) {
+        continue;
+      }
+      if (event.kind() == ENTRY_CREATE && Files.isDirectory(child)) {
+        // Files can land in a new directory before it's watched
+        registerTree(child);
+        markTreeDirty(child);
+      } else if (event.kind() == ENTRY_DELETE && isWatched(child)) {
+        // A directory that is moved away takes its files without an event each
+        markDirty(toRepoPath(child) + "/");
+      }
+      markDirty(toRepoPath(child));
+    }
+    if (!key.reset()) {
+      this.watchedPaths.remove(this.watchedDirectories.remove(key));
+    }
+  }
+
+  /** Writes the pending lines to the dirty file in one go, so only whole lines land in it. */
+  private void flush() throws IOException {
+    if (this.pendingLines.length() == 0) {
+      return;
+    }
+    ByteBuffer buffer = StandardCharsets.UTF_8.encode(this.pendingLines.toString());
+    while (buffer.hasRemaining()) {
+      this.dirtyFile.write(buffer);
+    }
+    this.pendingLines.setLength(0);
+  }
+
+  private void registerTree(Path root) throws IOException {
+    Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes) throws IOException {
+        if (directory.getFileName() != null && directory.getFileName().toString().equals(".gitcopy")) {
+          return FileVisitResult.SKIP_SUBTREE;
+        }
+        WatchKey key = directory.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+        watchedDirectories.put(key, directory);
+        watchedPaths.add(directory);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  private void markTreeDirty(Path root) throws IOException {
+    Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+        markDirty(toRepoPath(file));
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  private boolean isWatched(Path directory) {
+    return this.watchedPaths.contains(directory);
+  }
+
+  private void markDirty(String path) throws IOException {
+    if (this.dirtyPaths.add(path)) {
+      this.pendingLines.append(path).append('\n');
+    }
+  }
+
+  private String toRepoPath(Path path) {
+    return FileUtils.toRepoPath(this.workingDirectory.relativize(path));
+  }
+
+}
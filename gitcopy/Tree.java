@@ -0,0 +1,209 @@
+package gitcopy;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Directory listings stored as objects. A tree holds one line per entry of its
+ * directory, sorted by name:
+ *
+ * <pre>
+ * blob [sha1] [name]   - a file
+ * tree [sha1] [name]   - a subdirectory, itself stored as a tree
+ * </pre>
+ *
+ * A commit points at the tree of the repo root. A directory that didn't change
+ * keeps its SHA1, so commits share every unchanged subtree, a new commit only
+ * writes the trees on the paths that changed, and comparing two trees skips
+ * any subtree whose SHA1 is the same on both sides.
+ */
+public class Tree {
+
+  public static final String TREE_TYPE = "tree";
+  // SHA1 of an empty listing. The empty tree is never stored or read.
+  public static final String EMPTY_TREE_SHA1 = "da39a3ee5e6b4b0d3255bfef95601890afd80709";
+  private static final String SEPARATOR = "/";
+  // Parsed listings. Diffs and updates read the same few directories near the
+  // root over and over.
+  private static final ObjectCache<TreeMap<String, Entry>> CACHE = new ObjectCache<>("trees",
+      ObjectCache.configuredSize("trees", 8 * 1024 * 1024), Tree::estimateSize);
+
+  /** A single line of a tree. */
+  private static class Entry {
+    private final String type;
+    private final String sha1;
+
+    Entry(String type, String sha1) {
+      this.type = type;
+      this.sha1 = sha1;
+    }
+
+    boolean isTree() {
+      return this.type.equals(TREE_TYPE);
+    }
+  }
+
+  /**
+   * Stores the trees for a snapshot that differs from an existing tree by the
+   * given changes. Only the trees on the paths of the changes are rewritten, and
+   * trees already in the store are not written again.
+   *
+   * @param baseTreeSHA1 - SHA1 of the tree the changes apply to
+   * @param changes      - Maps each changed path to the SHA1 of its new blob,
+   *                     or to null if the file was removed
+   * @return SHA1 of the new root tree
+   * @throws IOException
+   */
+  public static String update(String baseTreeSHA1, Map<String, String> changes) throws IOException {
+    if (changes.isEmpty()) {
+      return baseTreeSHA1;
+    }
+    TreeMap<String, Entry> entries = readEntries(baseTreeSHA1);
+    // Changes below each subdirectory, relative to that subdirectory
+    Map<String, Map<String, String>> subdirectoryChanges = new HashMap<>();
+    for (Map.Entry<String, String> change : changes.entrySet()) {
+      String path = change.getKey();
+      int separator = path.indexOf(SEPARATOR);
+      if (separator < 0) {
+        if (change.getValue() == null) {
+          entries.remove(path);
+        } else {
+          entries.put(path, new Entry(ObjectStore.BLOB_TYPE, change.getValue()));
+        }
+      } else {
+        subdirectoryChanges.computeIfAbsent(path.substring(0, separator), name -> new HashMap<>())
+            .put(path.substring(separator + 1), change.getValue());
+      }
+    }
+    for (Map.Entry<String, Map<String, String>> subdirectory : subdirectoryChanges.entrySet()) {
+      String name = subdirectory.getKey();
+      Entry current = entries.get(name);
+      String currentSHA1 = current != null && current.isTree() ? current.sha1 : EMPTY_TREE_SHA1;
+      String updatedSHA1 = update(currentSHA1, subdirectory.getValue());
+      if (updatedSHA1.equals(EMPTY_TREE_SHA1)) {
+        entries.remove(name);
+      } else {
+        entries.put(name, new Entry(TREE_TYPE, updatedSHA1));
+      }
+    }
+    return writeEntries(entries);
+  }
+
+  /**
+   * Lists every file below a tree.
+   *
+   * @param treeSHA1 - SHA1 of the tree
+   * @return map of each file path to the SHA1 of its blob
+   * @throws IOException
+   */
+  public static Map<String, String> flatten(String treeSHA1) throws IOException {
+    Map<String, String> snapshot = new HashMap<>();
+    flatten(treeSHA1, "", snapshot);
+    return snapshot;
+  }
+
+  private static void flatten(String treeSHA1, String prefix, Map<String, String> snapshot) throws IOException {
+    for (Map.Entry<String, Entry> entry : readEntries(treeSHA1).entrySet()) {
+      String path = prefix + entry.getKey();
+      if (entry.getValue().isTree()) {
+        flatten(entry.getValue().sha1, path + SEPARATOR, snapshot);
+      } else {
+        snapshot.put(path, entry.getValue().sha1);
+      }
+    }
+  }
+
+  /**
+   * Reports every file that differs between two trees. Subtrees with the same
+   * SHA1 on both sides are skipped without being read.
+   *
+   * @param beforeSHA1 - SHA1 of the older tree
+   * @param afterSHA1  - SHA1 of the newer tree
+   * @param listener   - Gets put for each added or changed file, with the
+   *                   SHA1 of its new blob, and removed for each removed file
+   * @throws IOException
+   */
+  public static void diff(String beforeSHA1, String afterSHA1, PersistentMap.ChangeListener<String, String> listener)
+      throws IOException {
+    diff(beforeSHA1, afterSHA1, "", listener);
+  }
+
+  private static void diff(String beforeSHA1, String afterSHA1, String prefix,
+      PersistentMap.ChangeListener<String, String> listener) throws IOException {
+    if (beforeSHA1.equals(afterSHA1)) {
+      return;
+    }
+    TreeMap<String, Entry> before = readEntries(beforeSHA1);
+    TreeMap<String, Entry> after = readEntries(afterSHA1);
+    TreeSet<String> names = new TreeSet<>(before.keySet());
+    names.addAll(after.keySet());
+    for (String name : names) {
+      Entry beforeEntry = before.get(name);
+      Entry afterEntry = after.get(name);
+      String path = prefix + name;
+      if (beforeEntry != null && afterEntry != null && beforeEntry.sha1.equals(afterEntry.sha1)
+          && beforeEntry.type.equals(afterEntry.type)) {
+        continue;
+      }
+      // A file that became a directory or the other way round is a removal
+      // followed by an addition
+      String beforeTree = beforeEntry != null && beforeEntry.isTree() ? beforeEntry.sha1 : EMPTY_TREE_SHA1;
+      String afterTree = afterEntry != null && afterEntry.isTree() ? afterEntry.sha1 : EMPTY_TREE_SHA1;
+      if (beforeEntry != null && !beforeEntry.isTree() && (afterEntry == null || afterEntry.isTree())) {
+        listener.removed(path);
+      }
+      diff(beforeTree, afterTree, path + SEPARATOR, listener);
+      if (afterEntry != null && !afterEntry.isTree()) {
+        listener.put(path, afterEntry.sha1);
+      }
+    }
+  }
+
+  /** Lists a tree. The map is the caller's to change. */
+  private static TreeMap<String, Entry> readEntries(String treeSHA1) throws IOException {
+    if (treeSHA1.equals(EMPTY_TREE_SHA1)) {
+      return new TreeMap<>();
+    }
+    return new TreeMap<>(CACHE.get(treeSHA1, Tree::parseEntries));
+  }
+
+  private static TreeMap<String, Entry> parseEntries(String treeSHA1) throws IOException {
+    TreeMap<String, Entry> entries = new TreeMap<>();
+    String listing = new String(ObjectStore.readObject(treeSHA1), StandardCharsets.UTF_8);
+    for (String line : listing.split("\n")) {
+      if (line.isEmpty()) {
+        continue;
+      }
+      String[] fields = line.split(" ", 3);
+      entries.put(fields[2], new Entry(fields[0], fields[1]));
+    }
+    return entries;
+  }
+
+  private static String writeEntries(TreeMap<String, Entry> entries) throws IOException {
+    if (entries.isEmpty()) {
+      return EMPTY_TREE_SHA1;
+    }
+    StringBuilder listing = new StringBuilder();
+    for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+      listing.append(entry.getValue().type).append(' ').append(entry.getValue().sha1).append(' ')
+          .append(entry.getKey()).append('\n');
+    }
+    String treeSHA1 = ObjectStore.writeObject(TREE_TYPE, listing.toString().getBytes(StandardCharsets.UTF_8));
+    CACHE.put(treeSHA1, entries);
+    return treeSHA1;
+  }
+
+  private static long estimateSize(TreeMap<String, Entry> entries) {
+    long size = 64;
+    for (String name : entries.keySet()) {
+      size += 160 + name.length() * 2L;
+    }
+    return size;
+  }
+
+}
@@ -0,0 +1,86 @@
+package gitcopy;
+
+import static gitcopy.TestSupport.check;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/** Builds deltas between edited versions of content and applies them back. */
+public class DeltaTest {
+
+  public static void main(String[] args) {
+    Random random = new Random(3);
+    byte[] base = new byte[64 * 1024];
+    random.nextBytes(base);
+
+    checkRoundTrip(base, base.clone(), true);
+    checkRoundTrip(base, concat(base, bytes(random, 100)), true);
+    checkRoundTrip(base, concat(bytes(random, 100), base), true);
+    checkRoundTrip(base, Arrays.copyOfRange(base, 1000, base.length - 1000), true);
+    // A few bytes changed, inserted and removed in the middle
+    byte[] edited = base.clone();
+    for (int i = 0; i < 20; i++) {
+      edited[random.nextInt(edited.length)] ^= 0x5A;
+    }
+    checkRoundTrip(base, edited, true);
+    checkRoundTrip(base, concat(Arrays.copyOf(base, 30000), bytes(random, 7), Arrays.copyOfRange(base, 30000,
+        base.length)), true);
+    checkRoundTrip(base, concat(Arrays.copyOf(base, 30000), Arrays.copyOfRange(base, 31000, base.length)), true);
+    // Blocks of the base moved around
+    checkRoundTrip(base, concat(Arrays.copyOfRange(base, 40000, base.length), Arrays.copyOf(base, 40000)), true);
+    // Runs shorter than a block, and repeats of the same bytes
+    checkRoundTrip(bytes(random, 10), bytes(random, 10), false);
+    checkRoundTrip(new byte[4096], new byte[8192], true);
+
+    // Nothing in common, or nothing at all, has to be stored whole
+    check(Delta.create(base, bytes(random, base.length)) == null, "A delta of unrelated content should be null");
+    check(Delta.create(base, new byte[0]) == null, "A delta to empty content should be null");
+    checkRoundTrip(new byte[0], bytes(random, 1000), false);
+
+    // A delta only applies to the base it was made from
+    byte[] delta = Delta.create(base, edited);
+    try {
+      Delta.apply(Arrays.copyOf(base, base.length - 1), delta);
+      throw new AssertionError("Applying a delta to the wrong base should fail");
+    } catch (IllegalArgumentException expected) {
+      // The base sizes don't match
+    }
+  }
+
+  /**
+   * Checks that a delta, if one is made, rebuilds the target.
+   *
+   * @param mustShrink - Whether the target has enough in common with the base
+   *                   that a delta has to be made
+   */
+  private static void checkRoundTrip(byte[] base, byte[] target, boolean mustShrink) {
+    byte[] delta = Delta.create(base, target);
+    if (delta == null) {
+      check(!mustShrink, "Expected a delta for a target of " + target.length + " bytes");
+      return;
+    }
+    check(delta.length < target.length, "A delta should be smaller than its target");
+    check(Arrays.equals(target, Delta.apply(base, delta)), "The delta should rebuild the target");
+  }
+
+  private static byte[] bytes(Random random, int length) {
+    byte[] bytes = new byte[length];
+    random.nextBytes(bytes);
+    return bytes;
+  }
+
+  private static byte[] concat(byte[]... parts) {
+    int length = 0;
+    for (byte[] part : parts) {
+      length += part.length;
+    }
+    byte[] result = new byte[length];
+    int offset = 0;
+    for (byte[] part : parts) {
+      System.arraycopy(part, 0, result, offset, part.length);
+      offset += part.length;
+    }
+    return result;
+  }
+
+}
@@ -0,0 +1,106 @@
+package gitcopy;
+
+import static gitcopy.TestSupport.check;
+import static gitcopy.TestSupport.checkEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+
+/**
+ * Packs a mix of objects, then reads every one back through the pack and looks
+ * them up by prefix, against a sorted list of the ids.
+ */
+public class PackFileTest {
+
+  public static void main(String[] args) throws IOException {
+    TestSupport.requireScratchDirectory();
+    new File(Repo.BLOB_DIRECTORY).mkdirs();
+    new File(Repo.COMMIT_DIRECTORY).mkdirs();
+
+    Random random = new Random(21);
+    Map<String, byte[]> objects = new LinkedHashMap<>();
+    byte[] base = new byte[20000];
+    random.nextBytes(base);
+    // Versions of one file, which are packed as deltas of each other
+    for (int i = 0; i < 40; i++) {
+      byte[] version = base.clone();
+      version[random.nextInt(version.length)] = (byte) i;
+      putObject(objects, ObjectStore.BLOB_TYPE, version);
+    }
+    // Text that deflates well, content that doesn't, and nothing at all
+    for (int i = 0; i < 300; i++) {
+      putObject(objects, ObjectStore.BLOB_TYPE, ("line " + i + "\n").repeat(i + 1).getBytes());
+    }
+    for (int i = 0; i < 20; i++) {
+      byte[] noise = new byte[random.nextInt(5000) + 1];
+      random.nextBytes(noise);
+      putObject(objects, ObjectStore.BLOB_TYPE, noise);
+    }
+    putObject(objects, ObjectStore.BLOB_TYPE, new byte[0]);
+    putObject(objects, ObjectStore.COMMIT_TYPE, "a commit".getBytes());
+
+    File indexFile = PackFile.write(objects.keySet());
+    List<PackFile> packs = PackFile.loadPacks();
+    checkEquals(1, packs.size(), "Packs written");
+    check(indexFile.exists(), "The pack index should exist");
+    PackFile pack = packs.get(0);
+
+    List<String> sortedIds = new ArrayList<>(new TreeSet<>(objects.keySet()));
+    checkEquals(sortedIds, pack.getObjectIds(), "Ids in the pack");
+    for (Map.Entry<String, byte[]> object : objects.entrySet()) {
+      String id = object.getKey();
+      check(pack.contains(id), "The pack should contain " + id);
+      ObjectStore.RawObject stored = pack.openObject(id);
+      checkEquals((long) object.getValue().length, stored.getHeader().getSize(), "Size of " + id);
+      checkEquals(stored.getHeader().getType(), pack.readHeader(id).getType(), "Type of " + id);
+      try (InputStream content = stored.getContent()) {
+        check(Arrays.equals(object.getValue(), content.readAllBytes()), "Content of " + id);
+      }
+    }
+    checkEquals(ObjectStore.COMMIT_TYPE, pack.readHeader(FileUtils.sha1("a commit".getBytes())).getType(),
+        "Type of the commit");
+
+    // Every first byte goes through its own range of the fan-out, including
+    // the ones no id starts with
+    for (int firstByte = 0; firstByte < 256; firstByte++) {
+      checkPrefix(pack, sortedIds, String.format("%02x", firstByte));
+    }
+    for (String id : sortedIds) {
+      checkPrefix(pack, sortedIds, id.substring(0, 3));
+      checkPrefix(pack, sortedIds, id.substring(0, 7));
+      checkEquals(List.of(id), pack.findByPrefix(id, 2), "Lookup of the full id " + id);
+    }
+    checkEquals(2, pack.findByPrefix("", 2).size(), "Matches of an empty prefix with a limit");
+
+    String missing = "0000000000000000000000000000000000000000";
+    if (!objects.containsKey(missing)) {
+      check(!pack.contains(missing), "The pack shouldn't contain " + missing);
+      check(pack.openObject(missing) == null, "Opening a missing object should give null");
+    }
+    String last = "ffffffffffffffffffffffffffffffffffffffff";
+    check(!pack.contains(last), "The pack shouldn't contain " + last);
+  }
+
+  private static void putObject(Map<String, byte[]> objects, String type, byte[] content) throws IOException {
+    objects.put(ObjectStore.writeObject(type, content), content);
+  }
+
+  private static void checkPrefix(PackFile pack, List<String> sortedIds, String prefix) {
+    List<String> expected = new ArrayList<>();
+    for (String id : sortedIds) {
+      if (id.startsWith(prefix)) {
+        expected.add(id);
+      }
+    }
+    checkEquals(expected, pack.findByPrefix(prefix, Integer.MAX_VALUE), "Ids starting with " + prefix);
+  }
+
+}
@@ -0,0 +1,150 @@
+package gitcopy;
+
+import static gitcopy.TestSupport.check;
+import static gitcopy.TestSupport.checkEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Runs random puts and removes against a PersistentMap and a HashMap side by
+ * side, with keys that collide on their whole hash as well as on a few bits of
+ * it, and checks forks and diffs against the HashMap.
+ */
+public class PersistentMapTest {
+
+  /** A key whose hash is picked by the test. */
+  private static class Key {
+    private final int id;
+    private final int hash;
+
+    Key(int id, int hash) {
+      this.id = id;
+      this.hash = hash;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      return other instanceof Key && ((Key) other).id == this.id;
+    }
+
+    @Override
+    public int hashCode() {
+      return this.hash;
+    }
+
+    @Override
+    public String toString() {
+      return "Key(" + this.id + ", " + Integer.toHexString(this.hash) + ")";
+    }
+  }
+
+  public static void main(String[] args) {
+    Random random = new Random(8);
+    Key[] keys = new Key[2000];
+    for (int i = 0; i < keys.length; i++) {
+      int hash;
+      switch (i % 4) {
+        case 0:
+          // Only a handful of full hashes, so many keys share each one
+          hash = i % 7;
+          break;
+        case 1:
+          // Equal below the top bits, so they split only deep in the trie
+          hash = (i % 16) << 28;
+          break;
+        default:
+          hash = random.nextInt();
+      }
+      keys[i] = new Key(i, hash);
+    }
+
+    PersistentMap<Key, Integer> map = new PersistentMap<>();
+    Map<Key, Integer> model = new HashMap<>();
+    for (int round = 0; round < 20; round++) {
+      PersistentMap<Key, Integer> before = map.fork();
+      Map<Key, Integer> modelBefore = new HashMap<>(model);
+      for (int i = 0; i < 2000; i++) {
+        Key key = keys[random.nextInt(keys.length)];
+        if (random.nextInt(3) == 0) {
+          checkEquals(model.remove(key), map.remove(key), "Value removed for " + key);
+        } else {
+          Integer value = random.nextInt(5);
+          checkEquals(model.put(key, value), map.put(key, value), "Value replaced for " + key);
+        }
+      }
+      checkMatches(model, map);
+      // The fork taken before the round still holds the old contents
+      checkMatches(modelBefore, before);
+      checkDiff(modelBefore, model, before, map);
+      checkDiff(model, modelBefore, map, before);
+    }
+
+    // Changes to a fork don't show through in the map it was forked from
+    PersistentMap<Key, Integer> fork = map.fork();
+    Map<Key, Integer> forkModel = new HashMap<>(model);
+    for (Key key : keys) {
+      if (key.id % 2 == 0) {
+        fork.remove(key);
+        forkModel.remove(key);
+      } else {
+        fork.put(key, key.id);
+        forkModel.put(key, key.id);
+      }
+    }
+    checkMatches(forkModel, fork);
+    checkMatches(model, map);
+    checkDiff(model, forkModel, map, fork);
+
+    // Emptied, the map matches a new one
+    for (Key key : keys) {
+      map.remove(key);
+    }
+    checkMatches(new HashMap<>(), map);
+    checkDiff(new HashMap<>(), forkModel, new PersistentMap<>(), fork);
+    checkDiff(new HashMap<>(), new HashMap<>(), map, new PersistentMap<>());
+  }
+
+  private static void checkMatches(Map<Key, Integer> model, PersistentMap<Key, Integer> map) {
+    checkEquals(model.size(), map.size(), "Size");
+    checkEquals(model, new HashMap<>(map), "Entries");
+    for (Map.Entry<Key, Integer> entry : model.entrySet()) {
+      check(map.containsKey(entry.getKey()), "The map should contain " + entry.getKey());
+      checkEquals(entry.getValue(), map.get(entry.getKey()), "Value of " + entry.getKey());
+    }
+  }
+
+  /** Checks that a diff reports exactly what changed between the models. */
+  private static void checkDiff(Map<Key, Integer> modelBefore, Map<Key, Integer> modelAfter,
+      PersistentMap<Key, Integer> before, PersistentMap<Key, Integer> after) {
+    Map<Key, Integer> puts = new HashMap<>();
+    Map<Key, Integer> removes = new HashMap<>();
+    PersistentMap.diff(before, after, new PersistentMap.ChangeListener<Key, Integer>() {
+      @Override
+      public void put(Key key, Integer value) {
+        check(puts.put(key, value) == null, key + " was reported twice");
+      }
+
+      @Override
+      public void removed(Key key) {
+        check(removes.put(key, 0) == null, key + " was reported twice");
+      }
+    });
+    Map<Key, Integer> expectedPuts = new HashMap<>();
+    for (Map.Entry<Key, Integer> entry : modelAfter.entrySet()) {
+      if (!entry.getValue().equals(modelBefore.get(entry.getKey()))) {
+        expectedPuts.put(entry.getKey(), entry.getValue());
+      }
+    }
+    Map<Key, Integer> expectedRemoves = new HashMap<>();
+    for (Key key : modelBefore.keySet()) {
+      if (!modelAfter.containsKey(key)) {
+        expectedRemoves.put(key, 0);
+      }
+    }
+    checkEquals(expectedPuts, puts, "Keys the diff put");
+    checkEquals(expectedRemoves.keySet(), removes.keySet(), "Keys the diff removed");
+  }
+
+}
@@ -0,0 +1,179 @@
+package gitcopy;
+
+import static gitcopy.TestSupport.checkEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Saves a repo as a checkpoint plus three journal batches, then damages the
+ * journal in the ways a crash or a bad disk would and checks what loads: the
+ * batches before the damage, and nothing from the damaged batch on.
+ */
+public class RepoJournalTest {
+
+  // Length of the sequence and length before a batch's ops
+  private static final int BATCH_HEADER_LENGTH = 12;
+
+  /** The journal of a repo saved three times after its checkpoint. */
+  private static class SavedRepo {
+    private final String directory;
+    // What the repo held after the checkpoint and after each batch
+    private final List<Snapshot> snapshots = new ArrayList<>();
+    // Length of the journal after each batch
+    private final List<Long> journalLengths = new ArrayList<>();
+
+    SavedRepo(String directory) {
+      this.directory = directory;
+    }
+
+    File journalFile() {
+      return new File(this.directory, "journal");
+    }
+  }
+
+  /** Copies of everything RepoJournal saves. */
+  private static class Snapshot {
+    private final String currentBranch;
+    private final Map<String, GitCopyStates> repoStates;
+    private final Map<String, Map<String, GitCopyStates>> branchStates = new HashMap<>();
+    private final Map<String, Map<String, Blob>> branchFiles = new HashMap<>();
+
+    Snapshot(Repo repo) {
+      this.currentBranch = repo.getCurrentBranch();
+      this.repoStates = new HashMap<>(repo.getRepoStateMachine().getFiles());
+      for (Map.Entry<String, GitCopyStateMachine> entry : repo.getBranchStateMachines().entrySet()) {
+        this.branchStates.put(entry.getKey(), new HashMap<>(entry.getValue().getFiles()));
+      }
+      for (Map.Entry<String, PersistentMap<String, Blob>> entry : repo.getBranchesFileBlobMap().entrySet()) {
+        this.branchFiles.put(entry.getKey(), new HashMap<>(entry.getValue()));
+      }
+    }
+
+    void checkMatches(Repo repo, String message) {
+      Snapshot loaded = new Snapshot(repo);
+      checkEquals(this.currentBranch, loaded.currentBranch, message + ", current branch");
+      checkEquals(this.repoStates, loaded.repoStates, message + ", repo states");
+      checkEquals(this.branchStates, loaded.branchStates, message + ", branch states");
+      checkEquals(this.branchFiles, loaded.branchFiles, message + ", branch files");
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    // Intact, every batch is replayed
+    SavedRepo saved = saveRepo();
+    saved.snapshots.get(3).checkMatches(new RepoJournal(saved.directory).load(), "Intact journal");
+
+    // The last batch cut short, in its checksum or in its ops
+    for (long cut : new long[] { 1, 4, 10 }) {
+      saved = saveRepo();
+      truncate(saved.journalFile(), saved.journalLengths.get(2) - cut);
+      saved.snapshots.get(2).checkMatches(new RepoJournal(saved.directory).load(), "Last batch cut by " + cut);
+      checkEquals(saved.journalLengths.get(1), saved.journalFile().length(), "Journal length after cutting " + cut);
+    }
+
+    // Cut inside the header of the last batch
+    saved = saveRepo();
+    truncate(saved.journalFile(), saved.journalLengths.get(1) + BATCH_HEADER_LENGTH - 2);
+    saved.snapshots.get(2).checkMatches(new RepoJournal(saved.directory).load(), "Last batch header cut");
+    checkEquals(saved.journalLengths.get(1), saved.journalFile().length(), "Journal length after cutting the header");
+
+    // A flipped byte in the ops of the last batch fails its checksum
+    saved = saveRepo();
+    flipByte(saved.journalFile(), saved.journalLengths.get(1) + BATCH_HEADER_LENGTH + 1);
+    saved.snapshots.get(2).checkMatches(new RepoJournal(saved.directory).load(), "Last batch corrupt");
+    checkEquals(saved.journalLengths.get(1), saved.journalFile().length(), "Journal length after a corrupt batch");
+
+    // A corrupt batch in the middle drops the intact one after it too
+    saved = saveRepo();
+    flipByte(saved.journalFile(), saved.journalLengths.get(0) + BATCH_HEADER_LENGTH + 1);
+    saved.snapshots.get(1).checkMatches(new RepoJournal(saved.directory).load(), "Middle batch corrupt");
+    checkEquals(saved.journalLengths.get(0), saved.journalFile().length(), "Journal length after a corrupt middle");
+
+    // A length that runs past the end of the file counts as cut short
+    saved = saveRepo();
+    try (RandomAccessFile journal = new RandomAccessFile(saved.journalFile(), "rw")) {
+      journal.seek(saved.journalLengths.get(1) + 8);
+      journal.writeInt(Integer.MAX_VALUE);
+    }
+    saved.snapshots.get(2).checkMatches(new RepoJournal(saved.directory).load(), "Last batch length too big");
+
+    // Saving after a torn batch was dropped appends where the good ones end
+    saved = saveRepo();
+    truncate(saved.journalFile(), saved.journalLengths.get(2) - 3);
+    RepoJournal journal = new RepoJournal(saved.directory);
+    Repo repo = journal.load();
+    putFile(repo, "master", "after-crash.txt");
+    journal.save(repo);
+    new Snapshot(repo).checkMatches(new RepoJournal(saved.directory).load(), "Saved after a torn batch");
+  }
+
+  /**
+   * Saves a new repo in a fresh directory, then changes and saves it three
+   * times, recording what it held and how long the journal was each time.
+   */
+  private static SavedRepo saveRepo() throws IOException {
+    SavedRepo saved = new SavedRepo(Files.createTempDirectory(new File(".").toPath(), "journal").toString());
+    RepoJournal journal = new RepoJournal(saved.directory);
+    Repo repo = new Repo();
+    repo.getRepoStateMachine().updateFileAndStateToMachine("REPO", GitCopyStates.INITIALIZED, false);
+    putFile(repo, "master", "a.txt");
+    journal.save(repo);
+    checkEquals(false, saved.journalFile().exists(), "The first save should only write a checkpoint");
+    saved.snapshots.add(new Snapshot(repo));
+
+    for (int i = 0; i < 20; i++) {
+      putFile(repo, "master", "dir/file" + i + ".txt");
+    }
+    saveBatch(journal, repo, saved);
+
+    repo.getBranchStateMachines().put("dev", (GitCopyStateMachine) repo.getBranchStateMachines().get("master")
+        .clone());
+    repo.getBranchesFileBlobMap().put("dev", repo.getBranchesFileBlobMap().get("master").fork());
+    putFile(repo, "dev", "dev-only.txt");
+    saveBatch(journal, repo, saved);
+
+    repo.getBranchStateMachines().get("master").updateFileAndStateToMachine("a.txt", null, true);
+    repo.getBranchesFileBlobMap().get("master").remove("a.txt");
+    repo.getBranchStateMachines().get("master").updateFileAndStateToMachine("dir/file3.txt", GitCopyStates.STAGED,
+        false);
+    putFile(repo, "master", "dir/file4.txt");
+    saveBatch(journal, repo, saved);
+    return saved;
+  }
+
+  private static void saveBatch(RepoJournal journal, Repo repo, SavedRepo saved) throws IOException {
+    journal.save(repo);
+    saved.snapshots.add(new Snapshot(repo));
+    saved.journalLengths.add(saved.journalFile().length());
+  }
+
+  /** Tracks a file on a branch under a new blob, as commit would. */
+  private static void putFile(Repo repo, String branch, String path) {
+    String blobSHA1 = FileUtils.sha1((path + System.nanoTime()).getBytes());
+    repo.getBranchStateMachines().get(branch).updateFileAndStateToMachine(path, GitCopyStates.COMMITTED, false);
+    repo.getBranchesFileBlobMap().get(branch).put(path, new Blob(path, blobSHA1, path.length(), Blob.REGULAR_MODE));
+  }
+
+  private static void truncate(File file, long length) throws IOException {
+    try (RandomAccessFile journal = new RandomAccessFile(file, "rw")) {
+      journal.setLength(length);
+    }
+  }
+
+  private static void flipByte(File file, long position) throws IOException {
+    try (RandomAccessFile journal = new RandomAccessFile(file, "rw")) {
+      journal.seek(position);
+      int value = journal.read();
+      journal.seek(position);
+      journal.write(value ^ 0xFF);
+    }
+  }
+
+}
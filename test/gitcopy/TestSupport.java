@@ -0,0 +1,40 @@
+package gitcopy;
+
+import java.io.File;
+import java.util.Objects;
+
+/**
+ * Checks shared by the tests. Every test is a class with a main method that
+ * throws on the first check that fails. test/run.sh compiles and runs them.
+ */
+final class TestSupport {
+
+  private TestSupport() {
+  }
+
+  static void check(boolean condition, String message) {
+    if (!condition) {
+      throw new AssertionError(message);
+    }
+  }
+
+  static void checkEquals(Object expected, Object actual, String message) {
+    if (!Objects.equals(expected, actual)) {
+      throw new AssertionError(message + ": expected " + expected + " but was " + actual);
+    }
+  }
+
+  /**
+   * Stops a test that would write objects into a real repository. The store
+   * lives under the directory a command is run from, so tests that use it have
+   * to be run from an empty one.
+   */
+  static void requireScratchDirectory() {
+    File gitCopyDirectory = new File(Main.REPO_DIRECTORY);
+    if (!gitCopyDirectory.getParentFile().equals(new File(System.getProperty("user.dir")))
+        || gitCopyDirectory.exists()) {
+      throw new AssertionError("Run this test from an empty directory, not " + System.getProperty("user.dir"));
+    }
+  }
+
+}
@@ -0,0 +1,15 @@
+#!/bin/sh
+# Compiles gitcopy with its tests and runs every test, each from its own empty
+# directory, since the object store lives under the directory gitcopy runs in.
+set -e
+root=$(cd "$(dirname "$0")/.." && pwd)
+classes=$(mktemp -d)
+trap 'rm -rf "$classes"' EXIT
+javac -d "$classes" "$root"/gitcopy/*.java "$root"/test/gitcopy/*.java
+for test in "$root"/test/gitcopy/*Test.java; do
+  name=$(basename "$test" .java)
+  scratch=$(mktemp -d)
+  (cd "$scratch" && java -cp "$classes" "gitcopy.$name")
+  rm -rf "$scratch"
+  echo "$name passed"
+done